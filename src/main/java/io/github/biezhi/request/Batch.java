@@ -0,0 +1,423 @@
+package io.github.biezhi.request;
+
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs a collection of requests with bounded concurrency and returns their
+ * results in completion order.
+ * <p>
+ * At most {@link #maxConcurrency(int)} requests run at once and at most
+ * {@link #maxPerHost(int)} of them against the same 'host:port'. Hosts take
+ * turns when a slot frees up, so a host with many queued requests cannot
+ * starve the others. Create the requests from a {@link RequestClient} so
+ * the whole batch shares its connection pool:
+ * <pre>
+ * List&lt;Request&gt; requests = ...;
+ * Batch&lt;String&gt; batch = Batch.of(requests, Request::body).maxConcurrency(32).maxPerHost(8);
+ * batch.stream().forEach(result -&gt; System.out.println(result.value()));
+ * System.out.println(batch.stats());
+ * </pre>
+ * A batch runs once. The handler should consume the response body so the
+ * connection can be reused.
+ *
+ * @param <T> handler result type
+ */
+public class Batch<T> {
+
+    private final List<Request> requests;
+
+    private final Function<? super Request, ? extends T> handler;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Map<String, ArrayDeque<Task>> queues = new HashMap<>();
+
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+
+    private final ArrayDeque<String> rotation = new ArrayDeque<>();
+
+    private final LinkedBlockingQueue<Result<T>> completed = new LinkedBlockingQueue<>();
+
+    private int maxConcurrency = 64;
+
+    private int maxPerHost = 16;
+
+    private Executor executor;
+
+    private int running;
+
+    private int failed;
+
+    private long[] latencies;
+
+    private int finished;
+
+    private long startedAt;
+
+    private long finishedAt;
+
+    private boolean started;
+
+    private boolean dispatching;
+
+    private Batch(final Collection<Request> requests, final Function<? super Request, ? extends T> handler) {
+        this.requests = new ArrayList<>(requests);
+        this.handler = handler;
+    }
+
+    /**
+     * Create a batch applying the handler to each request
+     *
+     * @param requests
+     * @param handler  operation run against each request, such as
+     *                 {@code Request::body}
+     * @return batch
+     */
+    public static <T> Batch<T> of(final Collection<Request> requests,
+                                  final Function<? super Request, ? extends T> handler) {
+        if (requests == null)
+            throw new IllegalArgumentException("Requests must not be null");
+        if (handler == null)
+            throw new IllegalArgumentException("Handler must not be null");
+        return new Batch<>(requests, handler);
+    }
+
+    /**
+     * Set the maximum number of requests running at once, 64 by default
+     *
+     * @param maxConcurrency
+     * @return this batch
+     */
+    public Batch<T> maxConcurrency(final int maxConcurrency) {
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("Max concurrency must be greater than zero");
+        this.maxConcurrency = maxConcurrency;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of requests running at once against one
+     * 'host:port', 16 by default to match {@link ConnectionPool#maxPerHost(int)}
+     *
+     * @param maxPerHost
+     * @return this batch
+     */
+    public Batch<T> maxPerHost(final int maxPerHost) {
+        if (maxPerHost < 1)
+            throw new IllegalArgumentException("Max per host must be greater than zero");
+        this.maxPerHost = maxPerHost;
+        return this;
+    }
+
+    /**
+     * Set the {@link Executor} requests run on, by default each request's
+     * own {@link Request#executor()}
+     *
+     * @param executor
+     * @return this batch
+     */
+    public Batch<T> executor(final Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Result of one request of a batch
+     *
+     * @param <T> handler result type
+     */
+    public static final class Result<T> {
+
+        private final int index;
+
+        private final Request request;
+
+        private final T value;
+
+        private final RuntimeException error;
+
+        private final long latency;
+
+        private Result(final int index, final Request request, final T value,
+                       final RuntimeException error, final long latency) {
+            this.index = index;
+            this.request = request;
+            this.value = value;
+            this.error = error;
+            this.latency = latency;
+        }
+
+        /**
+         * @return position of the request in the batch
+         */
+        public int index() {
+            return index;
+        }
+
+        public Request request() {
+            return request;
+        }
+
+        /**
+         * Get the handler result
+         *
+         * @return value
+         * @throws RuntimeException the error the handler failed with
+         */
+        public T value() {
+            if (error != null)
+                throw error;
+            return value;
+        }
+
+        /**
+         * @return error the handler failed with, an {@link Error} wrapped in an
+         * {@link IllegalStateException}, or null on success
+         */
+        public RuntimeException error() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /**
+         * Get how long the request took
+         *
+         * @param unit
+         * @return latency
+         */
+        public long latency(final TimeUnit unit) {
+            return unit.convert(latency, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static final class Task {
+
+        private final int index;
+
+        private final Request request;
+
+        private final String host;
+
+        private Task(final int index, final Request request, final String host) {
+            this.index = index;
+            this.request = request;
+            this.host = host;
+        }
+    }
+
+    /**
+     * Start the batch and get its results in completion order
+     * <p>
+     * Requests start right away, the stream blocks until the next result is
+     * available.
+     *
+     * @return stream of results
+     * @throws IllegalStateException if the batch was already started
+     */
+    public Stream<Result<T>> stream() {
+        lock.lock();
+        try {
+            if (started)
+                throw new IllegalStateException("Batch already started");
+            started = true;
+            latencies = new long[requests.size()];
+            startedAt = finishedAt = System.nanoTime();
+            for (int i = 0; i < requests.size(); i++) {
+                final Request request = requests.get(i);
+                final String  host    = host(request.url());
+                ArrayDeque<Task> queue = queues.get(host);
+                if (queue == null) {
+                    queues.put(host, queue = new ArrayDeque<>());
+                    rotation.add(host);
+                }
+                queue.add(new Task(i, request, host));
+            }
+        } finally {
+            lock.unlock();
+        }
+        dispatch();
+
+        final int size = requests.size();
+        final Iterator<Result<T>> results = new Iterator<Result<T>>() {
+
+            private int taken;
+
+            @Override
+            public boolean hasNext() {
+                return taken < size;
+            }
+
+            @Override
+            public Result<T> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                try {
+                    final Result<T> result = completed.take();
+                    taken++;
+                    return result;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RequestException(new InterruptedIOException("Interrupted waiting for batch results"));
+                }
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliterator(results, size,
+                Spliterator.ORDERED | Spliterator.SIZED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Run the batch and wait for all results
+     *
+     * @return results in completion order
+     */
+    public List<Result<T>> execute() {
+        final List<Result<T>> results = new ArrayList<>(requests.size());
+        stream().forEach(results::add);
+        return results;
+    }
+
+    /**
+     * Get a snapshot of the statistics of this batch
+     *
+     * @return stats
+     */
+    public BatchStats stats() {
+        lock.lock();
+        try {
+            if (!started)
+                return new BatchStats(requests.size(), 0, 0, new long[0]);
+            final long end = finished < latencies.length ? System.nanoTime() : finishedAt;
+            return new BatchStats(requests.size(), failed, end - startedAt,
+                    Arrays.copyOf(latencies, finished));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String host(final URL url) {
+        final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getHost() + ':' + port;
+    }
+
+    /**
+     * Start queued requests while there is room, taking hosts in turn
+     * <p>
+     * Only the outermost caller dispatches. Requests completing on its stack,
+     * as they do with an executor running tasks on the calling thread or
+     * rejecting them, free their slot and leave starting the next ones to
+     * its loop instead of recursing.
+     */
+    private void dispatch() {
+        lock.lock();
+        try {
+            if (dispatching)
+                return;
+            dispatching = true;
+        } finally {
+            lock.unlock();
+        }
+        boolean drained = false;
+        try {
+            while (true) {
+                final List<Task> start = new ArrayList<>();
+                lock.lock();
+                try {
+                    int skipped = 0;
+                    while (running < maxConcurrency && skipped < rotation.size()) {
+                        final String host = rotation.poll();
+                        final int    busy = runningPerHost.getOrDefault(host, 0);
+                        if (busy >= maxPerHost) {
+                            rotation.add(host);
+                            skipped++;
+                            continue;
+                        }
+                        final ArrayDeque<Task> queue = queues.get(host);
+                        start.add(queue.poll());
+                        running++;
+                        runningPerHost.put(host, busy + 1);
+                        if (queue.isEmpty())
+                            queues.remove(host);
+                        else
+                            rotation.add(host);
+                        skipped = 0;
+                    }
+                    // Cleared under the same lock a completion checks it with,
+                    // so no freed slot is left unused
+                    if (start.isEmpty()) {
+                        dispatching = false;
+                        drained = true;
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                for (Task task : start)
+                    run(task);
+            }
+        } finally {
+            if (!drained) {
+                lock.lock();
+                try {
+                    dispatching = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private void run(final Task task) {
+        final Executor executor = this.executor != null ? this.executor : task.request.executor();
+        try {
+            CompletableFuture.runAsync(() -> {
+                final long start = System.nanoTime();
+                T                value = null;
+                RuntimeException error = null;
+                try {
+                    value = handler.apply(task.request);
+                } catch (RuntimeException e) {
+                    error = e;
+                } catch (Error e) {
+                    error = new IllegalStateException("Handler failed", e);
+                    throw e;
+                } finally {
+                    complete(task, value, error, System.nanoTime() - start);
+                }
+            }, executor);
+        } catch (RuntimeException e) {
+            // Rejected by the executor
+            complete(task, null, e, 0);
+        }
+    }
+
+    private void complete(final Task task, final T value, final RuntimeException error, final long latency) {
+        lock.lock();
+        try {
+            running--;
+            runningPerHost.merge(task.host, -1, Integer::sum);
+            latencies[finished++] = latency;
+            if (finished == latencies.length)
+                finishedAt = System.nanoTime();
+            if (error != null)
+                failed++;
+        } finally {
+            lock.unlock();
+        }
+        completed.add(new Result<>(task.index, task.request, value, error, latency));
+        dispatch();
+    }
+
+}
@@ -0,0 +1,130 @@
+package io.github.biezhi.request;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Point in time statistics of a {@link Batch}
+ * <p>
+ * Latencies are measured from the moment a request is started, not from
+ * when it was queued, and are reported in milliseconds.
+ */
+public final class BatchStats {
+
+    private final int total;
+
+    private final int completed;
+
+    private final int failed;
+
+    private final long elapsedNanos;
+
+    private final long[] latencies;
+
+    BatchStats(final int total, final int failed, final long elapsedNanos, final long[] latencies) {
+        this.total = total;
+        this.completed = latencies.length;
+        this.failed = failed;
+        this.elapsedNanos = elapsedNanos;
+        this.latencies = latencies;
+        Arrays.sort(this.latencies);
+    }
+
+    /**
+     * @return number of requests in the batch
+     */
+    public int total() {
+        return total;
+    }
+
+    /**
+     * @return number of requests finished, successfully or not
+     */
+    public int completed() {
+        return completed;
+    }
+
+    /**
+     * @return number of requests that failed
+     */
+    public int failed() {
+        return failed;
+    }
+
+    /**
+     * @return milliseconds since the batch was started
+     */
+    public double elapsed() {
+        return elapsedNanos / 1e6;
+    }
+
+    /**
+     * @return completed requests per second
+     */
+    public double throughput() {
+        return elapsedNanos > 0 ? completed * 1e9 / elapsedNanos : 0;
+    }
+
+    /**
+     * @return fastest request latency
+     */
+    public double min() {
+        return completed > 0 ? latencies[0] / 1e6 : 0;
+    }
+
+    /**
+     * @return mean request latency
+     */
+    public double mean() {
+        if (completed == 0)
+            return 0;
+        long sum = 0;
+        for (long latency : latencies)
+            sum += latency;
+        return sum / 1e6 / completed;
+    }
+
+    /**
+     * Get a latency percentile
+     *
+     * @param percentile between 0 and 100
+     * @return latency below which the given percentage of requests finished
+     */
+    public double percentile(final double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        if (completed == 0)
+            return 0;
+        final int rank = (int) Math.ceil(percentile / 100 * completed);
+        return latencies[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    /**
+     * @return median request latency
+     */
+    public double p50() {
+        return percentile(50);
+    }
+
+    /**
+     * @return 99th percentile request latency
+     */
+    public double p99() {
+        return percentile(99);
+    }
+
+    /**
+     * @return slowest request latency
+     */
+    public double max() {
+        return completed > 0 ? latencies[completed - 1] / 1e6 : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "BatchStats{completed=%d/%d, failed=%d, elapsed=%.1fms, throughput=%.1f/s, "
+                        + "latency min=%.1fms mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms}",
+                completed, total, failed, elapsed(), throughput(), min(), mean(), p50(), p99(), max());
+    }
+
+}
@@ -0,0 +1,93 @@
+package io.github.biezhi.request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes a body stream into an {@link Appendable} one buffer at a time.
+ * <p>
+ * Only a byte and a char buffer from the {@link BufferPool} are held while
+ * decoding, never the whole body. Each thread reuses its last
+ * {@link CharsetDecoder}. Malformed input is replaced, as
+ * {@link String#String(byte[], Charset)} does.
+ */
+final class BodyDecoder {
+
+    private static final ThreadLocal<CharsetDecoder> DECODER = new ThreadLocal<>();
+
+    private BodyDecoder() {
+    }
+
+    private static CharsetDecoder decoder(final Charset charset) {
+        final CharsetDecoder cached = DECODER.get();
+        if (cached != null && cached.charset().equals(charset))
+            return cached.reset();
+        final CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        DECODER.set(decoder);
+        return decoder;
+    }
+
+    /**
+     * Decode the stream to its end into the given output
+     *
+     * @param input
+     * @param charset
+     * @param output
+     * @param pool
+     * @param bufferSize
+     * @throws IOException
+     */
+    static void decode(final InputStream input, final Charset charset, final Appendable output,
+                       final BufferPool pool, final int bufferSize) throws IOException {
+        final CharsetDecoder decoder = decoder(charset);
+        final byte[]         bytes   = pool.bytes(bufferSize);
+        final char[]         chars   = pool.chars(bufferSize);
+        try {
+            final ByteBuffer in  = ByteBuffer.wrap(bytes);
+            final CharBuffer out = CharBuffer.wrap(chars);
+            boolean          eof = false;
+            while (!eof) {
+                final int read = input.read(bytes, in.position(), in.remaining());
+                if (read == -1)
+                    eof = true;
+                else
+                    in.position(in.position() + read);
+                in.flip();
+                CoderResult result;
+                do {
+                    result = decoder.decode(in, out, eof);
+                    drain(out, output);
+                } while (result.isOverflow());
+                // Keep the bytes of a character split across reads
+                in.compact();
+            }
+            while (decoder.flush(out).isOverflow())
+                drain(out, output);
+            drain(out, output);
+        } finally {
+            pool.release(bytes);
+            pool.release(chars);
+        }
+    }
+
+    private static void drain(final CharBuffer out, final Appendable output) throws IOException {
+        out.flip();
+        if (output instanceof StringBuilder)
+            ((StringBuilder) output).append(out.array(), 0, out.limit());
+        else if (output instanceof Writer)
+            ((Writer) output).write(out.array(), 0, out.limit());
+        else
+            output.append(out);
+        out.clear();
+    }
+
+}
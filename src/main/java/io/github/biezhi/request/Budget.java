@@ -0,0 +1,57 @@
+package io.github.biezhi.request;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket limiting extra calls, such as retries and hedges, to a share
+ * of the calls made: each call earns a fraction of a token, up to a
+ * reserve, and each extra call spends a whole one.
+ */
+final class Budget {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private double tokens;
+
+    /**
+     * Create budget starting with the given number of tokens
+     *
+     * @param tokens
+     */
+    Budget(final double tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * Earn the given ratio of a token for a call
+     *
+     * @param ratio
+     * @param reserve most tokens kept
+     */
+    void deposit(final double ratio, final int reserve) {
+        lock.lock();
+        try {
+            tokens = Math.min(reserve, tokens + ratio);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Spend a token for an extra call
+     *
+     * @return true if one was available
+     */
+    boolean withdraw() {
+        lock.lock();
+        try {
+            if (tokens < 1)
+                return false;
+            tokens--;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
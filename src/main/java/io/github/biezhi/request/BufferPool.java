@@ -0,0 +1,263 @@
+package io.github.biezhi.request;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of the byte, char and direct buffers requests copy bodies through,
+ * and of the {@link Inflater}s that uncompress them.
+ * <p>
+ * Each platform thread keeps the last buffer of each kind it released, so a
+ * thread running request after request reuses the same arrays. Other
+ * buffers go to a shared pool holding at most the configured number of
+ * buffers per kind, the rest are left to the garbage collector. Buffers are
+ * only reused for requests of the same size, a miss allocates a new one.
+ * Inflaters hold native memory that nothing would end once their thread
+ * died, so they only go to the shared pool and those it has no room for are
+ * ended.
+ * <p>
+ * A buffer must not be touched after it has been released. Install a pool
+ * for all requests with:
+ * <pre>
+ * Request.setBufferPool(new BufferPool(256));
+ * </pre>
+ */
+public class BufferPool {
+
+    /**
+     * Pool used when none is configured
+     */
+    public static final BufferPool DEFAULT = new BufferPool();
+
+    /**
+     * Pool that always allocates a new buffer
+     */
+    public static final BufferPool NONE = new BufferPool(0, false);
+
+    private final int maxShared;
+
+    private final boolean threadLocal;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final Kind<byte[]> bytes = new Kind<>(byte[]::new, array -> array.length, array -> {
+    }, true);
+
+    private final Kind<char[]> chars = new Kind<>(char[]::new, array -> array.length, array -> {
+    }, true);
+
+    private final Kind<ByteBuffer> direct = new Kind<>(ByteBuffer::allocateDirect, ByteBuffer::capacity, buffer -> {
+    }, true);
+
+    private final Kind<Inflater> inflaters = new Kind<>(size -> new Inflater(true), inflater -> 0, Inflater::end, false);
+
+    /**
+     * Create pool sharing up to 64 buffers of each kind between threads
+     */
+    public BufferPool() {
+        this(64);
+    }
+
+    /**
+     * Create pool sharing up to the given number of buffers of each kind
+     * between threads
+     *
+     * @param maxShared
+     */
+    public BufferPool(final int maxShared) {
+        this(maxShared, true);
+    }
+
+    /**
+     * Create pool
+     *
+     * @param maxShared   maximum number of buffers of each kind in the shared pool
+     * @param threadLocal whether each thread keeps its last released buffers
+     */
+    public BufferPool(final int maxShared, final boolean threadLocal) {
+        if (maxShared < 0)
+            throw new IllegalArgumentException("Max shared buffers must not be negative");
+        this.maxShared = maxShared;
+        this.threadLocal = threadLocal;
+    }
+
+    /**
+     * Get a byte array of the given length
+     *
+     * @param size
+     * @return array, not cleared
+     */
+    public byte[] bytes(final int size) {
+        return bytes.acquire(size);
+    }
+
+    /**
+     * Give a byte array back to the pool
+     *
+     * @param buffer array or null
+     */
+    public void release(final byte[] buffer) {
+        bytes.release(buffer);
+    }
+
+    /**
+     * Get a char array of the given length
+     *
+     * @param size
+     * @return array, not cleared
+     */
+    public char[] chars(final int size) {
+        return chars.acquire(size);
+    }
+
+    /**
+     * Give a char array back to the pool
+     *
+     * @param buffer array or null
+     */
+    public void release(final char[] buffer) {
+        chars.release(buffer);
+    }
+
+    /**
+     * Get a direct buffer of the given capacity
+     *
+     * @param size
+     * @return cleared buffer
+     */
+    public ByteBuffer direct(final int size) {
+        final ByteBuffer buffer = direct.acquire(size);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give a direct buffer back to the pool
+     *
+     * @param buffer buffer or null, heap buffers are ignored
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect())
+            direct.release(buffer);
+    }
+
+    /**
+     * Get an inflater for raw deflate data, as used inside the gzip and
+     * zlib formats
+     *
+     * @return inflater, reset
+     */
+    public Inflater inflater() {
+        return inflaters.acquire(0);
+    }
+
+    /**
+     * Give an inflater back to the pool, it is reset or, when the pool is
+     * full, ended
+     *
+     * @param inflater inflater from {@link #inflater()} or null
+     */
+    public void release(final Inflater inflater) {
+        if (inflater == null)
+            return;
+        inflater.reset();
+        inflaters.release(inflater);
+    }
+
+    /**
+     * @return number of buffers handed out from the pool
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of buffers that had to be allocated
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Buffers of one kind, keyed by size
+     */
+    private final class Kind<T> {
+
+        private final ThreadLocal<T> local = new ThreadLocal<>();
+
+        private final Map<Integer, Queue<T>> shared = new ConcurrentHashMap<>();
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        private final IntFunction<T> allocator;
+
+        private final ToIntFunction<T> size;
+
+        private final Consumer<T> discard;
+
+        private final boolean perThread;
+
+        private Kind(final IntFunction<T> allocator, final ToIntFunction<T> size, final Consumer<T> discard,
+                     final boolean perThread) {
+            this.allocator = allocator;
+            this.size = size;
+            this.discard = discard;
+            this.perThread = perThread;
+        }
+
+        private T acquire(final int length) {
+            if (useLocal()) {
+                final T cached = local.get();
+                if (cached != null && size.applyAsInt(cached) == length) {
+                    local.set(null);
+                    hits.incrementAndGet();
+                    return cached;
+                }
+            }
+            final Queue<T> queue  = shared.get(length);
+            final T        pooled = queue != null ? queue.poll() : null;
+            if (pooled != null) {
+                count.decrementAndGet();
+                hits.incrementAndGet();
+                return pooled;
+            }
+            misses.incrementAndGet();
+            return allocator.apply(length);
+        }
+
+        private void release(final T buffer) {
+            if (buffer == null)
+                return;
+            if (useLocal() && local.get() == null) {
+                local.set(buffer);
+                return;
+            }
+            if (count.incrementAndGet() > maxShared) {
+                count.decrementAndGet();
+                discard.accept(buffer);
+                return;
+            }
+            shared.computeIfAbsent(size.applyAsInt(buffer), key -> new ConcurrentLinkedQueue<>()).offer(buffer);
+        }
+
+        /**
+         * Virtual threads are not reused, a buffer parked in one of them
+         * would be lost with it
+         */
+        private boolean useLocal() {
+            return perThread && threadLocal && !DefaultExecutor.onVirtualThread();
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package io.github.biezhi.request;
+
+import java.util.List;
+import java.util.Locale;
+
+import static io.github.biezhi.request.Const.HEADER_CACHE_CONTROL;
+
+/**
+ * Directives of the 'Cache-Control' headers of a request or response.
+ * <p>
+ * Unknown directives are ignored, as is the shared cache only 's-maxage'.
+ * The RFC 5861 'stale-while-revalidate' and 'stale-if-error' extensions
+ * are supported. Durations are in seconds, -1 when absent.
+ */
+final class CacheControl {
+
+    boolean noStore;
+
+    boolean noCache;
+
+    boolean mustRevalidate;
+
+    boolean onlyIfCached;
+
+    long maxAge = -1;
+
+    long maxStale = -1;
+
+    long minFresh = -1;
+
+    long staleWhileRevalidate = -1;
+
+    long staleIfError = -1;
+
+    private CacheControl() {
+    }
+
+    /**
+     * Parse the 'Cache-Control' headers of the given headers
+     *
+     * @param headers
+     * @return directives
+     */
+    static CacheControl parse(final Headers headers) {
+        final CacheControl control = new CacheControl();
+        final List<String> values  = headers.values(HEADER_CACHE_CONTROL);
+        for (String value : values)
+            control.parse(value);
+        if (values.isEmpty() && headers.hasToken("Pragma", "no-cache"))
+            control.noCache = true;
+        return control;
+    }
+
+    private void parse(final String value) {
+        int start = 0;
+        while (start < value.length()) {
+            int end = start;
+            // Commas inside quoted values do not separate directives
+            boolean quoted = false;
+            while (end < value.length() && (quoted || value.charAt(end) != ',')) {
+                if (value.charAt(end) == '"')
+                    quoted = !quoted;
+                end++;
+            }
+            directive(value.substring(start, end).trim());
+            start = end + 1;
+        }
+    }
+
+    private void directive(final String directive) {
+        final int    equals = directive.indexOf('=');
+        final String name   = (equals == -1 ? directive : directive.substring(0, equals)).trim().toLowerCase(Locale.US);
+        final String value  = equals == -1 ? null : directive.substring(equals + 1).trim();
+        switch (name) {
+            case "no-store":
+                noStore = true;
+                break;
+            case "no-cache":
+                noCache = true;
+                break;
+            case "must-revalidate":
+            case "proxy-revalidate":
+                mustRevalidate = true;
+                break;
+            case "only-if-cached":
+                onlyIfCached = true;
+                break;
+            case "max-age":
+                maxAge = seconds(value, maxAge);
+                break;
+            case "max-stale":
+                // Without a value any staleness is acceptable
+                maxStale = value == null ? Long.MAX_VALUE : seconds(value, maxStale);
+                break;
+            case "min-fresh":
+                minFresh = seconds(value, minFresh);
+                break;
+            case "stale-while-revalidate":
+                staleWhileRevalidate = seconds(value, staleWhileRevalidate);
+                break;
+            case "stale-if-error":
+                staleIfError = seconds(value, staleIfError);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Parse a delta-seconds value, capping overflows as RFC 7234 asks
+     */
+    static long seconds(String value, final long fallback) {
+        if (value == null)
+            return fallback;
+        if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\""))
+            value = value.substring(1, value.length() - 1);
+        if (value.isEmpty())
+            return fallback;
+        for (int i = 0; i < value.length(); i++)
+            if (value.charAt(i) < '0' || value.charAt(i) > '9')
+                return fallback;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+}
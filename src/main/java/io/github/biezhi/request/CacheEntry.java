@@ -0,0 +1,323 @@
+package io.github.biezhi.request;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+import static io.github.biezhi.request.Const.*;
+
+/**
+ * Response stored by an {@link HttpCache}, along with the values of the
+ * request headers it varies on and the times it was requested and received
+ * at.
+ * <p>
+ * The body is held in memory, or in a file for responses stored by a
+ * {@link DiskCache}. Freshness and age are computed as in RFC 7234 section
+ * 4.2.
+ */
+final class CacheEntry {
+
+    /**
+     * Largest heuristic freshness lifetime given to responses that only
+     * carry a 'Last-Modified' date
+     */
+    private static final long MAX_HEURISTIC = 24 * 60 * 60 * 1000L;
+
+    private final String url;
+
+    private final Headers varying;
+
+    private final String protocol;
+
+    private final int code;
+
+    private final String message;
+
+    private final Headers headers;
+
+    private final byte[] body;
+
+    private final File file;
+
+    private final long length;
+
+    private final long requestTime;
+
+    private final long responseTime;
+
+    CacheEntry(final String url, final Headers varying, final String protocol, final int code,
+               final String message, final Headers headers, final byte[] body, final File file,
+               final long length, final long requestTime, final long responseTime) {
+        this.url = url;
+        this.varying = varying;
+        this.protocol = protocol;
+        this.code = code;
+        this.message = message;
+        this.headers = headers;
+        this.body = body;
+        this.file = file;
+        this.length = length;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+    }
+
+    /**
+     * Create entry for the given call and response
+     *
+     * @param call
+     * @param response
+     * @param body         body or null if only held in a file
+     * @param file         file holding the body or null if none
+     * @param length       length of the body
+     * @param requestTime
+     * @param responseTime
+     * @return entry
+     */
+    static CacheEntry of(final Call call, final Response response, final byte[] body, final File file,
+                         final long length, final long requestTime, final long responseTime) {
+        final Headers varying = new Headers();
+        for (String name : varyNames(response.headers()))
+            for (String value : call.headers().values(name))
+                varying.add(name, value);
+        return new CacheEntry(HttpCache.key(call.url()), varying, response.protocol(), response.code(),
+                response.message(), response.headers().copy(), body, file, length, requestTime, responseTime);
+    }
+
+    String url() {
+        return url;
+    }
+
+    Headers varying() {
+        return varying;
+    }
+
+    String protocol() {
+        return protocol;
+    }
+
+    int code() {
+        return code;
+    }
+
+    String message() {
+        return message;
+    }
+
+    Headers headers() {
+        return headers;
+    }
+
+    /**
+     * @return body or null if only held in a file
+     */
+    byte[] body() {
+        return body;
+    }
+
+    /**
+     * @return file holding the body or null if none
+     */
+    File file() {
+        return file;
+    }
+
+    long length() {
+        return length;
+    }
+
+    long requestTime() {
+        return requestTime;
+    }
+
+    long responseTime() {
+        return responseTime;
+    }
+
+    /**
+     * @return approximate number of bytes held by this entry
+     */
+    long size() {
+        long size = length + url.length();
+        for (int i = 0; i < headers.size(); i++)
+            size += headers.name(i).length() + headers.value(i).length() + 4;
+        return size;
+    }
+
+    /**
+     * Does the given call ask for the variant stored in this entry?
+     *
+     * @param call
+     * @return true if the headers named by 'Vary' have the same values
+     */
+    boolean matches(final Call call) {
+        for (String name : varyNames(headers))
+            if (!call.headers().values(name).equals(varying.values(name)))
+                return false;
+        return true;
+    }
+
+    /**
+     * Get the names of the request headers the given response varies on
+     *
+     * @param headers response headers
+     * @return names
+     */
+    static String[] varyNames(final Headers headers) {
+        final List<String> values = headers.values(HEADER_VARY);
+        if (values.isEmpty())
+            return EMPTY_STRINGS;
+        return String.join(",", values).trim().split("\\s*,\\s*");
+    }
+
+    /**
+     * Get the freshness lifetime of this entry
+     *
+     * @return lifetime in milliseconds
+     */
+    long lifetime() {
+        final CacheControl control = CacheControl.parse(headers);
+        if (control.maxAge >= 0)
+            return control.maxAge * 1000;
+        final long date    = date();
+        final long expires = time(headers.get(HEADER_EXPIRES));
+        if (headers.get(HEADER_EXPIRES) != null)
+            return expires > date ? expires - date : 0;
+        final long lastModified = time(headers.get(HEADER_LAST_MODIFIED));
+        if (lastModified > 0 && lastModified < date)
+            return Math.min((date - lastModified) / 10, MAX_HEURISTIC);
+        return 0;
+    }
+
+    /**
+     * Get the current age of this entry
+     *
+     * @param now
+     * @return age in milliseconds
+     */
+    long age(final long now) {
+        final long apparent = Math.max(0, responseTime - date());
+        final long received = CacheControl.seconds(headers.get(HEADER_AGE), 0) * 1000;
+        final long initial  = Math.max(apparent, received) + (responseTime - requestTime);
+        return initial + now - responseTime;
+    }
+
+    /**
+     * Can this entry be served without asking the server at the given time,
+     * as limited by the request's directives?
+     *
+     * @param now
+     * @param request
+     * @return true if fresh enough
+     */
+    boolean isFresh(final long now, final CacheControl request) {
+        final CacheControl control = CacheControl.parse(headers);
+        if (control.noCache || request.noCache)
+            return false;
+        long lifetime = lifetime();
+        if (request.maxAge >= 0)
+            lifetime = Math.min(lifetime, request.maxAge * 1000);
+        final long age = age(now) + Math.max(0, request.minFresh) * 1000;
+        if (age < lifetime)
+            return true;
+        // Clients may accept stale responses unless the server forbids it
+        return !control.mustRevalidate && request.maxStale > 0
+                && age - lifetime < Math.min(request.maxStale, Long.MAX_VALUE / 1000) * 1000;
+    }
+
+    /**
+     * Get how long this entry has been stale at the given time
+     *
+     * @param now
+     * @return milliseconds past its freshness lifetime, negative while fresh
+     */
+    long staleness(final long now) {
+        return age(now) - lifetime();
+    }
+
+    /**
+     * Does the server allow this entry to be served once stale? Responses
+     * with 'no-cache' or 'must-revalidate' must always be revalidated.
+     *
+     * @return true if allowed
+     */
+    boolean mayServeStale() {
+        final CacheControl control = CacheControl.parse(headers);
+        return !control.noCache && !control.mustRevalidate;
+    }
+
+    /**
+     * @return the 'Date' of the response, or the time it was received
+     */
+    private long date() {
+        final long date = time(headers.get(HEADER_DATE));
+        return date > 0 ? date : responseTime;
+    }
+
+    /**
+     * Create the entry updated by a '304 Not Modified' response
+     *
+     * @param notModified headers of the 304
+     * @param requestTime
+     * @param responseTime
+     * @return entry
+     */
+    CacheEntry revalidated(final Headers notModified, final long requestTime, final long responseTime) {
+        final Headers merged = headers.copy();
+        for (int i = 0; i < notModified.size(); i++)
+            if (isUpdatable(notModified.name(i)))
+                merged.remove(notModified.name(i));
+        for (int i = 0; i < notModified.size(); i++)
+            if (isUpdatable(notModified.name(i)))
+                merged.add(notModified.name(i), notModified.value(i));
+        return new CacheEntry(url, varying, protocol, code, message, merged, body, file, length,
+                requestTime, responseTime);
+    }
+
+    /**
+     * Headers describing the stored body are kept, as RFC 7232 section 4.1
+     * only lets a 304 update metadata
+     */
+    private static boolean isUpdatable(final String name) {
+        return name != null && !HEADER_CONTENT_LENGTH.equalsIgnoreCase(name)
+                && !HEADER_CONTENT_ENCODING.equalsIgnoreCase(name) && !"Transfer-Encoding".equalsIgnoreCase(name)
+                && !HEADER_CONTENT_RANGE.equalsIgnoreCase(name);
+    }
+
+    /**
+     * Create a response serving this entry at the given time
+     *
+     * @param now
+     * @return response
+     * @throws IOException if the file holding the body cannot be opened
+     */
+    Response toResponse(final long now) throws IOException {
+        final Headers     copy   = headers.copy().set(HEADER_AGE, Long.toString(age(now) / 1000));
+        final InputStream stream = body != null ? new ByteArrayInputStream(body)
+                : Channels.newInputStream(FileChannel.open(file.toPath()));
+        return new Response(protocol, code, message, copy, stream);
+    }
+
+    /**
+     * Parse an HTTP date
+     *
+     * @param value
+     * @return time in milliseconds or -1 if absent or invalid
+     */
+    static long time(final String value) {
+        if (value == null)
+            return -1;
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+}
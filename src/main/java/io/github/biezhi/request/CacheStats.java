@@ -0,0 +1,89 @@
+package io.github.biezhi.request;
+
+/**
+ * Point in time statistics of an {@link HttpCache}
+ */
+public final class CacheStats {
+
+    private final long hits;
+
+    private final long revalidations;
+
+    private final long stale;
+
+    private final long misses;
+
+    private final long evictions;
+
+    private final int entries;
+
+    private final long bytes;
+
+    CacheStats(final long hits, final long revalidations, final long stale, final long misses,
+               final long evictions, final int entries, final long bytes) {
+        this.hits = hits;
+        this.revalidations = revalidations;
+        this.stale = stale;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return number of responses served without contacting the server
+     */
+    public long hits() {
+        return hits;
+    }
+
+    /**
+     * @return number of stored responses confirmed by a '304 Not Modified'
+     */
+    public long revalidations() {
+        return revalidations;
+    }
+
+    /**
+     * @return number of stale responses served while revalidating or after
+     * the server failed
+     */
+    public long stale() {
+        return stale;
+    }
+
+    /**
+     * @return number of cacheable requests answered by the server
+     */
+    public long misses() {
+        return misses;
+    }
+
+    /**
+     * @return number of responses removed to stay within the size limit
+     */
+    public long evictions() {
+        return evictions;
+    }
+
+    /**
+     * @return number of stored responses
+     */
+    public int entries() {
+        return entries;
+    }
+
+    /**
+     * @return approximate size of the stored responses in bytes
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hits + ", revalidations=" + revalidations + ", stale=" + stale
+                + ", misses=" + misses + ", evictions=" + evictions + ", entries=" + entries + ", bytes=" + bytes + '}';
+    }
+
+}
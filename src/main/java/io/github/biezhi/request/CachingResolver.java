@@ -0,0 +1,357 @@
+package io.github.biezhi.request;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link Resolver} keeping lookups of another resolver in memory for a
+ * configurable time to live.
+ * <p>
+ * Entries that are used after most of their TTL has passed are refreshed in
+ * the background, so hot hosts never wait for DNS on the request path.
+ * Failed lookups are cached for a shorter negative TTL and concurrent
+ * lookups of the same host share one query. Static entries added with
+ * {@link #host(String, InetAddress...)} take precedence over DNS, for
+ * example to map test names to loopback:
+ * <pre>
+ * CachingResolver resolver = new CachingResolver()
+ *         .ttl(5, TimeUnit.MINUTES)
+ *         .host("api.test", InetAddress.getLoopbackAddress());
+ * RequestClient client = new RequestClient().resolver(resolver);
+ * </pre>
+ * The JVM's own address cache still applies beneath {@link Resolver#SYSTEM}.
+ */
+public class CachingResolver implements Resolver {
+
+    private final Resolver delegate;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Cached entries, least recently used first
+     */
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<String, List<InetAddress>> hosts = new ConcurrentHashMap<>();
+
+    private final Map<String, CompletableFuture<Entry>> lookups = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private volatile long ttl = TimeUnit.SECONDS.toNanos(60);
+
+    private volatile long negativeTtl = TimeUnit.SECONDS.toNanos(5);
+
+    private volatile double refreshAhead = 0.8;
+
+    private volatile int maxEntries = 4096;
+
+    private volatile Executor executor;
+
+    /**
+     * Create resolver caching {@link Resolver#SYSTEM} lookups for 60 seconds
+     * and failures for 5 seconds
+     */
+    public CachingResolver() {
+        this(Resolver.SYSTEM);
+    }
+
+    /**
+     * Create resolver caching lookups of the given resolver
+     *
+     * @param delegate
+     */
+    public CachingResolver(final Resolver delegate) {
+        if (delegate == null)
+            throw new IllegalArgumentException("Delegate must not be null");
+        this.delegate = delegate;
+    }
+
+    /**
+     * Set how long successful lookups are cached
+     *
+     * @param ttl
+     * @param unit
+     * @return this resolver
+     */
+    public CachingResolver ttl(final long ttl, final TimeUnit unit) {
+        this.ttl = unit.toNanos(ttl);
+        return this;
+    }
+
+    /**
+     * Set how long failed lookups are cached, 0 to not cache failures
+     *
+     * @param ttl
+     * @param unit
+     * @return this resolver
+     */
+    public CachingResolver negativeTtl(final long ttl, final TimeUnit unit) {
+        this.negativeTtl = unit.toNanos(ttl);
+        return this;
+    }
+
+    /**
+     * Set the fraction of the TTL after which a used entry is refreshed in
+     * the background, 1 to disable refreshing
+     *
+     * @param fraction between 0 and 1
+     * @return this resolver
+     */
+    public CachingResolver refreshAhead(final double fraction) {
+        if (fraction <= 0 || fraction > 1)
+            throw new IllegalArgumentException("Refresh ahead must be greater than 0 and at most 1");
+        this.refreshAhead = fraction;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of cached hosts, the least recently used are
+     * dropped once it is exceeded
+     *
+     * @param maxEntries
+     * @return this resolver
+     */
+    public CachingResolver maxEntries(final int maxEntries) {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("Max entries must be greater than zero");
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    /**
+     * Set the {@link Executor} background refreshes run on
+     *
+     * @param executor executor or null for the default one
+     * @return this resolver
+     */
+    public CachingResolver executor(final Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Always resolve the given host to the given addresses, no addresses
+     * removes the override
+     *
+     * @param host
+     * @param addresses
+     * @return this resolver
+     */
+    public CachingResolver host(final String host, final InetAddress... addresses) {
+        final String key = key(host);
+        if (addresses == null || addresses.length == 0)
+            hosts.remove(key);
+        else
+            hosts.put(key, Collections.unmodifiableList(Arrays.asList(addresses.clone())));
+        return this;
+    }
+
+    /**
+     * Drop the cached entry of the given host
+     *
+     * @param host
+     */
+    public void evict(final String host) {
+        lock.lock();
+        try {
+            cache.remove(key(host));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop all cached entries, static hosts are kept
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            cache.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups that had to wait for the delegate
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of background refreshes completed
+     */
+    public long refreshes() {
+        return refreshes.get();
+    }
+
+    private static final class Entry {
+
+        private final List<InetAddress> addresses;
+
+        private final String failure;
+
+        private final long expiresAt;
+
+        private final long refreshAt;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(final List<InetAddress> addresses, final String failure,
+                      final long expiresAt, final long refreshAt) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+
+        private List<InetAddress> get() throws UnknownHostException {
+            if (addresses == null)
+                throw new UnknownHostException(failure);
+            return addresses;
+        }
+    }
+
+    @Override
+    public List<InetAddress> resolve(final String host) throws UnknownHostException {
+        final String            key    = key(host);
+        final List<InetAddress> pinned = hosts.get(key);
+        if (pinned != null)
+            return pinned;
+
+        final Entry entry;
+        lock.lock();
+        try {
+            entry = cache.get(key);
+        } finally {
+            lock.unlock();
+        }
+        final long now = System.nanoTime();
+        if (entry != null && now - entry.expiresAt < 0) {
+            hits.incrementAndGet();
+            if (entry.addresses != null && now - entry.refreshAt >= 0 && entry.refreshing.compareAndSet(false, true))
+                refresh(key, entry);
+            return entry.get();
+        }
+        misses.incrementAndGet();
+        return lookup(key).get();
+    }
+
+    private static String key(final String host) {
+        return host.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Query the delegate, sharing the result with concurrent lookups of the
+     * same host
+     */
+    private Entry lookup(final String key) throws UnknownHostException {
+        final CompletableFuture<Entry> mine     = new CompletableFuture<>();
+        final CompletableFuture<Entry> existing = lookups.putIfAbsent(key, mine);
+        if (existing != null) {
+            try {
+                return existing.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UnknownHostException(key + ": interrupted");
+            } catch (ExecutionException e) {
+                throw new UnknownHostException(key + ": " + e.getCause());
+            }
+        }
+        try {
+            final Entry entry = load(key);
+            mine.complete(entry);
+            return entry;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            lookups.remove(key, mine);
+        }
+    }
+
+    private Entry load(final String key) {
+        Entry entry;
+        try {
+            entry = positive(delegate.resolve(key));
+        } catch (UnknownHostException e) {
+            final long negative = negativeTtl;
+            entry = new Entry(null, e.getMessage() != null ? e.getMessage() : key,
+                    System.nanoTime() + negative, Long.MAX_VALUE);
+            if (negative <= 0)
+                return entry;
+        }
+        store(key, entry);
+        return entry;
+    }
+
+    private Entry positive(final List<InetAddress> addresses) throws UnknownHostException {
+        if (addresses == null || addresses.isEmpty())
+            throw new UnknownHostException("No addresses");
+        final long now = System.nanoTime();
+        final long ttl = this.ttl;
+        return new Entry(Collections.unmodifiableList(addresses), null,
+                now + ttl, now + (long) (ttl * refreshAhead));
+    }
+
+    private void store(final String key, final Entry entry) {
+        lock.lock();
+        try {
+            cache.put(key, entry);
+            final Iterator<Entry> eldest = cache.values().iterator();
+            while (cache.size() > maxEntries) {
+                eldest.next();
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refresh(final String key, final Entry stale) {
+        final Executor executor = this.executor != null ? this.executor : DefaultExecutor.get();
+        try {
+            executor.execute(() -> {
+                try {
+                    store(key, positive(delegate.resolve(key)));
+                    refreshes.incrementAndGet();
+                } catch (UnknownHostException | RuntimeException e) {
+                    // Keep serving the current addresses until they expire
+                    stale.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stale.refreshing.set(false);
+        }
+    }
+
+}
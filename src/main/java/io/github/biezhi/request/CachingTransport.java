@@ -0,0 +1,407 @@
+package io.github.biezhi.request;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static io.github.biezhi.request.Const.*;
+
+/**
+ * {@link Transport} that serves 'GET' requests from an {@link HttpCache}
+ * following RFC 7234 as a private cache:
+ * <ul>
+ * <li>fresh responses are served without contacting the server</li>
+ * <li>stale responses with an 'ETag' or 'Last-Modified' validator are
+ * revalidated with a conditional request and served again on a
+ * '304 Not Modified'</li>
+ * <li>responses are stored once their body has been read to the end, a body
+ * closed early is not stored</li>
+ * <li>successful unsafe requests, such as 'POST', remove the stored
+ * responses of their URL and 'Location'</li>
+ * </ul>
+ * Stale responses are served while they are revalidated in the background
+ * within their 'stale-while-revalidate' window, and instead of a 5xx status
+ * or I/O error within their 'stale-if-error' window, unless the response
+ * has 'no-cache' or 'must-revalidate'.
+ * <p>
+ * Requests with their own conditional or 'Range' headers are passed through
+ * unchanged, as are requests with 'Cache-Control: no-store'. A request with
+ * 'Cache-Control: only-if-cached' that cannot be served from the cache gets
+ * a '504 Gateway Timeout'.
+ */
+public class CachingTransport extends ForwardingTransport {
+
+    private static final String WARNING_STALE = "110 - \"Response is Stale\"";
+
+    private static final String WARNING_REVALIDATION_FAILED = "111 - \"Revalidation Failed\"";
+
+    private final HttpCache cache;
+
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    private volatile long staleWhileRevalidate = -1;
+
+    private volatile long staleIfError = -1;
+
+    private volatile Executor executor;
+
+    /**
+     * Create transport serving responses of the given transport from the
+     * given cache
+     *
+     * @param delegate
+     * @param cache
+     */
+    public CachingTransport(final Transport delegate, final HttpCache cache) {
+        super(delegate);
+        if (cache == null)
+            throw new IllegalArgumentException("Cache must not be null");
+        this.cache = cache;
+    }
+
+    /**
+     * @return cache responses are stored in
+     */
+    public HttpCache cache() {
+        return cache;
+    }
+
+    /**
+     * Set how long after going stale a response is still served while it is
+     * revalidated in the background, replacing the 'stale-while-revalidate'
+     * directive of responses
+     *
+     * @param duration duration or a negative value to follow the directive
+     * @param unit
+     * @return this transport
+     */
+    public CachingTransport staleWhileRevalidate(final long duration, final TimeUnit unit) {
+        this.staleWhileRevalidate = duration < 0 ? -1 : unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Set how long after going stale a response is still served when the
+     * server fails with a 5xx status or an I/O error such as a timeout,
+     * replacing the 'stale-if-error' directive of requests and responses
+     *
+     * @param duration duration or a negative value to follow the directives
+     * @param unit
+     * @return this transport
+     */
+    public CachingTransport staleIfError(final long duration, final TimeUnit unit) {
+        this.staleIfError = duration < 0 ? -1 : unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Set the {@link Executor} background revalidations run on
+     *
+     * @param executor executor or null for the default one
+     * @return this transport
+     */
+    public CachingTransport executor(final Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    @Override
+    public Response execute(final Call call) throws IOException {
+        final String method = call.method();
+        if (!METHOD_GET.equals(method)) {
+            if (METHOD_HEAD.equals(method) || METHOD_OPTIONS.equals(method) || METHOD_TRACE.equals(method))
+                return super.execute(call);
+            final Response response = super.execute(call);
+            if (response.code() < 400)
+                invalidate(call, response);
+            return response;
+        }
+        final Headers headers = call.headers();
+        if (headers.get(HEADER_RANGE) != null || headers.get(HEADER_IF_NONE_MATCH) != null
+                || headers.get(HEADER_IF_MODIFIED_SINCE) != null)
+            return super.execute(call);
+        final CacheControl control = CacheControl.parse(headers);
+        if (control.noStore)
+            return super.execute(call);
+
+        final long requestTime = System.currentTimeMillis();
+        CacheEntry entry = cache.get(call);
+        if (entry != null && entry.isFresh(requestTime, control)) {
+            final Response cached = serve(entry, requestTime);
+            if (cached != null) {
+                cache.hit();
+                return cached;
+            }
+            entry = null;
+        }
+        if (entry != null && control.maxAge < 0 && !control.noCache && entry.mayServeStale()) {
+            final long window = window(staleWhileRevalidate,
+                    CacheControl.parse(entry.headers()).staleWhileRevalidate, -1);
+            if (window >= 0 && entry.staleness(requestTime) < window) {
+                final Response stale = serve(entry, requestTime);
+                if (stale != null) {
+                    stale.headers().add(HEADER_WARNING, WARNING_STALE);
+                    cache.stale();
+                    refresh(call, entry);
+                    return stale;
+                }
+            }
+        }
+        if (control.onlyIfCached) {
+            cache.miss();
+            return new Response("HTTP/1.1", 504, "Gateway Timeout", null, null);
+        }
+
+        final Response response;
+        try {
+            response = fetch(call, entry, requestTime);
+        } catch (IOException e) {
+            final Response stale = staleIfError(entry, control);
+            if (stale != null)
+                return stale;
+            throw e;
+        }
+        if (response.code() >= 500) {
+            final Response stale = staleIfError(entry, control);
+            if (stale != null) {
+                response.close();
+                return stale;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Send the call, revalidating the given stored response if any
+     *
+     * @return response from the server or the cache
+     */
+    private Response fetch(final Call call, final CacheEntry entry, final long requestTime) throws IOException {
+        final Response response     = super.execute(conditional(call, entry));
+        final long     responseTime = System.currentTimeMillis();
+        if (response.code() == 304 && entry != null) {
+            response.close();
+            final CacheEntry updated = entry.revalidated(response.headers(), requestTime, responseTime);
+            final Response   cached  = serve(updated, responseTime);
+            if (cached != null) {
+                cache.put(call, updated);
+                cache.revalidated();
+                return cached;
+            }
+            // The stored body is gone, ask again without validators
+            cache.remove(call.url());
+            return fetch(call, null, requestTime);
+        }
+        cache.miss();
+        if (!isStorable(response))
+            return response;
+        return new Response(response.protocol(), response.code(), response.message(), response.headers(),
+                new CapturingInputStream(response.body(), cache.writer(call, response, requestTime, responseTime)));
+    }
+
+    /**
+     * Get a stale-serving window in milliseconds, the configured one
+     * replacing the directives
+     *
+     * @return window or -1 if stale responses must not be served
+     */
+    private static long window(final long configured, final long response, final long request) {
+        if (configured >= 0)
+            return configured;
+        final long seconds = Math.max(response, request);
+        return seconds >= 0 ? Math.min(seconds, Long.MAX_VALUE / 1000) * 1000 : -1;
+    }
+
+    /**
+     * Serve the given entry after the server failed, if its stale-if-error
+     * window allows
+     *
+     * @return response or null if none
+     */
+    private Response staleIfError(final CacheEntry entry, final CacheControl request) {
+        if (entry == null || !entry.mayServeStale())
+            return null;
+        final long now    = System.currentTimeMillis();
+        final long window = window(staleIfError, CacheControl.parse(entry.headers()).staleIfError,
+                request.staleIfError);
+        if (window < 0 || entry.staleness(now) >= window)
+            return null;
+        final Response stale = serve(entry, now);
+        if (stale != null) {
+            stale.headers().add(HEADER_WARNING, WARNING_REVALIDATION_FAILED);
+            cache.stale();
+        }
+        return stale;
+    }
+
+    /**
+     * Revalidate the given stale entry in the background, once per URL at a
+     * time
+     */
+    private void refresh(final Call call, final CacheEntry stale) {
+        final String key = HttpCache.key(call.url());
+        if (!refreshing.add(key))
+            return;
+        // A refresh that completed since the stale entry was read stored a
+        // newer response already
+        final CacheEntry current = cache.get(call);
+        if (current != null && current.responseTime() > stale.responseTime()) {
+            refreshing.remove(key);
+            return;
+        }
+        final Executor executor = this.executor != null ? this.executor : DefaultExecutor.get();
+        try {
+            executor.execute(() -> {
+                try (Response response = fetch(call, stale, System.currentTimeMillis())) {
+                    // Reading the body to the end stores it
+                    final InputStream body   = response.body();
+                    final byte[]      buffer = new byte[8192];
+                    while (body.read(buffer) != -1) {
+                        // Drained
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // The stale response is served until the next refresh
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(key);
+        }
+    }
+
+    /**
+     * Create response from the given entry
+     *
+     * @return response or null if the body of the entry was evicted from disk
+     */
+    private static Response serve(final CacheEntry entry, final long now) {
+        try {
+            return entry.toResponse(now);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Add the validators of the given stored response to the call
+     */
+    private static Call conditional(final Call call, final CacheEntry entry) {
+        if (entry == null)
+            return call;
+        final String etag         = entry.headers().get(HEADER_ETAG);
+        final String lastModified = entry.headers().get(HEADER_LAST_MODIFIED);
+        Call conditional = call;
+        if (etag != null)
+            conditional = conditional.withHeader(HEADER_IF_NONE_MATCH, etag);
+        if (lastModified != null)
+            conditional = conditional.withHeader(HEADER_IF_MODIFIED_SINCE, lastModified);
+        return conditional;
+    }
+
+    private boolean isStorable(final Response response) {
+        switch (response.code()) {
+            case 200:
+            case 203:
+            case 300:
+            case 301:
+            case 404:
+            case 410:
+                break;
+            default:
+                return false;
+        }
+        final Headers      headers = response.headers();
+        final CacheControl control = CacheControl.parse(headers);
+        if (control.noStore)
+            return false;
+        for (String name : CacheEntry.varyNames(headers))
+            if ("*".equals(name))
+                return false;
+        if (!cache.accepts(CacheControl.seconds(headers.get(HEADER_CONTENT_LENGTH), -1)))
+            return false;
+        return control.maxAge >= 0 || headers.get(HEADER_EXPIRES) != null
+                || headers.get(HEADER_ETAG) != null || headers.get(HEADER_LAST_MODIFIED) != null;
+    }
+
+    private void invalidate(final Call call, final Response response) {
+        cache.remove(call.url());
+        final String location = response.header(HEADER_LOCATION);
+        if (location == null)
+            return;
+        try {
+            final URL target = new URL(call.url(), location);
+            // Only the origin of the request can invalidate its responses
+            if (target.getHost().equalsIgnoreCase(call.host()))
+                cache.remove(target);
+        } catch (MalformedURLException ignored) {
+            // Ignored
+        }
+    }
+
+    /**
+     * Hands the body to a cache writer as it is read and stores the response
+     * once the end of the body is reached
+     */
+    private static class CapturingInputStream extends FilterInputStream {
+
+        private HttpCache.Writer writer;
+
+        CapturingInputStream(final InputStream input, final HttpCache.Writer writer) {
+            super(input);
+            this.writer = writer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] one  = new byte[1];
+            final int    read = read(one, 0, 1);
+            return read == 1 ? one[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (writer == null)
+                return read;
+            if (read == -1) {
+                writer.commit();
+                writer = null;
+            } else if (read > 0) {
+                writer.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            // Skipped bytes are read so the copy stays complete
+            final byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+            final int    read   = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (writer != null) {
+                writer.abort();
+                writer = null;
+            }
+            super.close();
+        }
+
+    }
+
+}
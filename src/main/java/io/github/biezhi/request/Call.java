@@ -0,0 +1,137 @@
+package io.github.biezhi.request;
+
+import java.net.URL;
+
+/**
+ * A single HTTP request as handed to a {@link Transport}: method, target,
+ * headers, body and timeouts.
+ * <p>
+ * Instances are immutable, the <code>with*</code> methods return modified
+ * copies which is what redirects and retries use.
+ */
+public final class Call {
+
+    private final String method;
+
+    private final URL url;
+
+    private final Headers headers;
+
+    private final RequestBody body;
+
+    private final int connectTimeout;
+
+    private final int readTimeout;
+
+    /**
+     * Create call
+     *
+     * @param method
+     * @param url
+     * @param headers
+     * @param body           body or null if none
+     * @param connectTimeout connect timeout in milliseconds, 0 for infinite
+     * @param readTimeout    read timeout in milliseconds, 0 for infinite
+     */
+    public Call(final String method, final URL url, final Headers headers,
+                final RequestBody body, final int connectTimeout, final int readTimeout) {
+        this.method = method;
+        this.url = url;
+        this.headers = headers != null ? headers : new Headers();
+        this.body = body;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    public String method() {
+        return method;
+    }
+
+    public URL url() {
+        return url;
+    }
+
+    /**
+     * Get the request headers
+     * <p>
+     * The returned object must not be modified, use
+     * {@link #withHeader(String, String)} instead.
+     *
+     * @return headers
+     */
+    public Headers headers() {
+        return headers;
+    }
+
+    public String header(final String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Get request body
+     *
+     * @return body or null if none
+     */
+    public RequestBody body() {
+        return body;
+    }
+
+    public int connectTimeout() {
+        return connectTimeout;
+    }
+
+    public int readTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Get the host of the request URL
+     *
+     * @return host
+     */
+    public String host() {
+        return url.getHost();
+    }
+
+    /**
+     * Get the port of the request URL falling back to the protocol default
+     *
+     * @return port
+     */
+    public int port() {
+        final int port = url.getPort();
+        return port != -1 ? port : url.getDefaultPort();
+    }
+
+    /**
+     * Get the 'host:port' pair this call is sent to
+     *
+     * @return authority
+     */
+    public String authority() {
+        return host() + ':' + port();
+    }
+
+    public Call withUrl(final URL url) {
+        return new Call(method, url, headers, body, connectTimeout, readTimeout);
+    }
+
+    public Call withMethod(final String method, final RequestBody body) {
+        return new Call(method, url, headers, body, connectTimeout, readTimeout);
+    }
+
+    public Call withHeader(final String name, final String value) {
+        final Headers copy = headers.copy();
+        if (value != null)
+            copy.set(name, value);
+        else
+            copy.remove(name);
+        return new Call(method, url, copy, body, connectTimeout, readTimeout);
+    }
+
+    @Override
+    public String toString() {
+        return method + ' ' + url;
+    }
+
+}
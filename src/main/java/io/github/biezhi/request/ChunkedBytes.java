@@ -0,0 +1,102 @@
+package io.github.biezhi.request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Response body read into memory as a list of chunks.
+ * <p>
+ * A body of known length up to {@link #MAX_EXACT} bytes is read into a single
+ * array of exactly that size which {@link #toByteArray()} returns as is.
+ * Otherwise chunks double in size up to {@link #MAX_CHUNK} and are only joined
+ * once when an array is asked for, so a Content-Length the server never sends
+ * can't allocate more than that up front.
+ */
+final class ChunkedBytes {
+
+    private static final int FIRST_CHUNK = 8192;
+
+    private static final int MAX_CHUNK = 1024 * 1024;
+
+    private static final int MAX_EXACT = 16 * 1024 * 1024;
+
+    private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+
+    private byte[] last;
+
+    private int count;
+
+    private long size;
+
+    private ChunkedBytes() {
+    }
+
+    /**
+     * Read the given stream to its end
+     *
+     * @param input
+     * @param expected expected number of bytes or -1 if unknown
+     * @return bytes
+     * @throws IOException
+     */
+    static ChunkedBytes read(final InputStream input, final long expected) throws IOException {
+        final ChunkedBytes bytes = new ChunkedBytes();
+        byte[]             chunk = new byte[expected >= 0 && expected <= MAX_EXACT ? (int) expected : FIRST_CHUNK];
+        int                count = 0;
+        while (true) {
+            if (count == chunk.length) {
+                // Full, only start another chunk if there is more
+                final int next = input.read();
+                if (next == -1)
+                    break;
+                if (chunk.length > 0)
+                    bytes.chunks.add(chunk);
+                chunk = new byte[Math.max(FIRST_CHUNK, Math.min(chunk.length * 2, MAX_CHUNK))];
+                chunk[0] = (byte) next;
+                count = 1;
+                bytes.size++;
+            }
+            final int read = input.read(chunk, count, chunk.length - count);
+            if (read == -1)
+                break;
+            count += read;
+            bytes.size += read;
+        }
+        bytes.last = chunk;
+        bytes.count = count;
+        return bytes;
+    }
+
+    /**
+     * @return number of bytes
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Get the bytes as one array, without copying when they were read into
+     * a single array of exactly the right size
+     *
+     * @return array
+     */
+    byte[] toByteArray() {
+        if (chunks.isEmpty() && count == last.length)
+            return last;
+        if (size > MAX_ARRAY)
+            throw new OutOfMemoryError("Body of " + size + " bytes does not fit in an array");
+        final byte[] array  = new byte[(int) size];
+        int          offset = 0;
+        for (byte[] chunk : chunks) {
+            System.arraycopy(chunk, 0, array, offset, chunk.length);
+            offset += chunk.length;
+        }
+        System.arraycopy(last, 0, array, offset, count);
+        return array;
+    }
+
+}
@@ -0,0 +1,267 @@
+package io.github.biezhi.request;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Circuit breaker of a single host of a {@link CircuitBreakerTransport}.
+ * <p>
+ * While {@link State#CLOSED} the outcome of the last calls is kept in a
+ * sliding window. Once the window holds enough calls and the share that
+ * failed, or that were slow, reaches its threshold the circuit opens and
+ * calls fail at once with a {@link CircuitOpenException}. After the open
+ * duration the circuit is {@link State#HALF_OPEN} and lets a few trial calls
+ * through: it closes again if they succeed and opens again otherwise.
+ */
+public final class CircuitBreaker {
+
+    /**
+     * States of a circuit
+     */
+    public enum State {
+        /**
+         * Calls are sent and their outcome recorded
+         */
+        CLOSED,
+        /**
+         * Calls fail without being sent
+         */
+        OPEN,
+        /**
+         * A limited number of trial calls are sent
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Receives the state transitions of circuits
+     */
+    public interface Listener {
+
+        /**
+         * Callback invoked after a circuit changed state, on the thread whose
+         * call caused the change. Exceptions thrown are ignored.
+         *
+         * @param breaker
+         * @param from
+         * @param to
+         */
+        void onStateChange(CircuitBreaker breaker, State from, State to);
+    }
+
+    private final String host;
+
+    private final CircuitBreakerTransport config;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Outcomes of the last calls, {@link #FAILED} and {@link #SLOW} bits
+     */
+    private final byte[] window;
+
+    private static final byte FAILED = 1;
+
+    private static final byte SLOW = 2;
+
+    private int recorded;
+
+    private int next;
+
+    private int failures;
+
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+
+    /**
+     * Incremented on every transition so calls started in an earlier state
+     * are not recorded in the new one
+     */
+    private long generation;
+
+    private long openedAt;
+
+    private int trials;
+
+    CircuitBreaker(final String host, final CircuitBreakerTransport config) {
+        this.host = host;
+        this.config = config;
+        this.window = new byte[config.windowSize()];
+    }
+
+    /**
+     * @return 'host:port' of this circuit
+     */
+    public String host() {
+        return host;
+    }
+
+    /**
+     * Get the current state, an open circuit stays {@link State#OPEN} past
+     * the open duration until the next call arrives
+     *
+     * @return state
+     */
+    public State state() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return share of the calls in the window that failed, between 0 and 1
+     */
+    public double failureRate() {
+        lock.lock();
+        try {
+            return recorded > 0 ? (double) failures / recorded : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return share of the calls in the window that were slow, between 0
+     * and 1
+     */
+    public double slowCallRate() {
+        lock.lock();
+        try {
+            return recorded > 0 ? (double) slowCalls / recorded : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ask to send a call
+     *
+     * @return generation to pass to {@link #record(long, boolean, long)}
+     * @throws CircuitOpenException if the call must not be sent
+     */
+    long acquire() throws CircuitOpenException {
+        State      from = null;
+        final long acquired;
+        lock.lock();
+        try {
+            if (state == State.OPEN) {
+                final long remaining = config.openMillis()
+                        - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - openedAt);
+                if (remaining > 0)
+                    throw new CircuitOpenException(host, remaining);
+                from = transition(State.HALF_OPEN);
+            }
+            if (state == State.HALF_OPEN && trials >= config.halfOpenCalls())
+                throw new CircuitOpenException(host, 0);
+            trials++;
+            acquired = generation;
+        } finally {
+            lock.unlock();
+        }
+        if (from != null)
+            config.stateChanged(this, from, State.HALF_OPEN);
+        return acquired;
+    }
+
+    /**
+     * Record the outcome of a call
+     *
+     * @param generation value returned by {@link #acquire()}
+     * @param failed
+     * @param nanos      time taken to receive the response headers
+     */
+    void record(final long generation, final boolean failed, final long nanos) {
+        final byte outcome = (byte) ((failed ? FAILED : 0)
+                | (nanos >= TimeUnit.MILLISECONDS.toNanos(config.slowCallMillis()) ? SLOW : 0));
+        State from = null;
+        State to   = null;
+        lock.lock();
+        try {
+            if (generation != this.generation)
+                return;
+            add(outcome);
+            if (state == State.HALF_OPEN) {
+                if (recorded < Math.min(config.halfOpenCalls(), window.length))
+                    return;
+                to = exceeded() ? State.OPEN : State.CLOSED;
+            } else if (recorded >= config.minimumCalls() && exceeded()) {
+                to = State.OPEN;
+            } else {
+                return;
+            }
+            from = transition(to);
+        } finally {
+            lock.unlock();
+        }
+        config.stateChanged(this, from, to);
+    }
+
+    private boolean exceeded() {
+        return failures >= config.failureRate() * recorded || slowCalls >= config.slowCallRate() * recorded;
+    }
+
+    private void add(final byte outcome) {
+        if (recorded == window.length) {
+            final byte evicted = window[next];
+            if ((evicted & FAILED) != 0)
+                failures--;
+            if ((evicted & SLOW) != 0)
+                slowCalls--;
+        } else {
+            recorded++;
+        }
+        window[next] = outcome;
+        next = (next + 1) % window.length;
+        if ((outcome & FAILED) != 0)
+            failures++;
+        if ((outcome & SLOW) != 0)
+            slowCalls++;
+    }
+
+    /**
+     * Move to the given state and start a new window, called holding the
+     * lock
+     *
+     * @return previous state
+     */
+    private State transition(final State to) {
+        final State from = state;
+        state = to;
+        generation++;
+        recorded = next = failures = slowCalls = trials = 0;
+        if (to == State.OPEN)
+            openedAt = System.nanoTime();
+        return from;
+    }
+
+    /**
+     * Force the circuit closed, forgetting the recorded calls
+     */
+    public void reset() {
+        State from;
+        lock.lock();
+        try {
+            from = transition(State.CLOSED);
+        } finally {
+            lock.unlock();
+        }
+        if (from != State.CLOSED)
+            config.stateChanged(this, from, State.CLOSED);
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "CircuitBreaker{host=" + host + ", state=" + state + ", calls=" + recorded
+                    + ", failures=" + failures + ", slowCalls=" + slowCalls + '}';
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
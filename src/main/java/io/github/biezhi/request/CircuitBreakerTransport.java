@@ -0,0 +1,228 @@
+package io.github.biezhi.request;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Transport} that keeps a {@link CircuitBreaker} per host and fails
+ * calls to a host at once, with a {@link CircuitOpenException}, while its
+ * circuit is open, instead of waiting for connect and read timeouts.
+ * <p>
+ * Calls that throw an {@link IOException} or receive a 5xx response count
+ * as failed, and calls whose response headers take longer than the slow
+ * call duration count as slow. By default a circuit opens when half of the
+ * last 100 calls failed, or all of them took a minute or more, once at
+ * least 20 were made. It stays open for 30 seconds and then lets 5 trial calls through:
+ * <pre>
+ * CircuitBreakerTransport transport = new CircuitBreakerTransport(new NioTransport())
+ *         .window(50, 10)
+ *         .failureRate(0.5)
+ *         .slowCall(2, TimeUnit.SECONDS, 0.8)
+ *         .openDuration(10, TimeUnit.SECONDS)
+ *         .listener((breaker, from, to) -&gt; log.warn("{}: {} -&gt; {}", breaker.host(), from, to));
+ * </pre>
+ * Redirects are followed by the client one call at a time, so each host is
+ * tracked by its own circuit.
+ */
+public class CircuitBreakerTransport extends ForwardingTransport {
+
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private final List<CircuitBreaker.Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile int windowSize = 100;
+
+    private volatile int minimumCalls = 20;
+
+    private volatile double failureRate = 0.5;
+
+    private volatile long slowCallMillis = 60000;
+
+    private volatile double slowCallRate = 1;
+
+    private volatile long openMillis = 30000;
+
+    private volatile int halfOpenCalls = 5;
+
+    /**
+     * Create transport breaking circuits of calls to the given transport
+     *
+     * @param delegate
+     */
+    public CircuitBreakerTransport(final Transport delegate) {
+        super(delegate);
+    }
+
+    /**
+     * Set the number of last calls whose outcome is kept, and the number a
+     * circuit needs before it can open. Applies to circuits created
+     * afterwards.
+     *
+     * @param size
+     * @param minimumCalls
+     * @return this transport
+     */
+    public CircuitBreakerTransport window(final int size, final int minimumCalls) {
+        if (size < 1 || minimumCalls < 1 || minimumCalls > size)
+            throw new IllegalArgumentException("Window must satisfy 1 <= minimum calls <= size");
+        this.windowSize = size;
+        this.minimumCalls = minimumCalls;
+        return this;
+    }
+
+    /**
+     * Set the share of failed calls that opens a circuit
+     *
+     * @param rate between 0 exclusive and 1
+     * @return this transport
+     */
+    public CircuitBreakerTransport failureRate(final double rate) {
+        if (rate <= 0 || rate > 1)
+            throw new IllegalArgumentException("Rate must be greater than 0 and at most 1");
+        this.failureRate = rate;
+        return this;
+    }
+
+    /**
+     * Set the time to response headers from which calls are slow, and the
+     * share of slow calls that opens a circuit
+     *
+     * @param duration
+     * @param unit
+     * @param rate     between 0 exclusive and 1
+     * @return this transport
+     */
+    public CircuitBreakerTransport slowCall(final long duration, final TimeUnit unit, final double rate) {
+        if (duration < 0)
+            throw new IllegalArgumentException("Duration must not be negative");
+        if (rate <= 0 || rate > 1)
+            throw new IllegalArgumentException("Rate must be greater than 0 and at most 1");
+        this.slowCallMillis = unit.toMillis(duration);
+        this.slowCallRate = rate;
+        return this;
+    }
+
+    /**
+     * Set how long an open circuit fails calls before letting trial calls
+     * through
+     *
+     * @param duration
+     * @param unit
+     * @return this transport
+     */
+    public CircuitBreakerTransport openDuration(final long duration, final TimeUnit unit) {
+        if (duration < 0)
+            throw new IllegalArgumentException("Duration must not be negative");
+        this.openMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Set the number of trial calls of a half-open circuit
+     *
+     * @param calls
+     * @return this transport
+     */
+    public CircuitBreakerTransport halfOpenCalls(final int calls) {
+        if (calls < 1)
+            throw new IllegalArgumentException("Calls must be greater than zero");
+        this.halfOpenCalls = calls;
+        return this;
+    }
+
+    /**
+     * Add a listener notified of the state transitions of every circuit
+     *
+     * @param listener
+     * @return this transport
+     */
+    public CircuitBreakerTransport listener(final CircuitBreaker.Listener listener) {
+        if (listener == null)
+            throw new IllegalArgumentException("Listener must not be null");
+        listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * Get the circuit of the given host
+     *
+     * @param host 'host:port'
+     * @return circuit or null if no call was made to the host
+     */
+    public CircuitBreaker breaker(final String host) {
+        return breakers.get(host);
+    }
+
+    /**
+     * @return circuits of the hosts called so far
+     */
+    public Collection<CircuitBreaker> breakers() {
+        return new ArrayList<>(breakers.values());
+    }
+
+    int windowSize() {
+        return windowSize;
+    }
+
+    int minimumCalls() {
+        return minimumCalls;
+    }
+
+    double failureRate() {
+        return failureRate;
+    }
+
+    long slowCallMillis() {
+        return slowCallMillis;
+    }
+
+    double slowCallRate() {
+        return slowCallRate;
+    }
+
+    long openMillis() {
+        return openMillis;
+    }
+
+    int halfOpenCalls() {
+        return halfOpenCalls;
+    }
+
+    void stateChanged(final CircuitBreaker breaker, final CircuitBreaker.State from, final CircuitBreaker.State to) {
+        for (CircuitBreaker.Listener listener : listeners)
+            try {
+                listener.onStateChange(breaker, from, to);
+            } catch (RuntimeException ignored) {
+                // Must not fail the call that changed the state, whose
+                // response would be lost with its connection
+            }
+    }
+
+    @Override
+    public Response execute(final Call call) throws IOException {
+        final CircuitBreaker breaker    = breakers.computeIfAbsent(call.authority(), host -> new CircuitBreaker(host, this));
+        final long           generation = breaker.acquire();
+        final long           start      = System.nanoTime();
+        Response             response   = null;
+        try {
+            response = super.execute(call);
+        } finally {
+            if (response == null)
+                breaker.record(generation, true, System.nanoTime() - start);
+        }
+        breaker.record(generation, response.code() >= 500, System.nanoTime() - start);
+        return response;
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreakerTransport{breakers=" + breakers.values() + '}';
+    }
+
+}
@@ -0,0 +1,44 @@
+package io.github.biezhi.request;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown without contacting the server when the
+ * {@link CircuitBreaker} of its host is open
+ */
+public class CircuitOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String host;
+
+    private final long retryAfter;
+
+    /**
+     * Create exception for the given host
+     *
+     * @param host       'host:port' of the open circuit
+     * @param retryAfter milliseconds until calls are let through again
+     */
+    public CircuitOpenException(final String host, final long retryAfter) {
+        super("Circuit open for " + host + ", retry after " + retryAfter + " ms");
+        this.host = host;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return 'host:port' of the open circuit
+     */
+    public String host() {
+        return host;
+    }
+
+    /**
+     * @return milliseconds until the circuit lets trial calls through, 0 if
+     * all trial calls are in flight
+     */
+    public long retryAfter() {
+        return retryAfter;
+    }
+
+}
@@ -0,0 +1,203 @@
+package io.github.biezhi.request;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.github.biezhi.request.Const.METHOD_GET;
+import static io.github.biezhi.request.Const.METHOD_HEAD;
+
+/**
+ * {@link Transport} that lets concurrent identical 'GET' and 'HEAD' calls
+ * share one call to the server.
+ * <p>
+ * Calls are identical when their method, URL and request headers are the
+ * same. The first call is sent and its body read into memory once, calls
+ * made while it is in flight wait for it and get their own stream over the
+ * same bytes. Calls that arrive after the body has been read are sent
+ * again, so nothing is cached:
+ * <pre>
+ * RequestClient client = new RequestClient(new CoalescingTransport(new NioTransport()));
+ * </pre>
+ * Bodies larger than {@link #maxBodyBytes(int)} are streamed to the first
+ * caller and the waiting calls are sent on their own.
+ */
+public class CoalescingTransport extends ForwardingTransport {
+
+    private final Map<String, CompletableFuture<Shared>> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong saved = new AtomicLong();
+
+    private volatile int maxBodyBytes = 1024 * 1024;
+
+    /**
+     * Create transport coalescing calls to the given transport
+     *
+     * @param delegate
+     */
+    public CoalescingTransport(final Transport delegate) {
+        super(delegate);
+    }
+
+    /**
+     * Set the largest body shared between calls, 1 MiB by default
+     *
+     * @param maxBodyBytes
+     * @return this transport
+     */
+    public CoalescingTransport maxBodyBytes(final int maxBodyBytes) {
+        if (maxBodyBytes < 0)
+            throw new IllegalArgumentException("Max body bytes must not be negative");
+        this.maxBodyBytes = maxBodyBytes;
+        return this;
+    }
+
+    /**
+     * @return number of coalescable calls sent to the server
+     */
+    public long sent() {
+        return sent.get();
+    }
+
+    /**
+     * @return number of calls answered by another call in flight
+     */
+    public long saved() {
+        return saved.get();
+    }
+
+    /**
+     * @return number of calls currently in flight
+     */
+    public int inFlight() {
+        return flights.size();
+    }
+
+    @Override
+    public Response execute(final Call call) throws IOException {
+        if (!METHOD_GET.equals(call.method()) && !METHOD_HEAD.equals(call.method()) || call.body() != null)
+            return super.execute(call);
+        final String                    key      = key(call);
+        final CompletableFuture<Shared> mine     = new CompletableFuture<>();
+        final CompletableFuture<Shared> existing = flights.putIfAbsent(key, mine);
+        if (existing != null) {
+            final Shared shared = await(existing);
+            if (shared != null) {
+                saved.incrementAndGet();
+                return shared.response();
+            }
+            // Too large to share
+            sent.incrementAndGet();
+            return super.execute(call);
+        }
+        sent.incrementAndGet();
+        try {
+            return share(super.execute(call), mine);
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, mine);
+        }
+    }
+
+    private static Shared await(final CompletableFuture<Shared> flight) throws IOException {
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a shared response");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Read the body of the given response and hand it to the waiting calls
+     *
+     * @return response for the calling thread
+     */
+    private Response share(final Response response, final CompletableFuture<Shared> flight) throws IOException {
+        final InputStream           body   = response.body();
+        final int                   max    = maxBodyBytes;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final byte[]                chunk  = new byte[8192];
+        int read;
+        try {
+            while ((read = body.read(chunk, 0, Math.min(chunk.length, max + 1 - buffer.size()))) != -1) {
+                buffer.write(chunk, 0, read);
+                if (buffer.size() > max) {
+                    // Hand the rest to this caller only, the waiting calls are sent on their own
+                    final InputStream rest = new SequenceInputStream(
+                            new ByteArrayInputStream(buffer.toByteArray()), body);
+                    flight.complete(null);
+                    return new Response(response.protocol(), response.code(), response.message(),
+                            response.headers(), rest);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            response.close();
+            throw e;
+        }
+        response.close();
+        final Shared shared = new Shared(response, buffer.toByteArray());
+        flight.complete(shared);
+        return shared.response();
+    }
+
+    /**
+     * Get the key identifying identical calls
+     */
+    private static String key(final Call call) {
+        final StringBuilder key     = new StringBuilder(call.method()).append(' ').append(call.url());
+        final Headers       headers = call.headers();
+        for (int i = 0; i < headers.size(); i++) {
+            final String name = headers.name(i);
+            key.append('\n').append(name != null ? name.toLowerCase(Locale.US) : "").append(':').append(headers.value(i));
+        }
+        return key.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "CoalescingTransport{sent=" + sent + ", saved=" + saved + ", inFlight=" + flights.size() + '}';
+    }
+
+    /**
+     * Response whose body has been read into memory
+     */
+    private static class Shared {
+
+        private final Response response;
+
+        private final byte[] body;
+
+        Shared(final Response response, final byte[] body) {
+            this.response = response;
+            this.body = body;
+        }
+
+        Response response() {
+            return new Response(response.protocol(), response.code(), response.message(),
+                    response.headers().copy(), new ByteArrayInputStream(body));
+        }
+
+    }
+
+}
@@ -0,0 +1,535 @@
+package io.github.biezhi.request;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of keep-alive connections used by a {@link NioTransport}
+ * <p>
+ * Connections are kept per 'host:port' and limited both per host and in
+ * total. Idle connections are closed once they exceed the idle timeout and
+ * any connection is retired once it exceeds its maximum lifetime. When the
+ * limits are reached callers wait up to the acquire timeout for a
+ * connection to be released.
+ * <p>
+ * A connection is leased until its response body has been read to the end
+ * or closed, for example with {@link Request#disconnect()}. Calls that only
+ * look at the status or headers hold their connection until the request is
+ * garbage collected, when the pool closes it: read or close bodies to get
+ * connections back promptly.
+ * <p>
+ * Unlike the 'http.keepAlive' and 'http.maxConnections' system properties
+ * each pool is independent, so separate {@link RequestClient clients} can
+ * be sized for different upstreams in the same process. All pools share
+ * one daemon thread closing idle connections.
+ */
+public class ConnectionPool implements Closeable {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Map<String, HostPool> hosts = new HashMap<>();
+
+    /**
+     * Longest wait for a connection between checks for abandoned leases
+     */
+    private static final long RECLAIM_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private static final class Evictor {
+        static final ScheduledExecutorService INSTANCE = create();
+
+        private static ScheduledExecutorService create() {
+            final ScheduledThreadPoolExecutor evictor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "request-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            evictor.setRemoveOnCancelPolicy(true);
+            return evictor;
+        }
+    }
+
+    private final ScheduledFuture<?> eviction;
+
+    private final ReferenceQueue<Object> abandoned = new ReferenceQueue<>();
+
+    /**
+     * Trackers of leased connections, held so they get enqueued
+     */
+    private final Set<Tracker> tracked = new HashSet<>();
+
+    private volatile int maxPerHost = 16;
+
+    private volatile int maxTotal = 256;
+
+    private volatile long idleTimeout = TimeUnit.SECONDS.toMillis(60);
+
+    private volatile long maxLifetime = 0;
+
+    private volatile long acquireTimeout = TimeUnit.SECONDS.toMillis(30);
+
+    private int total;
+
+    private int waiting;
+
+    private long created;
+
+    private long reused;
+
+    private long closed;
+
+    private boolean shutdown;
+
+    /**
+     * Create pool with default limits: 16 connections per host, 256 in
+     * total, 60 second idle timeout and unlimited lifetime
+     */
+    public ConnectionPool() {
+        eviction = Evictor.INSTANCE.scheduleWithFixedDelay(this::evict, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Set the maximum number of open connections per host
+     *
+     * @param maxPerHost
+     * @return this pool
+     */
+    public ConnectionPool maxPerHost(final int maxPerHost) {
+        if (maxPerHost < 1)
+            throw new IllegalArgumentException("Max per host must be greater than zero");
+        this.maxPerHost = maxPerHost;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of open connections across all hosts
+     *
+     * @param maxTotal
+     * @return this pool
+     */
+    public ConnectionPool maxTotal(final int maxTotal) {
+        if (maxTotal < 1)
+            throw new IllegalArgumentException("Max total must be greater than zero");
+        this.maxTotal = maxTotal;
+        return this;
+    }
+
+    /**
+     * Set how long a connection may stay idle in the pool before it is closed
+     *
+     * @param timeout
+     * @param unit
+     * @return this pool
+     */
+    public ConnectionPool idleTimeout(final long timeout, final TimeUnit unit) {
+        this.idleTimeout = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Set how long a connection may be used after it was opened, 0 for
+     * unlimited
+     *
+     * @param lifetime
+     * @param unit
+     * @return this pool
+     */
+    public ConnectionPool maxLifetime(final long lifetime, final TimeUnit unit) {
+        this.maxLifetime = unit.toMillis(lifetime);
+        return this;
+    }
+
+    /**
+     * Set how long to wait for a connection when the pool limits are
+     * reached, 0 to wait forever
+     *
+     * @param timeout
+     * @param unit
+     * @return this pool
+     */
+    public ConnectionPool acquireTimeout(final long timeout, final TimeUnit unit) {
+        this.acquireTimeout = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Opens a new connection once the pool has reserved room for it
+     */
+    interface Opener {
+        NioChannel open() throws IOException;
+    }
+
+    /**
+     * Connection leased from the pool
+     */
+    static final class Lease {
+
+        private final String key;
+
+        private final NioChannel channel;
+
+        private final long createdAt;
+
+        private final boolean reused;
+
+        private long idleSince;
+
+        private boolean released;
+
+        private Tracker tracker;
+
+        private Lease(final String key, final NioChannel channel, final long createdAt, final boolean reused) {
+            this.key = key;
+            this.channel = channel;
+            this.createdAt = createdAt;
+            this.reused = reused;
+        }
+
+        NioChannel channel() {
+            return channel;
+        }
+
+        /**
+         * Was this connection used for an earlier exchange?
+         *
+         * @return true if taken from the idle list
+         */
+        boolean reused() {
+            return reused;
+        }
+    }
+
+    /**
+     * Reference to the owner of a lease, enqueued once the owner is garbage
+     * without having released the lease
+     */
+    private static final class Tracker extends WeakReference<Object> {
+
+        private final Lease lease;
+
+        private Tracker(final Object owner, final ReferenceQueue<Object> queue, final Lease lease) {
+            super(owner, queue);
+            this.lease = lease;
+        }
+    }
+
+    private static final class HostPool {
+
+        private final ArrayDeque<Lease> idle = new ArrayDeque<>();
+
+        private final Condition released;
+
+        private int leased;
+
+        private int waiting;
+
+        private long created;
+
+        private long reused;
+
+        private HostPool(final Condition released) {
+            this.released = released;
+        }
+
+        int open() {
+            return leased + idle.size();
+        }
+    }
+
+    /**
+     * Lease a connection for the given 'host:port', reusing an idle one when
+     * possible and opening a new one otherwise
+     *
+     * @param key
+     * @param opener
+     * @return lease
+     * @throws IOException
+     */
+    Lease acquire(final String key, final Opener opener) throws IOException {
+        final long timeout  = acquireTimeout;
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while (true) {
+                if (shutdown)
+                    throw new IOException("Connection pool is closed");
+                reclaim();
+                final HostPool host = hosts.computeIfAbsent(key, k -> new HostPool(lock.newCondition()));
+                Lease          lease;
+                while ((lease = host.idle.pollFirst()) != null) {
+                    if (expired(lease, System.currentTimeMillis()) || !lease.channel.isOpen()) {
+                        discard(lease);
+                        continue;
+                    }
+                    host.leased++;
+                    host.reused++;
+                    reused++;
+                    return new Lease(key, lease.channel, lease.createdAt, true);
+                }
+                if (host.open() < maxPerHost && (total < maxTotal || evictIdleOtherThan(host))) {
+                    host.leased++;
+                    host.created++;
+                    total++;
+                    created++;
+                    break;
+                }
+                final long remaining = deadline - System.nanoTime();
+                if (timeout > 0 && remaining <= 0)
+                    throw new SocketTimeoutException("Timed out waiting for a pooled connection to " + key);
+                waiting++;
+                host.waiting++;
+                try {
+                    // Wake up regularly to reclaim leases of abandoned responses
+                    host.released.awaitNanos(timeout > 0 ? Math.min(remaining, RECLAIM_INTERVAL) : RECLAIM_INTERVAL);
+                } finally {
+                    waiting--;
+                    host.waiting--;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a pooled connection to " + key);
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            return new Lease(key, opener.open(), System.currentTimeMillis(), false);
+        } catch (IOException | RuntimeException e) {
+            lock.lock();
+            try {
+                final HostPool host = hosts.get(key);
+                host.leased--;
+                total--;
+                host.released.signal();
+                signalOtherHosts(host);
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Return a leased connection
+     *
+     * @param lease
+     * @param reusable true to keep the connection for another exchange,
+     *                 false to close it
+     */
+    void release(final Lease lease, final boolean reusable) {
+        lock.lock();
+        try {
+            if (lease.released)
+                return;
+            lease.released = true;
+            if (lease.tracker != null) {
+                tracked.remove(lease.tracker);
+                lease.tracker.clear();
+            }
+            final HostPool host = hosts.get(lease.key);
+            host.leased--;
+            final long now = System.currentTimeMillis();
+            if (reusable && !shutdown && !expired(lease, now) && lease.channel.isOpen()) {
+                lease.idleSince = now;
+                host.idle.addFirst(lease);
+            } else {
+                discard(lease);
+                signalOtherHosts(host);
+            }
+            // Exactly one slot of this host became available
+            host.released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close the connection of the given lease if the owner is garbage
+     * collected before the lease is released
+     *
+     * @param lease
+     * @param owner object whose reachability keeps the lease, such as the
+     *              response body
+     */
+    void track(final Lease lease, final Object owner) {
+        lock.lock();
+        try {
+            if (!lease.released) {
+                lease.tracker = new Tracker(owner, abandoned, lease);
+                tracked.add(lease.tracker);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release the leases of owners that were garbage collected
+     */
+    private void reclaim() {
+        Reference<?> reference;
+        while ((reference = abandoned.poll()) != null)
+            release(((Tracker) reference).lease, false);
+    }
+
+    /**
+     * Wake one waiter of every other host after a connection was closed, as
+     * they may have been waiting for room under the total limit
+     *
+     * @param except
+     */
+    private void signalOtherHosts(final HostPool except) {
+        if (waiting == 0)
+            return;
+        for (HostPool host : hosts.values())
+            if (host != except && host.waiting > 0)
+                host.released.signal();
+    }
+
+    private void signalAll() {
+        for (HostPool host : hosts.values())
+            host.released.signalAll();
+    }
+
+    private boolean expired(final Lease lease, final long now) {
+        final long lifetime = maxLifetime;
+        return lifetime > 0 && now - lease.createdAt >= lifetime;
+    }
+
+    private void discard(final Lease lease) {
+        lease.channel.close();
+        total--;
+        closed++;
+    }
+
+    private boolean evictIdleOtherThan(final HostPool except) {
+        Lease    oldest     = null;
+        HostPool oldestHost = null;
+        for (HostPool host : hosts.values()) {
+            if (host == except || host.idle.isEmpty())
+                continue;
+            final Lease candidate = host.idle.peekLast();
+            if (oldest == null || candidate.idleSince < oldest.idleSince) {
+                oldest = candidate;
+                oldestHost = host;
+            }
+        }
+        if (oldest == null)
+            return false;
+        oldestHost.idle.pollLast();
+        discard(oldest);
+        return true;
+    }
+
+    private void evict() {
+        lock.lock();
+        try {
+            reclaim();
+            final long now  = System.currentTimeMillis();
+            final long idle = idleTimeout;
+            boolean    any  = false;
+            for (Iterator<HostPool> hosts = this.hosts.values().iterator(); hosts.hasNext(); ) {
+                final HostPool host = hosts.next();
+                for (Iterator<Lease> leases = host.idle.iterator(); leases.hasNext(); ) {
+                    final Lease lease = leases.next();
+                    if ((idle > 0 && now - lease.idleSince >= idle) || expired(lease, now)
+                            || !lease.channel.isOpen()) {
+                        leases.remove();
+                        discard(lease);
+                        any = true;
+                    }
+                }
+                if (host.open() == 0 && host.waiting == 0)
+                    hosts.remove();
+            }
+            if (any)
+                signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close all idle connections
+     */
+    public void evictAll() {
+        lock.lock();
+        try {
+            for (HostPool host : hosts.values()) {
+                Lease lease;
+                while ((lease = host.idle.pollFirst()) != null)
+                    discard(lease);
+            }
+            signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get a snapshot of this pool's statistics across all hosts
+     *
+     * @return stats
+     */
+    public PoolStats stats() {
+        lock.lock();
+        try {
+            int idle   = 0;
+            int leased = 0;
+            for (HostPool host : hosts.values()) {
+                idle += host.idle.size();
+                leased += host.leased;
+            }
+            return new PoolStats(leased, idle, waiting, created, reused, closed);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get a snapshot of the statistics of each 'host:port' this pool holds
+     * connections for
+     *
+     * @return map of 'host:port' to stats
+     */
+    public Map<String, PoolStats> hostStats() {
+        lock.lock();
+        try {
+            final Map<String, PoolStats> stats = new TreeMap<>();
+            for (Map.Entry<String, HostPool> entry : hosts.entrySet()) {
+                final HostPool host = entry.getValue();
+                stats.put(entry.getKey(), new PoolStats(host.leased, host.idle.size(), -1,
+                        host.created, host.reused, -1));
+            }
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close all idle connections and stop pooling, leased connections are
+     * closed when released
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            shutdown = true;
+        } finally {
+            lock.unlock();
+        }
+        evictAll();
+        eviction.cancel(false);
+    }
+
+}
@@ -17,6 +17,16 @@ public interface Const {
      */
     String CONTENT_TYPE_JSON = "application/json";
 
+    /**
+     * 'text/event-stream' content type header value
+     */
+    String CONTENT_TYPE_EVENT_STREAM = "text/event-stream";
+
+    /**
+     * 'deflate' encoding header value
+     */
+    String ENCODING_DEFLATE = "deflate";
+
     /**
      * 'gzip' encoding header value
      */
@@ -37,6 +47,16 @@ public interface Const {
      */
     String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
 
+    /**
+     * 'Accept-Ranges' header name
+     */
+    String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+
+    /**
+     * 'Age' header name
+     */
+    String HEADER_AGE = "Age";
+
     /**
      * 'Authorization' header name
      */
@@ -57,6 +77,11 @@ public interface Const {
      */
     String HEADER_CONTENT_LENGTH = "Content-Length";
 
+    /**
+     * 'Content-Range' header name
+     */
+    String HEADER_CONTENT_RANGE = "Content-Range";
+
     /**
      * 'Content-Type' header name
      */
@@ -77,11 +102,31 @@ public interface Const {
      */
     String HEADER_EXPIRES = "Expires";
 
+    /**
+     * 'Idempotency-Key' header name
+     */
+    String HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    /**
+     * 'If-Modified-Since' header name
+     */
+    String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
     /**
      * 'If-None-Match' header name
      */
     String HEADER_IF_NONE_MATCH = "If-None-Match";
 
+    /**
+     * 'If-Range' header name
+     */
+    String HEADER_IF_RANGE = "If-Range";
+
+    /**
+     * 'Last-Event-ID' header name
+     */
+    String HEADER_LAST_EVENT_ID = "Last-Event-ID";
+
     /**
      * 'Last-Modified' header name
      */
@@ -97,11 +142,21 @@ public interface Const {
      */
     String HEADER_PROXY_AUTHORIZATION = "Proxy-Authorization";
 
+    /**
+     * 'Range' header name
+     */
+    String HEADER_RANGE = "Range";
+
     /**
      * 'Referer' header name
      */
     String HEADER_REFERER = "Referer";
 
+    /**
+     * 'Retry-After' header name
+     */
+    String HEADER_RETRY_AFTER = "Retry-After";
+
     /**
      * 'Server' header name
      */
@@ -112,6 +167,16 @@ public interface Const {
      */
     String HEADER_USER_AGENT = "User-Agent";
 
+    /**
+     * 'Vary' header name
+     */
+    String HEADER_VARY = "Vary";
+
+    /**
+     * 'Warning' header name
+     */
+    String HEADER_WARNING = "Warning";
+
     /**
      * 'DELETE' request method
      */
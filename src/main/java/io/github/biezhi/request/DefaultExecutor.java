@@ -0,0 +1,57 @@
+package io.github.biezhi.request;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holder of the executor used for asynchronous requests when none is
+ * configured.
+ * <p>
+ * Requests block while waiting for the server so the default is an
+ * unbounded pool of daemon threads that are reclaimed after a minute of
+ * inactivity rather than the common fork/join pool. The multi-release jar
+ * replaces this class on Java 21 and later with one using virtual threads.
+ */
+final class DefaultExecutor {
+
+    private DefaultExecutor() {
+    }
+
+    private static final class Holder {
+        static final ExecutorService INSTANCE = create();
+    }
+
+    /**
+     * Get the shared default executor, creating it on first use
+     *
+     * @return executor
+     */
+    static ExecutorService get() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Is the current thread a virtual thread?
+     *
+     * @return always false before Java 21
+     */
+    static boolean onVirtualThread() {
+        return false;
+    }
+
+    private static ExecutorService create() {
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, "request-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), factory);
+    }
+
+}
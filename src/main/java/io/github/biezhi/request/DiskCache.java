@@ -0,0 +1,608 @@
+package io.github.biezhi.request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Disk tier of an {@link HttpCache} that keeps responses across restarts.
+ * <p>
+ * Each body is stored in its own file in the cache directory and served
+ * back through a {@link FileChannel}. The metadata of the responses is
+ * appended to a memory-mapped index file and decoded from the mapping on
+ * lookup, only the position of each record is kept on the heap. Records
+ * replaced or evicted are marked dead in place and the index is compacted
+ * once dead records outweigh live ones. The least recently used responses
+ * are evicted once the bodies exceed the maximum size:
+ * <pre>
+ * DiskCache disk = new DiskCache(new File("/var/cache/app"), 1024 * 1024 * 1024);
+ * HttpCache cache = new HttpCache(16 * 1024 * 1024).disk(disk);
+ * </pre>
+ * A directory must only be used by one cache at a time.
+ */
+public class DiskCache implements Closeable {
+
+    private static final String INDEX = "index";
+
+    private static final String BODY = ".body";
+
+    private static final String TEMP = ".tmp";
+
+    private static final int MAGIC = 0x4f4d5231;
+
+    private static final int HEADER = 8;
+
+    private static final int INITIAL_SIZE = 64 * 1024;
+
+    /**
+     * Dead records are only compacted away once they take up this many bytes
+     */
+    private static final int MIN_COMPACT = 16 * 1024;
+
+    // Record layout: length, state, last access, body id, body length, payload
+    private static final int STATE = 4;
+
+    private static final int ACCESS = 5;
+
+    private static final int BODY_ID = 13;
+
+    private static final int BODY_LENGTH = 21;
+
+    private static final int PAYLOAD = 29;
+
+    private static final byte DEAD = 0;
+
+    private static final byte LIVE = 1;
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    private long maxEntryBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Positions of the live records by hash of their URL
+     */
+    private final Map<Integer, List<Integer>> records = new HashMap<>();
+
+    private FileChannel channel;
+
+    private MappedByteBuffer index;
+
+    private int end;
+
+    private long dead;
+
+    private long bytes;
+
+    private int count;
+
+    private long nextId;
+
+    private boolean closed;
+
+    private long hits;
+
+    private long revalidations;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * Open cache in the given directory holding bodies of up to the given
+     * total number of bytes, creating the directory if needed
+     *
+     * @param directory
+     * @param maxBytes
+     * @throws RequestException
+     */
+    public DiskCache(final File directory, final long maxBytes) throws RequestException {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("Max bytes must be greater than zero");
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.max(1, maxBytes / 8);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Cannot create cache directory " + directory);
+            open(true);
+        } catch (IOException e) {
+            throw new RequestException(e);
+        }
+    }
+
+    /**
+     * Set the largest body stored, one eighth of the cache by default
+     *
+     * @param maxEntryBytes
+     * @return this cache
+     */
+    public DiskCache maxEntryBytes(final long maxEntryBytes) {
+        if (maxEntryBytes <= 0)
+            throw new IllegalArgumentException("Max entry bytes must be greater than zero");
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        return this;
+    }
+
+    /**
+     * @return largest body stored in bytes
+     */
+    public long maxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * @return maximum total size of the bodies in bytes
+     */
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return directory of this cache
+     */
+    public File directory() {
+        return directory;
+    }
+
+    private void open(final boolean cleanup) throws IOException {
+        final File file = new File(directory, INDEX);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_SIZE));
+        if (index.getInt(0) != MAGIC) {
+            // New or foreign index, start over
+            index.putInt(0, MAGIC);
+            for (int i = 4; i < index.capacity(); i++)
+                index.put(i, (byte) 0);
+        }
+        scan(cleanup);
+    }
+
+    /**
+     * Find the live records of the index and, on startup, delete body files
+     * that no record refers to
+     */
+    private void scan(final boolean cleanup) {
+        records.clear();
+        bytes = 0;
+        count = 0;
+        dead = 0;
+        final Set<String> bodies = new HashSet<>();
+        int position = HEADER;
+        while (position + PAYLOAD <= index.capacity()) {
+            final int length = index.getInt(position);
+            // A zero length ends the index, a torn write leaves an invalid one
+            if (length < PAYLOAD || position + length > index.capacity())
+                break;
+            if (index.get(position + STATE) == LIVE) {
+                final long id = index.getLong(position + BODY_ID);
+                if (body(id).length() == index.getLong(position + BODY_LENGTH)) {
+                    add(position);
+                    bodies.add(body(id).getName());
+                    nextId = Math.max(nextId, id + 1);
+                } else {
+                    index.put(position + STATE, DEAD);
+                    dead += length;
+                }
+            } else {
+                dead += length;
+            }
+            position += length;
+        }
+        end = position;
+        // Anything after the last complete record is rewritten
+        if (end + 4 <= index.capacity())
+            index.putInt(end, 0);
+        if (!cleanup)
+            return;
+        final File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                if (file.getName().endsWith(TEMP) || file.getName().endsWith(BODY) && !bodies.contains(file.getName()))
+                    file.delete();
+    }
+
+    private void add(final int position) {
+        records.computeIfAbsent(key(position).hashCode(), hash -> new ArrayList<>(1)).add(position);
+        bytes += index.getLong(position + BODY_LENGTH);
+        count++;
+    }
+
+    private File body(final long id) {
+        return new File(directory, Long.toHexString(id) + BODY);
+    }
+
+    /**
+     * Create a temporary file for a body being downloaded
+     *
+     * @return file
+     * @throws IOException
+     */
+    File newFile() throws IOException {
+        return File.createTempFile("body", TEMP, directory);
+    }
+
+    /**
+     * Find the stored variant for the given call
+     *
+     * @param call
+     * @return entry with the body in a file, or null if none
+     */
+    CacheEntry get(final Call call) {
+        final String key = HttpCache.key(call.url());
+        lock.lock();
+        try {
+            if (closed)
+                return null;
+            final List<Integer> positions = records.get(key.hashCode());
+            if (positions != null)
+                for (int position : positions) {
+                    if (!key.equals(key(position)))
+                        continue;
+                    final CacheEntry entry = read(position);
+                    if (entry.matches(call)) {
+                        index.putLong(position + ACCESS, System.currentTimeMillis());
+                        hits++;
+                        return entry;
+                    }
+                }
+            misses++;
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Store the given entry, replacing the variant it matches. The body is
+     * taken from the entry's file, which is moved into the cache unless it
+     * already belongs to it, or else written from memory.
+     *
+     * @param call  call the entry answers
+     * @param entry
+     */
+    void put(final Call call, final CacheEntry entry) {
+        if (entry.length() > maxEntryBytes) {
+            discard(entry.file());
+            return;
+        }
+        final byte[] payload  = encode(entry);
+        long         id       = -1;
+        boolean      appended = false;
+        lock.lock();
+        try {
+            if (closed) {
+                discard(entry.file());
+                return;
+            }
+            id = body(entry);
+            if (id == -1)
+                return;
+            for (int position : find(call))
+                if (index.getLong(position + BODY_ID) != id)
+                    remove(position, true);
+                else
+                    remove(position, false);
+            append(id, entry.length(), payload);
+            appended = true;
+            trim();
+            compact();
+        } catch (IOException e) {
+            // The response is still served, it just is not stored, so drop
+            // the body unless a record already points at it
+            discard(entry.file());
+            if (id != -1 && !appended)
+                body(id).delete();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the id of the body of the given entry, moving it into the cache
+     *
+     * @return id or -1 if the body is gone
+     */
+    private long body(final CacheEntry entry) throws IOException {
+        final File file = entry.file();
+        if (file != null && directory.equals(file.getParentFile()) && file.getName().endsWith(BODY)) {
+            if (!file.isFile())
+                return -1;
+            revalidations++;
+            final String name = file.getName();
+            return Long.parseLong(name.substring(0, name.length() - BODY.length()), 16);
+        }
+        if (file != null && file.isFile()) {
+            final long id = nextId++;
+            Files.move(file.toPath(), body(id).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return id;
+        }
+        if (entry.body() == null)
+            return -1;
+        final long id = nextId++;
+        try (OutputStream output = new FileOutputStream(body(id))) {
+            output.write(entry.body());
+        } catch (IOException e) {
+            body(id).delete();
+            throw e;
+        }
+        return id;
+    }
+
+    private static void discard(final File file) {
+        if (file != null && file.getName().endsWith(TEMP))
+            file.delete();
+    }
+
+    private List<Integer> find(final Call call) {
+        final String        key       = HttpCache.key(call.url());
+        final List<Integer> found     = new ArrayList<>(1);
+        final List<Integer> positions = records.get(key.hashCode());
+        if (positions != null)
+            for (int position : positions)
+                if (key.equals(key(position)) && read(position).matches(call))
+                    found.add(position);
+        return found;
+    }
+
+    private void append(final long id, final long length, final byte[] payload) throws IOException {
+        final int size = PAYLOAD + payload.length;
+        if (end + size + 4 > index.capacity())
+            index = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max((long) index.capacity() * 2, end + size + 4L));
+        final int position = end;
+        index.put(position + STATE, LIVE);
+        index.putLong(position + ACCESS, System.currentTimeMillis());
+        index.putLong(position + BODY_ID, id);
+        index.putLong(position + BODY_LENGTH, length);
+        for (int i = 0; i < payload.length; i++)
+            index.put(position + PAYLOAD + i, payload[i]);
+        index.putInt(position + size, 0);
+        // The length is written last so a torn record ends the index
+        index.putInt(position, size);
+        end += size;
+        add(position);
+    }
+
+    /**
+     * Mark the record at the given position dead
+     */
+    private void remove(final int position, final boolean deleteBody) {
+        final int           length    = index.getInt(position);
+        final List<Integer> positions = records.get(key(position).hashCode());
+        if (positions != null && positions.remove((Integer) position) && positions.isEmpty())
+            records.remove(key(position).hashCode());
+        index.put(position + STATE, DEAD);
+        dead += length;
+        bytes -= index.getLong(position + BODY_LENGTH);
+        count--;
+        if (deleteBody)
+            body(index.getLong(position + BODY_ID)).delete();
+    }
+
+    private void trim() {
+        if (bytes <= maxBytes)
+            return;
+        final List<Integer> live = new ArrayList<>(count);
+        for (List<Integer> positions : records.values())
+            live.addAll(positions);
+        // Least recently used first, older records first on ties
+        live.sort((a, b) -> {
+            final int compare = Long.compare(index.getLong(a + ACCESS), index.getLong(b + ACCESS));
+            return compare != 0 ? compare : Integer.compare(a, b);
+        });
+        for (int i = 0; i < live.size() && bytes > maxBytes; i++) {
+            remove(live.get(i), true);
+            evictions++;
+        }
+    }
+
+    /**
+     * Rewrite the index without its dead records once they take up more
+     * space than the live ones
+     */
+    private void compact() throws IOException {
+        if (dead < MIN_COMPACT || dead < end - HEADER - dead)
+            return;
+        final File compacted = new File(directory, INDEX + TEMP);
+        try (FileChannel output = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer copy = output.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(INITIAL_SIZE, end - dead + 4));
+            copy.putInt(0, MAGIC);
+            int target = HEADER;
+            for (int position = HEADER; position < end; position += index.getInt(position)) {
+                final int length = index.getInt(position);
+                if (index.get(position + STATE) != LIVE)
+                    continue;
+                for (int i = 0; i < length; i++)
+                    copy.put(target + i, index.get(position + i));
+                target += length;
+            }
+            copy.putInt(target, 0);
+            copy.force();
+        }
+        channel.close();
+        Files.move(compacted.toPath(), new File(directory, INDEX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        open(false);
+    }
+
+    /**
+     * Remove all stored responses of the given URL
+     *
+     * @param url
+     */
+    void remove(final String url) {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            final List<Integer> positions = records.get(url.hashCode());
+            if (positions != null)
+                for (int position : new ArrayList<>(positions))
+                    if (url.equals(key(position)))
+                        remove(position, true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove all stored responses
+     *
+     * @return this cache
+     */
+    public DiskCache clear() {
+        lock.lock();
+        try {
+            if (closed)
+                return this;
+            for (List<Integer> positions : new ArrayList<>(records.values()))
+                for (int position : new ArrayList<>(positions))
+                    remove(position, true);
+            compact();
+            return this;
+        } catch (IOException e) {
+            throw new RequestException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get a snapshot of the statistics of this cache, hits and misses count
+     * lookups and revalidations the responses stored again after a
+     * '304 Not Modified'
+     *
+     * @return stats
+     */
+    public CacheStats stats() {
+        lock.lock();
+        try {
+            return new CacheStats(hits, revalidations, 0, misses, evictions, count, bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the index to disk and close it, later lookups miss and responses
+     * are no longer stored
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            index.force();
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DiskCache{directory=" + directory + ", maxBytes=" + maxBytes + ", " + stats() + '}';
+    }
+
+    // Payload: URL, varying headers, protocol, code, message, headers,
+    // request time and response time. Strings are length prefixed UTF-8.
+
+    private static byte[] encode(final CacheEntry entry) {
+        final ByteArrayOutputStream bytes  = new ByteArrayOutputStream();
+        final DataOutputStream      output = new DataOutputStream(bytes);
+        try {
+            string(output, entry.url());
+            headers(output, entry.varying());
+            string(output, entry.protocol());
+            output.writeInt(entry.code());
+            string(output, entry.message());
+            headers(output, entry.headers());
+            output.writeLong(entry.requestTime());
+            output.writeLong(entry.responseTime());
+        } catch (IOException e) {
+            // Not thrown by a byte array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void string(final DataOutputStream output, final String value) throws IOException {
+        final byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static void headers(final DataOutputStream output, final Headers headers) throws IOException {
+        output.writeInt(headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            string(output, headers.name(i));
+            string(output, headers.value(i));
+        }
+    }
+
+    private String key(final int position) {
+        return string(index.duplicate(), position + PAYLOAD);
+    }
+
+    private CacheEntry read(final int position) {
+        final ByteBuffer buffer   = index.duplicate();
+        buffer.position(position + PAYLOAD);
+        final String     url      = string(buffer);
+        final Headers    varying  = headers(buffer);
+        final String     protocol = string(buffer);
+        final int        code     = buffer.getInt();
+        final String     message  = string(buffer);
+        final Headers    headers  = headers(buffer);
+        final long       request  = buffer.getLong();
+        final long       response = buffer.getLong();
+        final long       id       = index.getLong(position + BODY_ID);
+        return new CacheEntry(url, varying, protocol, code, message, headers, null, body(id),
+                index.getLong(position + BODY_LENGTH), request, response);
+    }
+
+    private static String string(final ByteBuffer buffer, final int position) {
+        buffer.position(position);
+        return string(buffer);
+    }
+
+    private static String string(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Headers headers(final ByteBuffer buffer) {
+        final Headers headers = new Headers();
+        final int     size    = buffer.getInt();
+        for (int i = 0; i < size; i++)
+            headers.add(string(buffer), string(buffer));
+        return headers;
+    }
+
+}
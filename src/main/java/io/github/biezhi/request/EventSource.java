@@ -0,0 +1,464 @@
+package io.github.biezhi.request;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import static io.github.biezhi.request.Const.*;
+
+/**
+ * Client for a server-sent event stream ('text/event-stream').
+ * <p>
+ * Events are parsed as the bytes arrive and handed to the {@link Listener}
+ * on the thread reading the stream. When the stream ends or the connection
+ * drops the source reconnects after the retry delay, which the server can
+ * change with a 'retry' field, sending the id of the last event it saw in
+ * a 'Last-Event-ID' header. A response other than 200 'text/event-stream'
+ * closes the source, as does a 204.
+ * <pre>
+ * EventSource source = new EventSource("http://xxxx.com/events", event -&gt;
+ *         System.out.println(event.event() + ": " + event.data())).start();
+ * // ...
+ * source.close();
+ * </pre>
+ * Streams are read on the request's {@link Request#executor()}. Waiting to
+ * reconnect holds no thread, all sources share a single timer thread.
+ * <p>
+ * The stream is read with blocking calls, so every open source keeps one
+ * executor thread for as long as it stays connected, even when the server
+ * sends nothing for hours. This is only acceptable on virtual threads: on
+ * Java 21 and later the default executor of the multi-release jar runs each
+ * stream on its own virtual thread and idle feeds just park. On older
+ * runtimes, or when the classes are not loaded from the jar, each feed ties
+ * up a platform thread; pass an {@link #executor(Executor)} with a thread per
+ * open feed, since a bounded pool stalls the feeds queued behind it.
+ */
+public class EventSource implements Closeable {
+
+    /**
+     * Receives the events of a source
+     */
+    public interface Listener {
+
+        /**
+         * Callback invoked for each event
+         *
+         * @param event
+         */
+        void onEvent(ServerEvent event);
+
+        /**
+         * Callback invoked when a connection has been established
+         *
+         * @param source
+         */
+        default void onOpen(EventSource source) {
+        }
+
+        /**
+         * Callback invoked when a connection fails, the source reconnects
+         * unless it is {@link EventSource#isClosed()}
+         *
+         * @param source
+         * @param error
+         */
+        default void onError(EventSource source, Throwable error) {
+        }
+    }
+
+    private static final class Timer {
+        static final ScheduledExecutorService INSTANCE = create();
+
+        private static ScheduledExecutorService create() {
+            final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "request-event-source");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+            return timer;
+        }
+    }
+
+    private static final int MAX_LINE = 1024 * 1024;
+
+    private final Supplier<Request> factory;
+
+    private final Listener listener;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private Executor executor;
+
+    private volatile long retry = 3000;
+
+    private volatile String lastEventId = "";
+
+    private volatile boolean closed;
+
+    private boolean started;
+
+    private Request current;
+
+    private ScheduledFuture<?> pending;
+
+    /**
+     * Create source reading the given URL
+     *
+     * @param url
+     * @param listener
+     */
+    public EventSource(final CharSequence url, final Listener listener) {
+        this(() -> Request.get(url), listener);
+    }
+
+    /**
+     * Create source opening each connection with a request from the given
+     * factory, such as {@code () -> client.get(url).authorization(token)}
+     *
+     * @param factory
+     * @param listener
+     */
+    public EventSource(final Supplier<Request> factory, final Listener listener) {
+        this.factory = factory;
+        this.listener = listener;
+    }
+
+    /**
+     * Set the delay before reconnecting, until the server sends its own
+     *
+     * @param delay
+     * @param unit
+     * @return this source
+     */
+    public EventSource retry(final long delay, final TimeUnit unit) {
+        this.retry = unit.toMillis(delay);
+        return this;
+    }
+
+    /**
+     * @return current delay before reconnecting in milliseconds
+     */
+    public long retry() {
+        return retry;
+    }
+
+    /**
+     * Set the event id sent when connecting, to resume a stream read before
+     *
+     * @param lastEventId
+     * @return this source
+     */
+    public EventSource lastEventId(final String lastEventId) {
+        this.lastEventId = lastEventId != null ? lastEventId : "";
+        return this;
+    }
+
+    /**
+     * @return id of the last event received, empty if none
+     */
+    public String lastEventId() {
+        return lastEventId;
+    }
+
+    /**
+     * Set the executor streams are read on instead of the request's
+     * <p>
+     * Each open source holds one of its threads while connected, see the
+     * class documentation.
+     *
+     * @param executor
+     * @return this source
+     */
+    public EventSource executor(final Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Open the first connection
+     *
+     * @return this source
+     */
+    public EventSource start() {
+        lock.lock();
+        try {
+            if (started)
+                throw new IllegalStateException("Event source already started");
+            started = true;
+        } finally {
+            lock.unlock();
+        }
+        open();
+        return this;
+    }
+
+    /**
+     * @return whether the source has been closed and will not reconnect
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the current connection and stop reconnecting
+     */
+    @Override
+    public void close() {
+        final Request request;
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            request = current;
+            current = null;
+            if (pending != null)
+                pending.cancel(false);
+            pending = null;
+        } finally {
+            lock.unlock();
+        }
+        if (request != null)
+            request.disconnect();
+    }
+
+    private void open() {
+        final Request request;
+        try {
+            request = factory.get()
+                    .accept(CONTENT_TYPE_EVENT_STREAM)
+                    .header(HEADER_CACHE_CONTROL, "no-cache");
+            if (!lastEventId.isEmpty())
+                request.header(HEADER_LAST_EVENT_ID, lastEventId);
+        } catch (RuntimeException e) {
+            fail(e);
+            return;
+        }
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            current = request;
+        } finally {
+            lock.unlock();
+        }
+        final Executor executor = this.executor != null ? this.executor : request.executor();
+        try {
+            executor.execute(() -> read(request));
+        } catch (RuntimeException e) {
+            release(request);
+            fail(e);
+        }
+    }
+
+    private void read(final Request request) {
+        try {
+            final int code = request.code();
+            if (code == 204) {
+                close();
+                return;
+            }
+            final String contentType = request.contentType();
+            if (code != 200 || !isEventStream(contentType)) {
+                close();
+                listener.onError(this, new RequestException(new IOException(
+                        "Unexpected response " + code + " with content type " + contentType)));
+                return;
+            }
+            listener.onOpen(this);
+            parse(request.stream(), Request.bufferPool(), request.bufferSize());
+            reconnect(null);
+        } catch (RequestException e) {
+            reconnect(e);
+        } catch (IOException e) {
+            reconnect(new RequestException(e));
+        } catch (RuntimeException e) {
+            // Thrown by the listener
+            close();
+            listener.onError(this, e);
+        } finally {
+            release(request);
+        }
+    }
+
+    private static boolean isEventStream(final String contentType) {
+        if (contentType == null)
+            return false;
+        final int end = contentType.indexOf(';');
+        return (end == -1 ? contentType : contentType.substring(0, end)).trim()
+                .equalsIgnoreCase(CONTENT_TYPE_EVENT_STREAM);
+    }
+
+    private void release(final Request request) {
+        lock.lock();
+        try {
+            if (current == request)
+                current = null;
+        } finally {
+            lock.unlock();
+        }
+        request.disconnect();
+    }
+
+    private void fail(final RuntimeException error) {
+        close();
+        listener.onError(this, error);
+    }
+
+    private void reconnect(final RequestException error) {
+        if (closed)
+            return;
+        if (error != null)
+            listener.onError(this, error);
+        lock.lock();
+        try {
+            if (!closed)
+                pending = Timer.INSTANCE.schedule(this::open, retry, TimeUnit.MILLISECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read events until the end of the stream, splitting lines on '\r\n',
+     * '\n' or '\r' in the raw bytes. Both are ASCII so they never occur
+     * inside a UTF-8 encoded character.
+     */
+    private void parse(final InputStream input, final BufferPool pool, final int bufferSize) throws IOException {
+        final Parser parser = new Parser();
+        final byte[] pooled = pool.bytes(bufferSize);
+        byte[]       buf    = pooled;
+        int          pos    = 0;
+        int          limit  = 0;
+        int          scan   = 0;
+        boolean      cr     = false;
+        try {
+            while (!closed) {
+                for (; scan < limit; scan++) {
+                    final byte b = buf[scan];
+                    if (b != '\n' && b != '\r')
+                        continue;
+                    if (b == '\n' && cr && scan == pos) {
+                        // Second half of '\r\n'
+                        pos = scan + 1;
+                        cr = false;
+                        continue;
+                    }
+                    parser.line(buf, pos, scan - pos);
+                    cr = b == '\r';
+                    pos = scan + 1;
+                }
+                if (pos > 0) {
+                    System.arraycopy(buf, pos, buf, 0, limit - pos);
+                    limit -= pos;
+                    scan = limit;
+                    pos = 0;
+                } else if (limit == buf.length) {
+                    if (limit >= MAX_LINE)
+                        throw new IOException("Event stream line longer than " + MAX_LINE + " bytes");
+                    final byte[] grown = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, grown, 0, limit);
+                    buf = grown;
+                }
+                final int read = input.read(buf, limit, buf.length - limit);
+                if (read == -1)
+                    return;
+                limit += read;
+            }
+        } finally {
+            pool.release(pooled);
+            try {
+                input.close();
+            } catch (IOException ignored) {
+                // Ignored
+            }
+        }
+    }
+
+    /**
+     * Builds events from the fields of one connection
+     */
+    private final class Parser {
+
+        private final StringBuilder data = new StringBuilder();
+
+        private String event = "";
+
+        private String id = lastEventId;
+
+        private boolean first = true;
+
+        private void line(final byte[] buf, final int off, final int len) {
+            String line = new String(buf, off, len, StandardCharsets.UTF_8);
+            if (first && line.startsWith("\uFEFF"))
+                line = line.substring(1);
+            first = false;
+            if (line.isEmpty()) {
+                dispatch();
+                return;
+            }
+            if (line.charAt(0) == ':')
+                return;
+            final int    colon = line.indexOf(':');
+            final String name  = colon == -1 ? line : line.substring(0, colon);
+            String       value = colon == -1 ? "" : line.substring(colon + 1);
+            if (value.startsWith(" "))
+                value = value.substring(1);
+            switch (name) {
+                case "data":
+                    data.append(value).append('\n');
+                    break;
+                case "event":
+                    event = value;
+                    break;
+                case "id":
+                    if (value.indexOf('\0') == -1)
+                        id = value;
+                    break;
+                case "retry":
+                    if (isDigits(value))
+                        try {
+                            retry = Long.parseLong(value);
+                        } catch (NumberFormatException ignored) {
+                            // Too large, ignored
+                        }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void dispatch() {
+            lastEventId = id;
+            if (data.length() == 0) {
+                event = "";
+                return;
+            }
+            data.setLength(data.length() - 1);
+            final ServerEvent serverEvent = new ServerEvent(id, event.isEmpty() ? "message" : event, data.toString());
+            data.setLength(0);
+            event = "";
+            if (!closed)
+                listener.onEvent(serverEvent);
+        }
+
+        private boolean isDigits(final String value) {
+            if (value.isEmpty())
+                return false;
+            for (int i = 0; i < value.length(); i++)
+                if (value.charAt(i) < '0' || value.charAt(i) > '9')
+                    return false;
+            return true;
+        }
+    }
+
+}
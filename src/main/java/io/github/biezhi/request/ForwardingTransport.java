@@ -0,0 +1,67 @@
+package io.github.biezhi.request;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.URL;
+
+/**
+ * {@link Transport} that hands calls on to another transport, the base for
+ * decorators such as {@link CachingTransport}.
+ * <p>
+ * Closing a forwarding transport closes the transport it wraps.
+ */
+public abstract class ForwardingTransport implements Transport, Closeable {
+
+    private final Transport delegate;
+
+    /**
+     * Create transport forwarding to the given one
+     *
+     * @param delegate
+     */
+    protected ForwardingTransport(final Transport delegate) {
+        if (delegate == null)
+            throw new IllegalArgumentException("Transport must not be null");
+        this.delegate = delegate;
+    }
+
+    /**
+     * Get the transport calls are forwarded to
+     *
+     * @return transport
+     */
+    public Transport delegate() {
+        return delegate;
+    }
+
+    @Override
+    public Response execute(final Call call) throws IOException {
+        return delegate.execute(call);
+    }
+
+    @Override
+    public boolean supports(final URL url, final Proxy proxy) {
+        return delegate.supports(url, proxy);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (delegate instanceof Closeable)
+            ((Closeable) delegate).close();
+    }
+
+    /**
+     * Unwrap the given transport down to the first one that is not a
+     * {@link ForwardingTransport}
+     *
+     * @param transport
+     * @return innermost transport
+     */
+    static Transport unwrap(Transport transport) {
+        while (transport instanceof ForwardingTransport)
+            transport = ((ForwardingTransport) transport).delegate();
+        return transport;
+    }
+
+}
@@ -0,0 +1,178 @@
+package io.github.biezhi.request;
+
+import java.util.*;
+
+import static io.github.biezhi.request.Const.CRLF;
+
+/**
+ * Ordered list of HTTP header name/value pairs
+ * <p>
+ * Lookups by name are case-insensitive and, like {@link java.net.HttpURLConnection},
+ * return the last value when a header occurs more than once.
+ */
+public final class Headers {
+
+    private final List<String> names;
+
+    private final List<String> values;
+
+    /**
+     * Create empty headers
+     */
+    public Headers() {
+        this.names = new ArrayList<>();
+        this.values = new ArrayList<>();
+    }
+
+    /**
+     * Create headers from a map of names to values such as the one returned
+     * by {@link java.net.URLConnection#getRequestProperties()}
+     *
+     * @param map
+     * @return headers
+     */
+    public static Headers of(final Map<String, List<String>> map) {
+        final Headers headers = new Headers();
+        if (map != null)
+            for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+                if (entry.getKey() == null || entry.getValue() == null)
+                    continue;
+                for (String value : entry.getValue())
+                    headers.add(entry.getKey(), value);
+            }
+        return headers;
+    }
+
+    /**
+     * Append a header
+     *
+     * @param name
+     * @param value
+     * @return these headers
+     */
+    public Headers add(final String name, final String value) {
+        names.add(name);
+        values.add(value != null ? value : "");
+        return this;
+    }
+
+    /**
+     * Replace all headers with the given name by a single header
+     *
+     * @param name
+     * @param value
+     * @return these headers
+     */
+    public Headers set(final String name, final String value) {
+        remove(name);
+        return add(name, value);
+    }
+
+    /**
+     * Remove all headers with the given name
+     *
+     * @param name
+     * @return these headers
+     */
+    public Headers remove(final String name) {
+        for (int i = names.size() - 1; i >= 0; i--)
+            if (names.get(i).equalsIgnoreCase(name)) {
+                names.remove(i);
+                values.remove(i);
+            }
+        return this;
+    }
+
+    /**
+     * Get the last value of the given header
+     *
+     * @param name
+     * @return value or null if missing
+     */
+    public String get(final String name) {
+        for (int i = names.size() - 1; i >= 0; i--)
+            if (names.get(i).equalsIgnoreCase(name))
+                return values.get(i);
+        return null;
+    }
+
+    /**
+     * Get all values of the given header in the order received
+     *
+     * @param name
+     * @return non-null but possibly empty list of values
+     */
+    public List<String> values(final String name) {
+        List<String> result = null;
+        for (int i = 0; i < names.size(); i++)
+            if (names.get(i).equalsIgnoreCase(name)) {
+                if (result == null)
+                    result = new ArrayList<>(2);
+                result.add(values.get(i));
+            }
+        return result != null ? result : Collections.emptyList();
+    }
+
+    /**
+     * Does the given header contain the given comma separated token?
+     *
+     * @param name
+     * @param token
+     * @return true if present, false otherwise
+     */
+    public boolean hasToken(final String name, final String token) {
+        for (String value : values(name))
+            for (String part : value.split(","))
+                if (part.trim().equalsIgnoreCase(token))
+                    return true;
+        return false;
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public String name(final int index) {
+        return names.get(index);
+    }
+
+    public String value(final int index) {
+        return values.get(index);
+    }
+
+    /**
+     * Copy these headers
+     *
+     * @return copy
+     */
+    public Headers copy() {
+        final Headers copy = new Headers();
+        copy.names.addAll(names);
+        copy.values.addAll(values);
+        return copy;
+    }
+
+    /**
+     * Get headers as an unmodifiable map of names to values, preserving the
+     * order in which names first appeared
+     *
+     * @return map
+     */
+    public Map<String, List<String>> toMap() {
+        final Map<String, List<String>> map  = new LinkedHashMap<>();
+        final Set<String>               seen = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        for (String name : names)
+            if (seen.add(name))
+                map.put(name, Collections.unmodifiableList(values(name)));
+        return Collections.unmodifiableMap(map);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < names.size(); i++)
+            builder.append(names.get(i)).append(": ").append(values.get(i)).append(CRLF);
+        return builder.toString();
+    }
+
+}
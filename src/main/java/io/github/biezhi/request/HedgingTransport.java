@@ -0,0 +1,392 @@
+package io.github.biezhi.request;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link Transport} that sends a second, hedged, attempt of an idempotent
+ * call when the first has not received its response headers within a delay,
+ * and returns whichever response arrives first.
+ * <p>
+ * The delay is fixed, or the given percentile of recent response times
+ * once enough have been seen. Hedges can go to an alternate host, such as
+ * another replica. The attempt that loses is cancelled, and its response
+ * closed without being read so its connection is not reused. Hedges are
+ * limited per host by a budget: each call earns a fraction of a hedge, so
+ * a slow host does not get twice the load:
+ * <pre>
+ * HedgingTransport transport = new HedgingTransport(new NioTransport())
+ *         .delay(50, TimeUnit.MILLISECONDS)
+ *         .percentile(0.95)
+ *         .alternate("replica-2.internal:8080");
+ * </pre>
+ * Attempts run on the configured {@link Executor} while the calling thread
+ * waits for the first response.
+ */
+public class HedgingTransport extends ForwardingTransport {
+
+    /**
+     * Response times kept for the percentile
+     */
+    private static final int SAMPLES = 128;
+
+    /**
+     * Response times needed before the percentile replaces the fixed delay
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    private volatile long delay = 100;
+
+    private volatile double percentile = -1;
+
+    private volatile String alternate;
+
+    private volatile double hedgeRatio = 0.1;
+
+    private volatile int hedgeReserve = 10;
+
+    private volatile Executor executor;
+
+    private final Map<String, Budget> budgets = new ConcurrentHashMap<>();
+
+    private final ReentrantLock samplesLock = new ReentrantLock();
+
+    private final long[] samples = new long[SAMPLES];
+
+    private long sampled;
+
+    private final AtomicLong hedges = new AtomicLong();
+
+    private final AtomicLong wins = new AtomicLong();
+
+    private final AtomicLong limited = new AtomicLong();
+
+    /**
+     * Create transport hedging calls to the given transport after 100
+     * milliseconds
+     *
+     * @param delegate
+     */
+    public HedgingTransport(final Transport delegate) {
+        super(delegate);
+    }
+
+    /**
+     * Set the time to wait for response headers before sending a hedge
+     *
+     * @param delay
+     * @param unit
+     * @return this transport
+     */
+    public HedgingTransport delay(final long delay, final TimeUnit unit) {
+        if (delay < 0)
+            throw new IllegalArgumentException("Delay must not be negative");
+        this.delay = unit.toMillis(delay);
+        return this;
+    }
+
+    /**
+     * Wait for the given percentile of recent response times instead of the
+     * fixed delay, once enough responses have been seen
+     *
+     * @param percentile percentile between 0 and 1, e.g. 0.95, or a negative
+     *                   value to always use the fixed delay
+     * @return this transport
+     */
+    public HedgingTransport percentile(final double percentile) {
+        if (percentile > 1)
+            throw new IllegalArgumentException("Percentile must not be greater than 1");
+        this.percentile = percentile;
+        return this;
+    }
+
+    /**
+     * Send hedges to the given host instead of the host of the call
+     *
+     * @param alternate 'host' or 'host:port', null for the host of the call
+     * @return this transport
+     */
+    public HedgingTransport alternate(final String alternate) {
+        this.alternate = alternate;
+        return this;
+    }
+
+    /**
+     * Set the hedge budget of each host: each call adds the given ratio of a
+     * hedge, up to the reserve, and each hedge takes one
+     *
+     * @param ratio   hedges allowed per call, 0.1 by default
+     * @param reserve hedges that can be sent at once, 10 by default
+     * @return this transport
+     */
+    public HedgingTransport budget(final double ratio, final int reserve) {
+        if (ratio < 0 || reserve < 0)
+            throw new IllegalArgumentException("Budget must not be negative");
+        this.hedgeRatio = ratio;
+        this.hedgeReserve = reserve;
+        return this;
+    }
+
+    /**
+     * Set the {@link Executor} attempts run on
+     *
+     * @param executor executor or null for the default one
+     * @return this transport
+     */
+    public HedgingTransport executor(final Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @return number of hedges sent
+     */
+    public long hedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return number of hedges that answered first
+     */
+    public long wins() {
+        return wins.get();
+    }
+
+    /**
+     * @return number of hedges not sent as the host's budget was spent
+     */
+    public long limited() {
+        return limited.get();
+    }
+
+    /**
+     * Get the time currently waited before hedging
+     *
+     * @return delay in milliseconds
+     */
+    public long currentDelay() {
+        final double percentile = this.percentile;
+        if (percentile < 0)
+            return delay;
+        final long[] sorted;
+        samplesLock.lock();
+        try {
+            if (sampled < MIN_SAMPLES)
+                return delay;
+            sorted = Arrays.copyOf(samples, (int) Math.min(sampled, SAMPLES));
+        } finally {
+            samplesLock.unlock();
+        }
+        Arrays.sort(sorted);
+        return sorted[Math.max(0, (int) Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    private void sample(final long millis) {
+        samplesLock.lock();
+        try {
+            samples[(int) (sampled++ % SAMPLES)] = millis;
+        } finally {
+            samplesLock.unlock();
+        }
+    }
+
+    @Override
+    public Response execute(final Call call) throws IOException {
+        if (!RetryPolicy.isIdempotent(call))
+            return super.execute(call);
+        final Budget budget = budgets.computeIfAbsent(call.authority(), authority -> new Budget(hedgeReserve));
+        budget.deposit(hedgeRatio, hedgeReserve);
+
+        final Race race = new Race();
+        race.start(call, false);
+        try {
+            final Object first = race.await(currentDelay());
+            if (first instanceof Response)
+                return race.won((Response) first);
+            if (first == null) {
+                if (budget.withdraw()) {
+                    hedges.incrementAndGet();
+                    race.start(hedgeCall(call), true);
+                } else {
+                    limited.incrementAndGet();
+                }
+            }
+            IOException failure = first instanceof IOException ? (IOException) first : null;
+            while (race.pending()) {
+                final Object next = race.await(-1);
+                if (next instanceof Response)
+                    return race.won((Response) next);
+                if (failure == null)
+                    failure = (IOException) next;
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            race.cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a response");
+        }
+    }
+
+    private Call hedgeCall(final Call call) throws MalformedURLException {
+        final String alternate = this.alternate;
+        if (alternate == null)
+            return call;
+        final URL url = call.url();
+        return call.withUrl(new URL(url.getProtocol() + "://" + alternate + url.getFile()));
+    }
+
+    /**
+     * Attempts of one call, delivering their results in the order they
+     * complete
+     */
+    private class Race {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition completed = lock.newCondition();
+
+        private final Queue<Object> results = new ArrayDeque<>(2);
+
+        private final Queue<FutureTask<Void>> attempts = new ArrayDeque<>(2);
+
+        private int running;
+
+        private boolean done;
+
+        private Response hedge;
+
+        void start(final Call call, final boolean hedged) {
+            final long             start = System.nanoTime();
+            final FutureTask<Void> task  = new FutureTask<>(() -> {
+                Object result;
+                try {
+                    final Response response = HedgingTransport.super.execute(call);
+                    sample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    if (hedged)
+                        hedge = response;
+                    result = response;
+                } catch (IOException e) {
+                    result = e;
+                } catch (RuntimeException e) {
+                    result = new IOException(e);
+                }
+                deliver(result);
+            }, null);
+            lock.lock();
+            try {
+                running++;
+                attempts.add(task);
+            } finally {
+                lock.unlock();
+            }
+            final Executor executor = HedgingTransport.this.executor;
+            try {
+                (executor != null ? executor : DefaultExecutor.get()).execute(task);
+            } catch (RejectedExecutionException e) {
+                deliver(new IOException("Attempt rejected by executor", e));
+            }
+        }
+
+        private void deliver(final Object result) {
+            lock.lock();
+            try {
+                running--;
+                if (!done) {
+                    results.add(result);
+                    completed.signalAll();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            close(result);
+        }
+
+        boolean pending() {
+            lock.lock();
+            try {
+                return running > 0 || !results.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wait for the next result
+         *
+         * @param millis time to wait, -1 to wait until one arrives
+         * @return response, failure or null if none arrived in time
+         */
+        Object await(final long millis) throws InterruptedException {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+            lock.lock();
+            try {
+                while (results.isEmpty()) {
+                    if (millis < 0)
+                        completed.await();
+                    else if (nanos <= 0)
+                        return null;
+                    else
+                        nanos = completed.awaitNanos(nanos);
+                }
+                return results.poll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * End the race with the given response, cancelling the other attempt
+         */
+        Response won(final Response response) {
+            if (response == hedge)
+                wins.incrementAndGet();
+            cancel();
+            return response;
+        }
+
+        void cancel() {
+            lock.lock();
+            try {
+                done = true;
+                for (Object result : results)
+                    close(result);
+                results.clear();
+                for (FutureTask<Void> attempt : attempts)
+                    attempt.cancel(true);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void close(final Object result) {
+            if (result instanceof Response)
+                try {
+                    ((Response) result).close();
+                } catch (IOException ignored) {
+                    // Ignored
+                }
+        }
+
+    }
+
+    @Override
+    public String toString() {
+        return "HedgingTransport{hedges=" + hedges + ", wins=" + wins + ", limited=" + limited + '}';
+    }
+
+}
@@ -0,0 +1,375 @@
+package io.github.biezhi.request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541)
+ * <p>
+ * Each connection owns one {@link Encoder} and one {@link Decoder}. Both are
+ * stateful and must see header blocks in the exact order they are sent or
+ * received, so callers serialise access to them.
+ */
+final class Hpack {
+
+    /**
+     * Size of the dynamic tables, the protocol default
+     */
+    static final int TABLE_SIZE = 4096;
+
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    private static final Map<String, Integer> STATIC_ENTRIES = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_ENTRIES.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Dynamic table, entries are kept oldest first
+     */
+    private static final class Table {
+
+        private final ArrayList<String[]> entries = new ArrayList<>();
+
+        private int capacity = TABLE_SIZE;
+
+        private int size;
+
+        int length() {
+            return entries.size();
+        }
+
+        /**
+         * @param index 1 based dynamic index, 1 being the newest entry
+         * @return name and value
+         */
+        String[] get(final int index) {
+            return entries.get(entries.size() - index);
+        }
+
+        void add(final String name, final String value) {
+            final int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            evict(capacity - entrySize);
+            // An entry larger than the table empties it and is not added
+            if (entrySize <= capacity) {
+                entries.add(new String[]{name, value});
+                size += entrySize;
+            }
+        }
+
+        void capacity(final int capacity) {
+            this.capacity = capacity;
+            evict(capacity);
+        }
+
+        private void evict(final int limit) {
+            int removed = 0;
+            while (size > limit && removed < entries.size()) {
+                final String[] entry = entries.get(removed++);
+                size -= entry[0].length() + entry[1].length() + ENTRY_OVERHEAD;
+            }
+            if (removed > 0)
+                entries.subList(0, removed).clear();
+        }
+    }
+
+    /**
+     * Decodes header blocks received from the peer
+     */
+    static final class Decoder {
+
+        private final Table table = new Table();
+
+        private final int maxHeaderListSize;
+
+        /**
+         * @param maxHeaderListSize limit of the decoded size of one header
+         *                          block as advertised to the peer
+         */
+        Decoder(final int maxHeaderListSize) {
+            this.maxHeaderListSize = maxHeaderListSize;
+        }
+
+        /**
+         * Decode a complete header block
+         *
+         * @param block
+         * @param length
+         * @return headers with lower case names, including pseudo-headers
+         * @throws IOException if the block is malformed
+         */
+        Headers decode(final byte[] block, final int length) throws IOException {
+            final Headers headers  = new Headers();
+            final int[]   position = {0};
+            int           listSize = 0;
+            while (position[0] < length) {
+                final int first = block[position[0]] & 0xff;
+                final String name;
+                final String value;
+                if ((first & 0x80) != 0) {
+                    final String[] entry = entry(readInt(block, position, length, 7));
+                    name = entry[0];
+                    value = entry[1];
+                } else if ((first & 0x20) != 0 && (first & 0xc0) == 0) {
+                    if (headers.size() > 0)
+                        throw new ProtocolException("HPACK: table size update after a header");
+                    final int capacity = readInt(block, position, length, 5);
+                    if (capacity > TABLE_SIZE)
+                        throw new ProtocolException("HPACK: table size " + capacity + " exceeds " + TABLE_SIZE);
+                    table.capacity(capacity);
+                    continue;
+                } else {
+                    final boolean indexing = (first & 0x40) != 0;
+                    final int     index    = readInt(block, position, length, indexing ? 6 : 4);
+                    name = index == 0 ? readString(block, position, length) : entry(index)[0];
+                    value = readString(block, position, length);
+                    if (indexing)
+                        table.add(name, value);
+                }
+                listSize += name.length() + value.length() + ENTRY_OVERHEAD;
+                if (listSize > maxHeaderListSize)
+                    throw new ProtocolException("HPACK: header list exceeds " + maxHeaderListSize + " bytes");
+                headers.add(name, value);
+            }
+            return headers;
+        }
+
+        private String[] entry(final int index) throws IOException {
+            if (index <= 0)
+                throw new ProtocolException("HPACK: invalid index " + index);
+            if (index <= STATIC_TABLE.length)
+                return STATIC_TABLE[index - 1];
+            if (index - STATIC_TABLE.length > table.length())
+                throw new ProtocolException("HPACK: invalid index " + index);
+            return table.get(index - STATIC_TABLE.length);
+        }
+    }
+
+    /**
+     * Encodes header blocks sent to the peer
+     */
+    static final class Encoder {
+
+        private final Table table = new Table();
+
+        private int pendingMin = -1;
+
+        private int pendingCapacity = -1;
+
+        /**
+         * Apply the peer's SETTINGS_HEADER_TABLE_SIZE, the table never grows
+         * beyond {@link #TABLE_SIZE}
+         *
+         * @param size
+         */
+        void maxTableSize(final int size) {
+            final int capacity = Math.min(size, TABLE_SIZE);
+            pendingMin = pendingMin == -1 ? capacity : Math.min(pendingMin, capacity);
+            pendingCapacity = capacity;
+        }
+
+        /**
+         * Encode one header block
+         *
+         * @param headers names must already be lower case
+         * @param output
+         */
+        void encode(final Headers headers, final ByteArrayOutputStream output) {
+            if (pendingCapacity != -1) {
+                // Signal the smallest size reached since the last block first
+                if (pendingMin < pendingCapacity)
+                    writeInt(output, 0x20, 5, pendingMin);
+                writeInt(output, 0x20, 5, pendingCapacity);
+                table.capacity(pendingCapacity);
+                pendingMin = -1;
+                pendingCapacity = -1;
+            }
+            for (int i = 0; i < headers.size(); i++)
+                encode(headers.name(i), headers.value(i), output);
+        }
+
+        private void encode(final String name, final String value, final ByteArrayOutputStream output) {
+            final Integer exact = STATIC_ENTRIES.get(name + '\0' + value);
+            if (exact != null) {
+                writeInt(output, 0x80, 7, exact);
+                return;
+            }
+            int nameIndex = 0;
+            for (int i = 1; i <= table.length(); i++) {
+                final String[] entry = table.get(i);
+                if (!entry[0].equals(name))
+                    continue;
+                if (entry[1].equals(value)) {
+                    writeInt(output, 0x80, 7, STATIC_TABLE.length + i);
+                    return;
+                }
+                if (nameIndex == 0)
+                    nameIndex = STATIC_TABLE.length + i;
+            }
+            final Integer staticName = STATIC_NAMES.get(name);
+            if (staticName != null)
+                nameIndex = staticName;
+
+            if (sensitive(name))
+                writeInt(output, 0x10, 4, nameIndex);
+            else if (volatileValue(name))
+                writeInt(output, 0x00, 4, nameIndex);
+            else {
+                writeInt(output, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+            if (nameIndex == 0)
+                writeString(output, name);
+            writeString(output, value);
+        }
+
+        private static boolean sensitive(final String name) {
+            return "authorization".equals(name) || "proxy-authorization".equals(name)
+                    || "cookie".equals(name);
+        }
+
+        private static boolean volatileValue(final String name) {
+            return ":path".equals(name) || "content-length".equals(name) || "range".equals(name)
+                    || "if-modified-since".equals(name) || "if-none-match".equals(name)
+                    || "if-range".equals(name);
+        }
+    }
+
+    static void writeInt(final ByteArrayOutputStream output, final int flags, final int prefix, int value) {
+        final int max = (1 << prefix) - 1;
+        if (value < max) {
+            output.write(flags | value);
+            return;
+        }
+        output.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            output.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        output.write(value);
+    }
+
+    static int readInt(final byte[] data, final int[] position, final int length,
+                       final int prefix) throws IOException {
+        final int max   = (1 << prefix) - 1;
+        long      value = data[position[0]++] & max;
+        if (value < max)
+            return (int) value;
+        for (int shift = 0; ; shift += 7) {
+            if (position[0] >= length)
+                throw new ProtocolException("HPACK: truncated integer");
+            final int b = data[position[0]++] & 0xff;
+            value += (long) (b & 0x7f) << shift;
+            if (value > Integer.MAX_VALUE)
+                throw new ProtocolException("HPACK: integer overflow");
+            if ((b & 0x80) == 0)
+                return (int) value;
+        }
+    }
+
+    static void writeString(final ByteArrayOutputStream output, final String value) {
+        final byte[] bytes   = value.getBytes(StandardCharsets.ISO_8859_1);
+        final int    huffman = Huffman.encodedLength(bytes);
+        if (huffman < bytes.length) {
+            writeInt(output, 0x80, 7, huffman);
+            Huffman.encode(bytes, output);
+        } else {
+            writeInt(output, 0x00, 7, bytes.length);
+            output.write(bytes, 0, bytes.length);
+        }
+    }
+
+    static String readString(final byte[] data, final int[] position, final int length) throws IOException {
+        if (position[0] >= length)
+            throw new ProtocolException("HPACK: truncated string");
+        final boolean huffman = (data[position[0]] & 0x80) != 0;
+        final int     size    = readInt(data, position, length, 7);
+        if (size > length - position[0])
+            throw new ProtocolException("HPACK: truncated string");
+        final int start = position[0];
+        position[0] += size;
+        if (huffman)
+            return new String(Huffman.decode(data, start, size), StandardCharsets.ISO_8859_1);
+        return new String(data, start, size, StandardCharsets.ISO_8859_1);
+    }
+
+}
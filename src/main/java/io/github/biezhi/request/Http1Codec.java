@@ -0,0 +1,448 @@
+package io.github.biezhi.request;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import static io.github.biezhi.request.Const.*;
+
+/**
+ * HTTP/1.1 message encoding and decoding used by {@link NioTransport}
+ */
+final class Http1Codec {
+
+    static final String USER_AGENT = "Java/" + System.getProperty("java.version");
+
+    private static final int MAX_LINE = 64 * 1024;
+
+    private Http1Codec() {
+    }
+
+    /**
+     * Callback invoked once a response body has been fully read or abandoned
+     */
+    interface BodyListener {
+
+        /**
+         * @param reusable true if the whole body was consumed and the
+         *                 connection may carry another exchange
+         */
+        void done(boolean reusable);
+    }
+
+    /**
+     * Encode the request line and headers of the given call
+     *
+     * @param call
+     * @param keepAlive whether to ask the server to keep the connection open
+     * @return encoded head
+     */
+    static ByteBuffer encodeHead(final Call call, final boolean keepAlive) {
+        final StringBuilder head = new StringBuilder(256);
+        String target = call.url().getFile();
+        if (target == null || target.isEmpty())
+            target = "/";
+        head.append(call.method()).append(' ').append(target).append(" HTTP/1.1").append(CRLF);
+
+        final Headers headers = call.headers();
+        if (headers.get("Host") == null) {
+            head.append("Host: ").append(call.host());
+            if (call.url().getPort() != -1 && call.url().getPort() != call.url().getDefaultPort())
+                head.append(':').append(call.url().getPort());
+            head.append(CRLF);
+        }
+        if (headers.get(HEADER_USER_AGENT) == null)
+            head.append(HEADER_USER_AGENT).append(": ").append(USER_AGENT).append(CRLF);
+        if (headers.get(HEADER_ACCEPT) == null)
+            head.append(HEADER_ACCEPT).append(": */*").append(CRLF);
+        if (headers.get("Connection") == null)
+            head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append(CRLF);
+
+        final RequestBody body = call.body();
+        if (body != null && headers.get(HEADER_CONTENT_LENGTH) == null)
+            head.append(HEADER_CONTENT_LENGTH).append(": ").append(body.length()).append(CRLF);
+        else if (body == null && (METHOD_POST.equals(call.method()) || METHOD_PUT.equals(call.method()))
+                && headers.get(HEADER_CONTENT_LENGTH) == null)
+            head.append(HEADER_CONTENT_LENGTH).append(": 0").append(CRLF);
+
+        for (int i = 0; i < headers.size(); i++) {
+            final String name = headers.name(i);
+            if ("Transfer-Encoding".equalsIgnoreCase(name))
+                continue;
+            head.append(name).append(": ").append(headers.value(i)).append(CRLF);
+        }
+        head.append(CRLF);
+        return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Read a response status line and headers, skipping interim 1xx responses
+     *
+     * @param input
+     * @return response without a body
+     * @throws IOException
+     */
+    static Response readHead(final InputStream input) throws IOException {
+        while (true) {
+            final String status = readLine(input);
+            if (status == null)
+                throw new EOFException("Unexpected end of stream reading status line");
+            if (!status.startsWith("HTTP/"))
+                throw new ProtocolException("Invalid status line: " + status);
+            final int first = status.indexOf(' ');
+            if (first == -1)
+                throw new ProtocolException("Invalid status line: " + status);
+            int second = status.indexOf(' ', first + 1);
+            if (second == -1)
+                second = status.length();
+            final int code;
+            try {
+                code = Integer.parseInt(status.substring(first + 1, second));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid status line: " + status);
+            }
+            final String  message = second < status.length() ? status.substring(second + 1) : "";
+            final Headers headers = readHeaders(input);
+            if (code >= 100 && code < 200 && code != 101)
+                continue;
+            return new Response(status.substring(0, first), code, message, headers, null);
+        }
+    }
+
+    private static Headers readHeaders(final InputStream input) throws IOException {
+        final Headers headers = new Headers();
+        String        line;
+        while ((line = readLine(input)) != null && !line.isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon <= 0)
+                throw new ProtocolException("Invalid header line: " + line);
+            headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+        }
+        return headers;
+    }
+
+    /**
+     * Read a CRLF or LF terminated line in ISO-8859-1
+     *
+     * @param input
+     * @return line without terminator, null at end of stream
+     * @throws IOException
+     */
+    static String readLine(final InputStream input) throws IOException {
+        final StringBuilder line = new StringBuilder(64);
+        int                 b;
+        while ((b = input.read()) != -1) {
+            if (b == '\n') {
+                final int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r')
+                    line.setLength(length - 1);
+                return line.toString();
+            }
+            if (line.length() >= MAX_LINE)
+                throw new ProtocolException("Line too long");
+            line.append((char) b);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    /**
+     * Does the response to the given method carry a body?
+     *
+     * @param method
+     * @param code
+     * @return true if a body follows the head
+     */
+    static boolean hasBody(final String method, final int code) {
+        if (METHOD_HEAD.equals(method))
+            return false;
+        return !(code >= 100 && code < 200) && code != 204 && code != 304;
+    }
+
+    /**
+     * Create the body stream for a response read from the given input
+     *
+     * @param input    connection input positioned after the response head
+     * @param method   request method
+     * @param head     response head
+     * @param listener notified when the body is complete or abandoned
+     * @return body stream
+     * @throws IOException
+     */
+    static InputStream body(final InputStream input, final String method, final Response head,
+                            final BodyListener listener) throws IOException {
+        final Headers headers   = head.headers();
+        final boolean keepAlive = !headers.hasToken("Connection", "close")
+                && !"HTTP/1.0".equals(head.protocol());
+        if (!hasBody(method, head.code())) {
+            listener.done(keepAlive);
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        if (headers.hasToken("Transfer-Encoding", "chunked"))
+            return new ChunkedInputStream(input, keepAlive, listener);
+        final String length = headers.get(HEADER_CONTENT_LENGTH);
+        if (length != null) {
+            final long contentLength;
+            try {
+                contentLength = Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length: " + length);
+            }
+            if (contentLength < 0)
+                throw new ProtocolException("Invalid Content-Length: " + length);
+            if (contentLength == 0) {
+                listener.done(keepAlive);
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            return new FixedLengthInputStream(input, contentLength, keepAlive, listener);
+        }
+        return new CloseDelimitedInputStream(input, listener);
+    }
+
+    /**
+     * Base body stream that reports completion exactly once
+     * <p>
+     * Bodies are also {@link ReadableByteChannel}s: when the connection
+     * stream is a channel, {@link #read(ByteBuffer)} fills the caller's
+     * buffer without going through a byte array.
+     */
+    private abstract static class BodyInputStream extends FilterInputStream implements ReadableByteChannel {
+
+        private final BodyListener listener;
+
+        private boolean done;
+
+        private boolean closed;
+
+        BodyInputStream(final InputStream input, final BodyListener listener) {
+            super(input);
+            this.listener = listener;
+        }
+
+        void finish(final boolean reusable) {
+            if (done)
+                return;
+            done = true;
+            listener.done(reusable);
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            final int    read   = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            return read(b, off, null, len);
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            return read(null, 0, dst, dst.remaining());
+        }
+
+        /**
+         * Read at most len body bytes into the array or, when dst is not
+         * null, into the buffer
+         */
+        abstract int read(byte[] b, int off, ByteBuffer dst, int len) throws IOException;
+
+        /**
+         * Read at most len bytes from the connection
+         */
+        int fill(final byte[] b, final int off, final ByteBuffer dst, final int len) throws IOException {
+            if (dst == null)
+                return in.read(b, off, len);
+            if (in instanceof ReadableByteChannel) {
+                final int limit = dst.limit();
+                dst.limit(dst.position() + len);
+                try {
+                    return ((ReadableByteChannel) in).read(dst);
+                } finally {
+                    dst.limit(limit);
+                }
+            }
+            final byte[] buffer = new byte[Math.min(len, 8192)];
+            final int    read   = in.read(buffer, 0, buffer.length);
+            if (read > 0)
+                dst.put(buffer, 0, read);
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final byte[] buffer = new byte[(int) Math.min(n, 4096)];
+            long         total  = 0;
+            while (total < n) {
+                final int read = read(buffer, 0, (int) Math.min(buffer.length, n - total));
+                if (read == -1)
+                    break;
+                total += read;
+            }
+            return total;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            finish(false);
+        }
+    }
+
+    /**
+     * Body delimited by a Content-Length header
+     */
+    private static final class FixedLengthInputStream extends BodyInputStream {
+
+        private final boolean keepAlive;
+
+        private long remaining;
+
+        FixedLengthInputStream(final InputStream input, final long length, final boolean keepAlive,
+                               final BodyListener listener) {
+            super(input, listener);
+            this.remaining = length;
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        int read(final byte[] b, final int off, final ByteBuffer dst, final int len) throws IOException {
+            if (remaining == 0 || isDone())
+                return -1;
+            final int read = fill(b, off, dst, (int) Math.min(len, remaining));
+            if (read == -1) {
+                finish(false);
+                throw new EOFException("Unexpected end of stream, " + remaining + " bytes missing");
+            }
+            remaining -= read;
+            if (remaining == 0)
+                finish(keepAlive);
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return isDone() ? 0 : (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    /**
+     * Body using chunked transfer encoding
+     */
+    private static final class ChunkedInputStream extends BodyInputStream {
+
+        private final boolean keepAlive;
+
+        private long chunkRemaining;
+
+        private boolean last;
+
+        ChunkedInputStream(final InputStream input, final boolean keepAlive,
+                           final BodyListener listener) {
+            super(input, listener);
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        int read(final byte[] b, final int off, final ByteBuffer dst, final int len) throws IOException {
+            if (last || isDone())
+                return -1;
+            if (chunkRemaining == 0) {
+                nextChunk();
+                if (last)
+                    return -1;
+            }
+            final int read = fill(b, off, dst, (int) Math.min(len, chunkRemaining));
+            if (read == -1) {
+                finish(false);
+                throw new EOFException("Unexpected end of stream in chunked body");
+            }
+            chunkRemaining -= read;
+            if (chunkRemaining == 0)
+                readChunkEnd();
+            return read;
+        }
+
+        private void readChunkEnd() throws IOException {
+            final String line = readLine(in);
+            if (line == null || !line.isEmpty())
+                throw new ProtocolException("Expected CRLF after chunk");
+        }
+
+        private void nextChunk() throws IOException {
+            final String line = readLine(in);
+            if (line == null) {
+                finish(false);
+                throw new EOFException("Unexpected end of stream in chunked body");
+            }
+            final int    extension = line.indexOf(';');
+            final String size      = (extension != -1 ? line.substring(0, extension) : line).trim();
+            try {
+                chunkRemaining = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid chunk size: " + line);
+            }
+            if (chunkRemaining == 0) {
+                // Skip trailers
+                String trailer;
+                while ((trailer = readLine(in)) != null && !trailer.isEmpty()) {
+                    // Ignored
+                }
+                last = true;
+                finish(keepAlive);
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return last || isDone() ? 0 : (int) Math.min(in.available(), chunkRemaining);
+        }
+    }
+
+    /**
+     * Body that lasts until the server closes the connection
+     */
+    private static final class CloseDelimitedInputStream extends BodyInputStream {
+
+        CloseDelimitedInputStream(final InputStream input, final BodyListener listener) {
+            super(input, listener);
+        }
+
+        @Override
+        int read(final byte[] b, final int off, final ByteBuffer dst, final int len) throws IOException {
+            if (isDone())
+                return -1;
+            final int read = fill(b, off, dst, len);
+            if (read == -1)
+                finish(false);
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return isDone() ? 0 : in.available();
+        }
+    }
+
+}
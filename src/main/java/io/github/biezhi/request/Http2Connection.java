@@ -0,0 +1,994 @@
+package io.github.biezhi.request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.github.biezhi.request.Const.*;
+
+/**
+ * A single HTTP/2 connection carrying many concurrent streams (RFC 7540)
+ * <p>
+ * Callers open a stream per exchange and write their frames under a write
+ * lock that also serialises HPACK encoding. One reader task parses inbound
+ * frames and hands headers and data to the streams. Both directions are
+ * flow controlled: request bodies wait for send window and window updates
+ * are sent back as response bodies are consumed.
+ */
+final class Http2Connection implements Closeable {
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int CANCEL = 0x8;
+
+    private static final int FRAME_HEADER = 9;
+
+    private static final int DEFAULT_WINDOW = 65535;
+
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+
+    private static final int STREAM_WINDOW = 1024 * 1024;
+
+    private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+
+    private static final int MAX_HEADER_LIST = 256 * 1024;
+
+    /**
+     * Thrown when a stream was not processed by the server, so it may be
+     * retried on another connection whatever its method
+     */
+    static final class RefusedStreamException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        RefusedStreamException(final String message) {
+            super(message);
+        }
+    }
+
+    private final NioChannel channel;
+
+    private final InputStream input;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition slots = lock.newCondition();
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    private final Hpack.Decoder decoder = new Hpack.Decoder(MAX_HEADER_LIST);
+
+    private final Map<Integer, Stream> streams = new HashMap<>();
+
+    private int nextStreamId = 1;
+
+    private int active;
+
+    private int maxConcurrentStreams = Integer.MAX_VALUE;
+
+    private int initialWindow = DEFAULT_WINDOW;
+
+    private volatile int maxFrameSize = DEFAULT_FRAME_SIZE;
+
+    private long sendWindow = DEFAULT_WINDOW;
+
+    private int unacknowledged;
+
+    private boolean goaway;
+
+    private IOException failure;
+
+    private Http2Connection(final NioChannel channel) {
+        this.channel = channel;
+        this.input = channel.inputStream(0);
+    }
+
+    /**
+     * Start HTTP/2 with prior knowledge on a connected channel
+     *
+     * @param channel
+     * @return connection
+     */
+    static Http2Connection open(final NioChannel channel) {
+        final Http2Connection connection = new Http2Connection(channel);
+        final ByteBuffer settings = ByteBuffer.allocate(18);
+        settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+        settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_WINDOW);
+        settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST);
+        channel.write(ByteBuffer.wrap(PREFACE),
+                frame(SETTINGS, 0, 0, settings.array(), 0, settings.capacity()),
+                windowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW));
+        DefaultExecutor.get().execute(connection::readLoop);
+        return connection;
+    }
+
+    /**
+     * Can this connection take new streams?
+     *
+     * @return true unless failed, shut down by the peer or out of stream ids
+     */
+    boolean isUsable() {
+        lock.lock();
+        try {
+            return failure == null && !goaway && nextStreamId > 0 && channel.isOpen();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send the call on a new stream and wait for the response headers
+     *
+     * @param call
+     * @return response whose body reads the stream's data
+     * @throws IOException
+     */
+    Response exchange(final Call call) throws IOException {
+        reserve(call.readTimeout());
+        final Stream stream;
+        try {
+            stream = sendHeaders(call);
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+        try {
+            if (call.body() != null && call.body().length() > 0)
+                sendBody(stream, call.body(), call.readTimeout());
+            stream.awaitHeaders(call.readTimeout());
+            return new Response("HTTP/2", stream.code, "", stream.headers, stream.body);
+        } catch (IOException | RuntimeException e) {
+            stream.body.close();
+            throw e;
+        }
+    }
+
+    private void reserve(final int timeout) throws IOException {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (true) {
+                if (failure != null || goaway || nextStreamId < 0)
+                    throw new RefusedStreamException("HTTP/2 connection no longer accepts streams");
+                if (active < maxConcurrentStreams)
+                    break;
+                if (timeout <= 0)
+                    slots.await();
+                else if (remaining <= 0)
+                    throw new SocketTimeoutException("Timed out waiting for an HTTP/2 stream");
+                else
+                    remaining = slots.awaitNanos(remaining);
+            }
+            active++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for an HTTP/2 stream");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            active--;
+            slots.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Stream sendHeaders(final Call call) throws IOException {
+        final Headers headers = requestHeaders(call);
+        final boolean endStream = call.body() == null || call.body().length() == 0;
+        // Stream ids must be sent in increasing order and header blocks in
+        // the order they were encoded, so both happen under the write lock
+        writeLock.lock();
+        try {
+            final Stream stream;
+            lock.lock();
+            try {
+                if (failure != null || goaway || nextStreamId < 0)
+                    throw new RefusedStreamException("HTTP/2 connection no longer accepts streams");
+                stream = new Stream(nextStreamId, initialWindow, call.readTimeout());
+                nextStreamId += 2;
+                streams.put(stream.id, stream);
+            } finally {
+                lock.unlock();
+            }
+            final ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+            encoder.encode(headers, block);
+            final byte[] bytes     = block.toByteArray();
+            final int    frameSize = maxFrameSize;
+            int          offset    = 0;
+            do {
+                final int     length = Math.min(frameSize, bytes.length - offset);
+                final boolean last   = offset + length == bytes.length;
+                int           flags  = last ? FLAG_END_HEADERS : 0;
+                if (offset == 0 && endStream)
+                    flags |= FLAG_END_STREAM;
+                channel.write(frame(offset == 0 ? HEADERS : CONTINUATION, flags, stream.id, bytes, offset, length));
+                offset += length;
+            } while (offset < bytes.length);
+            return stream;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static Headers requestHeaders(final Call call) {
+        final Headers headers = new Headers();
+        final Headers source  = call.headers();
+        String        target  = call.url().getFile();
+        if (target == null || target.isEmpty())
+            target = "/";
+        String authority = source.get("Host");
+        if (authority == null) {
+            authority = call.host();
+            if (call.url().getPort() != -1 && call.url().getPort() != call.url().getDefaultPort())
+                authority += ":" + call.url().getPort();
+        }
+        headers.add(":method", call.method());
+        headers.add(":scheme", call.url().getProtocol().toLowerCase(Locale.US));
+        headers.add(":authority", authority);
+        headers.add(":path", target);
+        if (source.get(HEADER_USER_AGENT) == null)
+            headers.add("user-agent", Http1Codec.USER_AGENT);
+        if (source.get(HEADER_ACCEPT) == null)
+            headers.add("accept", "*/*");
+        if (call.body() != null && source.get(HEADER_CONTENT_LENGTH) == null)
+            headers.add("content-length", Long.toString(call.body().length()));
+        for (int i = 0; i < source.size(); i++) {
+            final String name = source.name(i).toLowerCase(Locale.US);
+            // Connection specific headers are not allowed in HTTP/2
+            if ("host".equals(name) || "connection".equals(name) || "keep-alive".equals(name)
+                    || "proxy-connection".equals(name) || "transfer-encoding".equals(name)
+                    || "upgrade".equals(name))
+                continue;
+            if ("te".equals(name) && !"trailers".equalsIgnoreCase(source.value(i)))
+                continue;
+            headers.add(name, source.value(i));
+        }
+        return headers;
+    }
+
+    private void sendBody(final Stream stream, final RequestBody body, final int timeout) throws IOException {
+        long remaining = body.length();
+        for (RequestBody.Segment segment : body.segments()) {
+            final FileChannel file     = segment.isFile() ? segment.open() : null;
+            final ByteBuffer  buffer   = file == null ? segment.buffer() : null;
+            long              position = segment.position();
+            long              left     = segment.length();
+            try {
+                while (left > 0) {
+                    final int length = stream.acquireWindow((int) Math.min(left, maxFrameSize), timeout);
+                    if (length == 0) {
+                        send(rstStream(stream.id, NO_ERROR));
+                        return;
+                    }
+                    left -= length;
+                    remaining -= length;
+                    final ByteBuffer header = frameHeader(length, DATA, remaining == 0 ? FLAG_END_STREAM : 0, stream.id);
+                    writeLock.lock();
+                    try {
+                        channel.write(header);
+                        if (file != null)
+                            channel.transfer(file, position, length, sent -> stream.progress(segment, sent));
+                        else {
+                            final ByteBuffer chunk = buffer.slice();
+                            chunk.limit(length);
+                            buffer.position(buffer.position() + length);
+                            channel.write(chunk);
+                        }
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    position += length;
+                }
+            } finally {
+                if (file != null)
+                    channel.closeAfterWrites(file);
+            }
+        }
+    }
+
+    private void send(final ByteBuffer... frames) {
+        writeLock.lock();
+        try {
+            channel.write(frames);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static ByteBuffer frameHeader(final int length, final int type, final int flags, final int streamId) {
+        final ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+        header.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+        header.put((byte) type).put((byte) flags).putInt(streamId);
+        header.flip();
+        return header;
+    }
+
+    private static ByteBuffer frame(final int type, final int flags, final int streamId,
+                                    final byte[] payload, final int offset, final int length) {
+        final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + length);
+        frame.put(frameHeader(length, type, flags, streamId)).put(payload, offset, length);
+        frame.flip();
+        return frame;
+    }
+
+    private static ByteBuffer windowUpdate(final int streamId, final int increment) {
+        final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + 4);
+        frame.put(frameHeader(4, WINDOW_UPDATE, 0, streamId)).putInt(increment);
+        frame.flip();
+        return frame;
+    }
+
+    private static ByteBuffer rstStream(final int streamId, final int error) {
+        final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + 4);
+        frame.put(frameHeader(4, RST_STREAM, 0, streamId)).putInt(error);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Return window for bytes consumed by the application, batching updates
+     * until half of a window has been used
+     *
+     * @param stream stream the bytes belonged to or null if discarded
+     * @param count
+     */
+    private void consumed(final Stream stream, final int count) {
+        if (count <= 0)
+            return;
+        int connectionIncrement = 0;
+        int streamIncrement     = 0;
+        lock.lock();
+        try {
+            unacknowledged += count;
+            if (unacknowledged >= CONNECTION_WINDOW / 2) {
+                connectionIncrement = unacknowledged;
+                unacknowledged = 0;
+            }
+            if (stream != null && !stream.ended && !stream.cancelled) {
+                stream.unacknowledged += count;
+                if (stream.unacknowledged >= STREAM_WINDOW / 2) {
+                    streamIncrement = stream.unacknowledged;
+                    stream.unacknowledged = 0;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (connectionIncrement > 0)
+            send(windowUpdate(0, connectionIncrement));
+        if (streamIncrement > 0)
+            send(windowUpdate(stream.id, streamIncrement));
+    }
+
+    private void readLoop() {
+        final byte[]                header         = new byte[FRAME_HEADER];
+        final byte[]                payload        = new byte[DEFAULT_FRAME_SIZE];
+        final ByteArrayOutputStream block          = new ByteArrayOutputStream();
+        int                         blockStream    = 0;
+        boolean                     blockEndStream = false;
+        try {
+            while (true) {
+                readFully(header, FRAME_HEADER);
+                final int length   = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | (header[2] & 0xff);
+                final int type     = header[3] & 0xff;
+                final int flags    = header[4] & 0xff;
+                final int streamId = ByteBuffer.wrap(header, 5, 4).getInt() & Integer.MAX_VALUE;
+                if (length > DEFAULT_FRAME_SIZE)
+                    throw new ProtocolException("HTTP/2 frame of " + length + " bytes exceeds " + DEFAULT_FRAME_SIZE);
+                readFully(payload, length);
+                if (blockStream != 0 && (type != CONTINUATION || streamId != blockStream))
+                    throw new ProtocolException("HTTP/2 expected CONTINUATION of stream " + blockStream);
+
+                switch (type) {
+                    case DATA:
+                        onData(streamId, flags, payload, length);
+                        break;
+                    case HEADERS:
+                        if (streamId == 0)
+                            throw new ProtocolException("HTTP/2 HEADERS on stream 0");
+                        int offset = 0;
+                        int end    = length;
+                        if ((flags & FLAG_PADDED) != 0) {
+                            end -= payload[0] & 0xff;
+                            offset = 1;
+                        }
+                        if ((flags & FLAG_PRIORITY) != 0)
+                            offset += 5;
+                        if (end < offset)
+                            throw new ProtocolException("HTTP/2 invalid HEADERS padding");
+                        block.write(payload, offset, end - offset);
+                        blockStream = streamId;
+                        blockEndStream = (flags & FLAG_END_STREAM) != 0;
+                        break;
+                    case CONTINUATION:
+                        if (blockStream == 0)
+                            throw new ProtocolException("HTTP/2 unexpected CONTINUATION");
+                        block.write(payload, 0, length);
+                        break;
+                    case RST_STREAM:
+                        onReset(streamId, ByteBuffer.wrap(payload, 0, 4).getInt());
+                        break;
+                    case SETTINGS:
+                        if ((flags & FLAG_ACK) == 0)
+                            onSettings(payload, length);
+                        break;
+                    case PUSH_PROMISE:
+                        throw new ProtocolException("HTTP/2 PUSH_PROMISE received with push disabled");
+                    case PING:
+                        if ((flags & FLAG_ACK) == 0)
+                            send(frame(PING, FLAG_ACK, 0, payload, 0, length));
+                        break;
+                    case GOAWAY:
+                        onGoaway(ByteBuffer.wrap(payload, 0, 8).getInt() & Integer.MAX_VALUE,
+                                ByteBuffer.wrap(payload, 4, 4).getInt());
+                        break;
+                    case WINDOW_UPDATE:
+                        onWindowUpdate(streamId, ByteBuffer.wrap(payload, 0, 4).getInt() & Integer.MAX_VALUE);
+                        break;
+                    default:
+                        // PRIORITY and unknown frame types are ignored
+                        break;
+                }
+
+                if ((type == HEADERS || type == CONTINUATION) && (flags & FLAG_END_HEADERS) != 0) {
+                    // Blocks of unknown streams must still be decoded to keep
+                    // the HPACK table in sync
+                    final Headers headers = decoder.decode(block.toByteArray(), block.size());
+                    onHeaders(blockStream, headers, blockEndStream);
+                    block.reset();
+                    blockStream = 0;
+                }
+            }
+        } catch (ProtocolException e) {
+            final ByteBuffer goaway = ByteBuffer.allocate(8);
+            goaway.putInt(0).putInt(PROTOCOL_ERROR);
+            send(frame(GOAWAY, 0, 0, goaway.array(), 0, 8));
+            fail(e);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void readFully(final byte[] buffer, final int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            final int read = input.read(buffer, offset, length - offset);
+            if (read == -1)
+                throw new EOFException("HTTP/2 connection closed by peer");
+            offset += read;
+        }
+    }
+
+    private Stream stream(final int id) {
+        lock.lock();
+        try {
+            return streams.get(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onHeaders(final int streamId, final Headers headers, final boolean endStream) throws IOException {
+        final Stream stream = stream(streamId);
+        if (stream == null)
+            return;
+        boolean invalid = false;
+        lock.lock();
+        try {
+            if (stream.headers == null) {
+                final String status = headers.get(":status");
+                int          code   = -1;
+                try {
+                    code = status != null ? Integer.parseInt(status) : -1;
+                } catch (NumberFormatException ignored) {
+                    // Rejected below
+                }
+                if (code < 100 || code > 999) {
+                    remove(stream);
+                    stream.fail(new ProtocolException("HTTP/2 invalid :status " + status));
+                    invalid = true;
+                }
+                // Interim 1xx responses are skipped
+                else if (code < 200)
+                    return;
+                else {
+                    final Headers response = new Headers();
+                    for (int i = 0; i < headers.size(); i++)
+                        if (!headers.name(i).startsWith(":"))
+                            response.add(headers.name(i), headers.value(i));
+                    stream.code = code;
+                    stream.headers = response;
+                }
+            }
+            // Trailers are not exposed
+            if (endStream && !invalid)
+                end(stream);
+            stream.changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (invalid)
+            send(rstStream(streamId, PROTOCOL_ERROR));
+    }
+
+    private void onData(final int streamId, final int flags, final byte[] payload, final int length) throws IOException {
+        int offset = 0;
+        int end    = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= payload[0] & 0xff;
+            offset = 1;
+            if (end < offset)
+                throw new ProtocolException("HTTP/2 invalid DATA padding");
+        }
+        final Stream stream = stream(streamId);
+        boolean      taken  = false;
+        lock.lock();
+        try {
+            if (stream != null && !stream.cancelled && stream.failure == null) {
+                if (end > offset) {
+                    final byte[] data = new byte[end - offset];
+                    System.arraycopy(payload, offset, data, 0, data.length);
+                    stream.data.add(ByteBuffer.wrap(data));
+                    stream.queued += data.length;
+                }
+                if ((flags & FLAG_END_STREAM) != 0)
+                    end(stream);
+                stream.changed.signalAll();
+                taken = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Padding and data of abandoned streams is returned right away
+        consumed(null, taken ? length - (end - offset) : length);
+    }
+
+    private void onReset(final int streamId, final int error) {
+        final Stream stream = stream(streamId);
+        if (stream == null)
+            return;
+        lock.lock();
+        try {
+            remove(stream);
+            stream.fail(error == REFUSED_STREAM
+                    ? new RefusedStreamException("HTTP/2 stream refused by peer")
+                    : new IOException("HTTP/2 stream reset by peer with error " + error));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onSettings(final byte[] payload, final int length) throws IOException {
+        if (length % 6 != 0)
+            throw new ProtocolException("HTTP/2 invalid SETTINGS length " + length);
+        final ByteBuffer settings = ByteBuffer.wrap(payload, 0, length);
+        while (settings.hasRemaining()) {
+            final int id    = settings.getShort() & 0xffff;
+            final int value = settings.getInt();
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    writeLock.lock();
+                    try {
+                        encoder.maxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    break;
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    lock.lock();
+                    try {
+                        maxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                        slots.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0)
+                        throw new ProtocolException("HTTP/2 invalid initial window size");
+                    lock.lock();
+                    try {
+                        final int delta = value - initialWindow;
+                        initialWindow = value;
+                        for (Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                            stream.changed.signalAll();
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_FRAME_SIZE || value > 0xffffff)
+                        throw new ProtocolException("HTTP/2 invalid max frame size " + value);
+                    maxFrameSize = value;
+                    break;
+                default:
+                    break;
+            }
+        }
+        send(frameHeader(0, SETTINGS, FLAG_ACK, 0));
+    }
+
+    private void onGoaway(final int lastStreamId, final int error) {
+        lock.lock();
+        try {
+            goaway = true;
+            for (Stream stream : new ArrayList<>(streams.values())) {
+                if (stream.id > lastStreamId) {
+                    remove(stream);
+                    stream.fail(new RefusedStreamException("HTTP/2 stream not processed before GOAWAY with error " + error));
+                }
+            }
+            slots.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onWindowUpdate(final int streamId, final int increment) throws IOException {
+        if (increment == 0)
+            throw new ProtocolException("HTTP/2 WINDOW_UPDATE with zero increment");
+        lock.lock();
+        try {
+            if (streamId == 0) {
+                sendWindow += increment;
+                for (Stream stream : streams.values())
+                    stream.changed.signalAll();
+            } else {
+                final Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    stream.sendWindow += increment;
+                    stream.changed.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mark the stream as fully received, must hold the lock
+     */
+    private void end(final Stream stream) {
+        stream.ended = true;
+        remove(stream);
+    }
+
+    /**
+     * Remove the stream and free its slot, must hold the lock
+     */
+    private void remove(final Stream stream) {
+        if (streams.remove(stream.id) != null) {
+            active--;
+            slots.signal();
+        }
+        if (goaway && streams.isEmpty())
+            channel.close();
+    }
+
+    private void fail(final IOException e) {
+        lock.lock();
+        try {
+            if (failure == null)
+                failure = e;
+            for (Stream stream : new ArrayList<>(streams.values())) {
+                remove(stream);
+                stream.fail(e);
+            }
+            slots.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        channel.close();
+    }
+
+    /**
+     * Fail all streams and close the socket
+     */
+    @Override
+    public void close() {
+        fail(new IOException("HTTP/2 connection closed"));
+    }
+
+    /**
+     * State of one request/response exchange, guarded by the connection lock
+     */
+    private final class Stream {
+
+        private final int id;
+
+        private final int timeout;
+
+        private final Condition changed = lock.newCondition();
+
+        private final ArrayDeque<ByteBuffer> data = new ArrayDeque<>();
+
+        private final InputStream body = new Body();
+
+        private long sendWindow;
+
+        private int unacknowledged;
+
+        private int queued;
+
+        private int code;
+
+        private Headers headers;
+
+        private boolean ended;
+
+        private boolean cancelled;
+
+        private IOException failure;
+
+        private Stream(final int id, final int sendWindow, final int timeout) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+            this.timeout = timeout;
+        }
+
+        private void fail(final IOException e) {
+            if (failure == null)
+                failure = e;
+            changed.signalAll();
+        }
+
+        /**
+         * Report bytes of a file segment sent on the loop thread, a callback
+         * that throws fails this stream, which the exchange then resets,
+         * instead of the connection
+         */
+        private void progress(final RequestBody.Segment segment, final long sent) {
+            try {
+                segment.progress(sent);
+            } catch (RuntimeException e) {
+                lock.lock();
+                try {
+                    fail(new IOException("Upload progress callback failed", e));
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Take up to the requested number of bytes from the stream and
+         * connection send windows, waiting for window updates when exhausted
+         */
+        private int acquireWindow(final int wanted, final int timeout) throws IOException {
+            lock.lock();
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (true) {
+                    if (failure != null)
+                        throw failure;
+                    if (cancelled)
+                        throw new IOException("HTTP/2 stream cancelled");
+                    // The response is already complete, the rest of the body is not needed
+                    if (ended)
+                        return 0;
+                    final long available = Math.min(sendWindow, Http2Connection.this.sendWindow);
+                    if (available > 0) {
+                        final int length = (int) Math.min(wanted, available);
+                        sendWindow -= length;
+                        Http2Connection.this.sendWindow -= length;
+                        return length;
+                    }
+                    if (timeout <= 0)
+                        changed.await();
+                    else if (remaining <= 0)
+                        throw new SocketTimeoutException("Timed out waiting for HTTP/2 flow control window");
+                    else
+                        remaining = changed.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending HTTP/2 request body");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void awaitHeaders(final int timeout) throws IOException {
+            lock.lock();
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (headers == null) {
+                    if (failure != null)
+                        throw failure;
+                    if (ended)
+                        throw new ProtocolException("HTTP/2 stream ended without response headers");
+                    if (timeout <= 0)
+                        changed.await();
+                    else if (remaining <= 0)
+                        throw new SocketTimeoutException("Read timed out");
+                    else
+                        remaining = changed.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for HTTP/2 response");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Response body, closing it before the end cancels the stream
+         * <p>
+         * It is also a {@link ReadableByteChannel} copying DATA payloads
+         * straight into the caller's buffer.
+         */
+        private final class Body extends InputStream implements ReadableByteChannel {
+
+            private final byte[] single = new byte[1];
+
+            private boolean closed;
+
+            @Override
+            public int read() throws IOException {
+                final int n = read(single, 0, 1);
+                return n == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                return read(b, off, null, len);
+            }
+
+            @Override
+            public int read(final ByteBuffer dst) throws IOException {
+                return read(null, 0, dst, dst.remaining());
+            }
+
+            /**
+             * Read at most len bytes into the array or, when dst is not
+             * null, into the buffer
+             */
+            private int read(final byte[] b, final int off, final ByteBuffer dst, final int len)
+                    throws IOException {
+                if (len == 0)
+                    return 0;
+                final int n;
+                lock.lock();
+                try {
+                    long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+                    while (data.isEmpty()) {
+                        if (closed)
+                            throw new IOException("Stream closed");
+                        if (failure != null)
+                            throw failure;
+                        if (ended)
+                            return -1;
+                        if (timeout <= 0)
+                            changed.await();
+                        else if (remaining <= 0)
+                            throw new SocketTimeoutException("Read timed out");
+                        else
+                            remaining = changed.awaitNanos(remaining);
+                    }
+                    final ByteBuffer head = data.peek();
+                    n = Math.min(len, head.remaining());
+                    if (dst == null) {
+                        head.get(b, off, n);
+                    } else {
+                        final int limit = head.limit();
+                        head.limit(head.position() + n);
+                        dst.put(head);
+                        head.limit(limit);
+                    }
+                    if (!head.hasRemaining())
+                        data.poll();
+                    queued -= n;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading HTTP/2 response");
+                } finally {
+                    lock.unlock();
+                }
+                consumed(Stream.this, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                lock.lock();
+                try {
+                    return queued;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                lock.lock();
+                try {
+                    return !closed;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void close() {
+                final boolean reset;
+                final int     discarded;
+                lock.lock();
+                try {
+                    if (closed)
+                        return;
+                    closed = true;
+                    // Streams failed by the connection or the peer are already removed
+                    reset = !ended && streams.containsKey(id);
+                    if (reset) {
+                        cancelled = true;
+                        remove(Stream.this);
+                    }
+                    discarded = queued;
+                    data.clear();
+                    queued = 0;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (reset)
+                    send(rstStream(id, CANCEL));
+                consumed(null, discarded);
+            }
+        }
+    }
+
+}
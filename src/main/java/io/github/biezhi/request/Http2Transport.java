@@ -0,0 +1,202 @@
+package io.github.biezhi.request;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * HTTP/2 {@link Transport} multiplexing all requests to a host over a single
+ * connection.
+ * <p>
+ * Concurrent requests become concurrent streams of one connection per
+ * 'host:port' instead of one connection each, headers are compressed with
+ * HPACK and a slow response no longer holds up the others. Connections are
+ * opened with prior knowledge (h2c), so the server must speak HTTP/2 on
+ * its cleartext port; only plain 'http' URLs without a proxy are handled,
+ * anything else is served by {@link ConnectionFactory#DEFAULT}.
+ * <p>
+ * Use it for a client with:
+ * <pre>
+ * RequestClient client = new RequestClient(new Http2Transport());
+ * </pre>
+ */
+public class Http2Transport implements Transport, Closeable {
+
+    private final int ioThreads;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Map<String, CompletableFuture<Http2Connection>> connections = new HashMap<>();
+
+    private volatile NioEngine engine;
+
+    private volatile Resolver resolver = Resolver.SYSTEM;
+
+    private boolean closed;
+
+    /**
+     * Create transport with one selector thread per two available processors
+     */
+    public Http2Transport() {
+        this(NioTransport.defaultThreads());
+    }
+
+    /**
+     * Create transport with the given number of selector threads
+     * <p>
+     * Threads are started on first use.
+     *
+     * @param ioThreads
+     */
+    public Http2Transport(final int ioThreads) {
+        if (ioThreads < 1)
+            throw new IllegalArgumentException("I/O threads must be greater than zero");
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Set the {@link Resolver} host names are resolved with
+     *
+     * @param resolver
+     * @return this transport
+     */
+    public Http2Transport resolver(final Resolver resolver) {
+        if (resolver == null)
+            throw new IllegalArgumentException("Resolver must not be null");
+        this.resolver = resolver;
+        return this;
+    }
+
+    public Resolver resolver() {
+        return resolver;
+    }
+
+    @Override
+    public boolean supports(final URL url, final Proxy proxy) {
+        return "http".equalsIgnoreCase(url.getProtocol())
+                && (proxy == null || proxy.type() == Proxy.Type.DIRECT);
+    }
+
+    @Override
+    public Response execute(final Call call) throws IOException {
+        try {
+            return connection(call).exchange(call);
+        } catch (Http2Connection.RefusedStreamException e) {
+            // The server did not process the stream, so any method may be
+            // retried once on a fresh connection
+            return connection(call).exchange(call);
+        }
+    }
+
+    /**
+     * Get the number of open connections
+     *
+     * @return connections
+     */
+    public int connectionCount() {
+        lock.lock();
+        try {
+            int count = 0;
+            for (CompletableFuture<Http2Connection> future : connections.values())
+                if (future.isDone() && !future.isCompletedExceptionally() && future.join().isUsable())
+                    count++;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Http2Connection connection(final Call call) throws IOException {
+        final String                       key = call.authority();
+        CompletableFuture<Http2Connection> future;
+        boolean                            owner = false;
+        lock.lock();
+        try {
+            if (closed)
+                throw new IOException("Transport is closed");
+            future = connections.get(key);
+            if (future == null || (future.isDone()
+                    && (future.isCompletedExceptionally() || !future.join().isUsable()))) {
+                future = new CompletableFuture<>();
+                connections.put(key, future);
+                owner = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (owner) {
+            try {
+                final NioChannel channel = NioChannel.open(engine().next(), resolver,
+                        call.host(), call.port(), call.connectTimeout());
+                future.complete(Http2Connection.open(channel));
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+                lock.lock();
+                try {
+                    connections.remove(key, future);
+                } finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting to " + key);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private NioEngine engine() throws IOException {
+        NioEngine engine = this.engine;
+        if (engine != null)
+            return engine;
+        lock.lock();
+        try {
+            engine = this.engine;
+            if (engine == null)
+                this.engine = engine = new NioEngine(ioThreads, "request-h2");
+            return engine;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close all connections and stop the selector threads
+     */
+    @Override
+    public void close() {
+        final List<CompletableFuture<Http2Connection>> open;
+        lock.lock();
+        try {
+            closed = true;
+            open = new ArrayList<>(connections.values());
+            connections.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (CompletableFuture<Http2Connection> future : open)
+            future.thenAccept(Http2Connection::close);
+        final NioEngine engine = this.engine;
+        if (engine != null)
+            engine.close();
+    }
+
+}
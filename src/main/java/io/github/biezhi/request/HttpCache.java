@@ -0,0 +1,449 @@
+package io.github.biezhi.request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory cache of 'GET' responses, bounded by the total size of the
+ * stored responses and evicting the least recently used URL first.
+ * <p>
+ * A URL holds one response per variant of the request headers named by
+ * its 'Vary' header. Responses are stored and served by a
+ * {@link CachingTransport}:
+ * <pre>
+ * HttpCache cache = new HttpCache(64 * 1024 * 1024);
+ * RequestClient client = new RequestClient(new CachingTransport(new NioTransport(), cache));
+ * </pre>
+ * A cache can be shared by several transports. A {@link DiskCache} can be
+ * added as a second tier holding larger responses across restarts.
+ */
+public class HttpCache {
+
+    private static final int MAX_VARIANTS = 8;
+
+    private final long maxBytes;
+
+    private long maxEntryBytes;
+
+    private volatile DiskCache disk;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LinkedHashMap<String, List<CacheEntry>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    private int count;
+
+    private long hits;
+
+    private long revalidations;
+
+    private long stale;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * Create cache holding up to the given number of bytes
+     *
+     * @param maxBytes
+     */
+    public HttpCache(final long maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("Max bytes must be greater than zero");
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.max(1, maxBytes / 8);
+    }
+
+    /**
+     * Set the largest response stored, one eighth of the cache by default
+     *
+     * @param maxEntryBytes
+     * @return this cache
+     */
+    public HttpCache maxEntryBytes(final long maxEntryBytes) {
+        if (maxEntryBytes <= 0)
+            throw new IllegalArgumentException("Max entry bytes must be greater than zero");
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        return this;
+    }
+
+    /**
+     * @return largest response stored in bytes
+     */
+    public long maxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * @return maximum total size in bytes
+     */
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Set the disk tier responses are also stored in and looked up from
+     * when not held in memory
+     *
+     * @param disk disk cache or null for none
+     * @return this cache
+     */
+    public HttpCache disk(final DiskCache disk) {
+        this.disk = disk;
+        return this;
+    }
+
+    /**
+     * @return disk tier or null if none
+     */
+    public DiskCache disk() {
+        return disk;
+    }
+
+    /**
+     * Can a body of the given length be stored in one of the tiers?
+     *
+     * @param length length or -1 if unknown
+     * @return true if storable
+     */
+    boolean accepts(final long length) {
+        final DiskCache disk = this.disk;
+        return length <= maxEntryBytes || disk != null && length <= disk.maxEntryBytes();
+    }
+
+    /**
+     * Get the cache key of the given URL, which is the URL without its
+     * fragment
+     *
+     * @param url
+     * @return key
+     */
+    static String key(final URL url) {
+        final String external = url.toExternalForm();
+        final int    hash     = external.indexOf('#');
+        return hash == -1 ? external : external.substring(0, hash);
+    }
+
+    /**
+     * Find the stored variant for the given call
+     *
+     * @param call
+     * @return entry or null if none
+     */
+    CacheEntry get(final Call call) {
+        lock.lock();
+        try {
+            final List<CacheEntry> variants = entries.get(key(call.url()));
+            if (variants != null)
+                for (CacheEntry entry : variants)
+                    if (entry.matches(call))
+                        return entry;
+        } finally {
+            lock.unlock();
+        }
+        final DiskCache disk = this.disk;
+        return disk != null ? disk.get(call) : null;
+    }
+
+    /**
+     * Store the given entry in each tier, replacing the variant it matches
+     *
+     * @param call  call the entry answers
+     * @param entry
+     */
+    void put(final Call call, final CacheEntry entry) {
+        final DiskCache disk = this.disk;
+        if (disk != null)
+            disk.put(call, entry);
+        if (entry.body() != null && entry.size() <= maxEntryBytes)
+            putMemory(call, entry);
+        else
+            // Stored on disk only, the memory variant it replaces is outdated
+            removeMemory(call, entry.url());
+    }
+
+    private void putMemory(final Call call, final CacheEntry entry) {
+        final long size = entry.size();
+        lock.lock();
+        try {
+            List<CacheEntry> variants = entries.get(entry.url());
+            if (variants == null) {
+                variants = new ArrayList<>(1);
+                entries.put(entry.url(), variants);
+            }
+            removeMatching(variants, call);
+            if (variants.size() == MAX_VARIANTS)
+                removed(variants.remove(0));
+            variants.add(entry);
+            bytes += size;
+            count++;
+            trim();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeMemory(final Call call, final String key) {
+        lock.lock();
+        try {
+            final List<CacheEntry> variants = entries.get(key);
+            if (variants == null)
+                return;
+            removeMatching(variants, call);
+            if (variants.isEmpty())
+                entries.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeMatching(final List<CacheEntry> variants, final Call call) {
+        for (Iterator<CacheEntry> iterator = variants.iterator(); iterator.hasNext(); ) {
+            final CacheEntry existing = iterator.next();
+            if (existing.matches(call)) {
+                iterator.remove();
+                removed(existing);
+            }
+        }
+    }
+
+    private void removed(final CacheEntry entry) {
+        bytes -= entry.size();
+        count--;
+    }
+
+    private void trim() {
+        final Iterator<List<CacheEntry>> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            for (CacheEntry entry : eldest.next()) {
+                removed(entry);
+                evictions++;
+            }
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Remove all stored responses of the given URL
+     *
+     * @param url
+     * @return this cache
+     */
+    public HttpCache remove(final URL url) {
+        final String key = key(url);
+        lock.lock();
+        try {
+            final List<CacheEntry> variants = entries.remove(key);
+            if (variants != null)
+                for (CacheEntry entry : variants)
+                    removed(entry);
+        } finally {
+            lock.unlock();
+        }
+        final DiskCache disk = this.disk;
+        if (disk != null)
+            disk.remove(key);
+        return this;
+    }
+
+    /**
+     * Remove all stored responses from each tier
+     *
+     * @return this cache
+     */
+    public HttpCache clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            bytes = 0;
+            count = 0;
+        } finally {
+            lock.unlock();
+        }
+        final DiskCache disk = this.disk;
+        if (disk != null)
+            disk.clear();
+        return this;
+    }
+
+    /**
+     * Start storing the body of the given response as it is read
+     *
+     * @param call
+     * @param response
+     * @param requestTime
+     * @param responseTime
+     * @return writer
+     */
+    Writer writer(final Call call, final Response response, final long requestTime, final long responseTime) {
+        return new Writer(call, response, requestTime, responseTime);
+    }
+
+    void hit() {
+        lock.lock();
+        try {
+            hits++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void revalidated() {
+        lock.lock();
+        try {
+            revalidations++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void stale() {
+        lock.lock();
+        try {
+            stale++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void miss() {
+        lock.lock();
+        try {
+            misses++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get a snapshot of the statistics of this cache
+     *
+     * @return stats
+     */
+    public CacheStats stats() {
+        lock.lock();
+        try {
+            return new CacheStats(hits, revalidations, stale, misses, evictions, count, bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HttpCache{maxBytes=" + maxBytes + ", " + stats() + '}';
+    }
+
+
+    /**
+     * Copies a body into memory, and into a file of the disk tier, until it
+     * grows too large for each
+     */
+    final class Writer {
+
+        private final Call call;
+
+        private final Response response;
+
+        private final long requestTime;
+
+        private final long responseTime;
+
+        private final DiskCache disk;
+
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+        private File file;
+
+        private OutputStream output;
+
+        private long length;
+
+        private Writer(final Call call, final Response response, final long requestTime, final long responseTime) {
+            this.call = call;
+            this.response = response;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+            this.disk = HttpCache.this.disk;
+            if (disk != null)
+                try {
+                    file = disk.newFile();
+                    output = new FileOutputStream(file);
+                } catch (IOException e) {
+                    abortFile();
+                }
+        }
+
+        void write(final byte[] b, final int off, final int len) {
+            length += len;
+            if (memory != null) {
+                if (length > maxEntryBytes)
+                    memory = null;
+                else
+                    memory.write(b, off, len);
+            }
+            if (output != null)
+                try {
+                    if (length > disk.maxEntryBytes())
+                        abortFile();
+                    else
+                        output.write(b, off, len);
+                } catch (IOException e) {
+                    abortFile();
+                }
+        }
+
+        /**
+         * Store the response once its whole body has been written
+         */
+        void commit() {
+            if (output != null)
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    abortFile();
+                }
+            final byte[] body = memory != null ? memory.toByteArray() : null;
+            memory = null;
+            if (body == null && output == null)
+                return;
+            put(call, CacheEntry.of(call, response, body, output != null ? file : null, length,
+                    requestTime, responseTime));
+            output = null;
+        }
+
+        /**
+         * Drop the body, as it was not read to the end
+         */
+        void abort() {
+            memory = null;
+            abortFile();
+        }
+
+        private void abortFile() {
+            if (output != null)
+                try {
+                    output.close();
+                } catch (IOException ignored) {
+                    // Ignored
+                }
+            output = null;
+            if (file != null)
+                file.delete();
+            file = null;
+        }
+
+    }
+}
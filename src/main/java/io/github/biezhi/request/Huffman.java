@@ -0,0 +1,158 @@
+package io.github.biezhi.request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * The static Huffman code of HPACK (RFC 7541, Appendix B)
+ * <p>
+ * The code is canonical, so only the code length of every symbol is listed
+ * and the codes themselves are derived from them.
+ */
+final class Huffman {
+
+    private static final int EOS = 256;
+
+    private static final byte[] LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    private static final int[] CODES = new int[LENGTHS.length];
+
+    /**
+     * Decoding tree: children of node i are CHILDREN[2i] and CHILDREN[2i + 1],
+     * leaves are stored as -(symbol + 1)
+     */
+    private static final int[] CHILDREN;
+
+    static {
+        // Assign canonical codes in order of (length, symbol)
+        final Integer[] order = new Integer[LENGTHS.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        java.util.Arrays.sort(order, (a, b) -> LENGTHS[a] != LENGTHS[b] ? LENGTHS[a] - LENGTHS[b] : a - b);
+        int code = 0;
+        int previous = LENGTHS[order[0]];
+        for (int i = 0; i < order.length; i++) {
+            final int length = LENGTHS[order[i]];
+            if (i > 0)
+                code = (code + 1) << (length - previous);
+            previous = length;
+            CODES[order[i]] = code;
+        }
+
+        final int[] children = new int[2 * 2 * LENGTHS.length];
+        int         nodes    = 1;
+        for (int symbol = 0; symbol < LENGTHS.length; symbol++) {
+            int node = 0;
+            for (int bit = LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                final int slot = 2 * node + ((CODES[symbol] >>> bit) & 1);
+                if (bit == 0)
+                    children[slot] = -(symbol + 1);
+                else {
+                    if (children[slot] == 0)
+                        children[slot] = nodes++;
+                    node = children[slot];
+                }
+            }
+        }
+        CHILDREN = children;
+    }
+
+    private Huffman() {
+    }
+
+    /**
+     * Get the number of bytes the given data occupies once encoded
+     *
+     * @param data
+     * @return encoded length
+     */
+    static int encodedLength(final byte[] data) {
+        long bits = 0;
+        for (byte b : data)
+            bits += LENGTHS[b & 0xff];
+        return (int) ((bits + 7) >> 3);
+    }
+
+    /**
+     * Encode data, padding the last byte with the most significant bits of
+     * the EOS code
+     *
+     * @param data
+     * @param output
+     */
+    static void encode(final byte[] data, final ByteArrayOutputStream output) {
+        long current = 0;
+        int  bits    = 0;
+        for (byte b : data) {
+            final int symbol = b & 0xff;
+            current = (current << LENGTHS[symbol]) | CODES[symbol];
+            bits += LENGTHS[symbol];
+            while (bits >= 8) {
+                bits -= 8;
+                output.write((int) (current >>> bits));
+            }
+            current &= (1L << bits) - 1;
+        }
+        if (bits > 0)
+            output.write((int) ((current << (8 - bits)) | (0xff >>> bits)));
+    }
+
+    /**
+     * Decode a Huffman encoded string
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return decoded bytes
+     * @throws IOException if the encoding is invalid
+     */
+    static byte[] decode(final byte[] data, final int offset, final int length) throws IOException {
+        final ByteArrayOutputStream output  = new ByteArrayOutputStream(length * 8 / 5 + 1);
+        int                         node    = 0;
+        int                         pending = 0;
+        boolean                     ones    = true;
+        for (int i = offset; i < offset + length; i++) {
+            final int b = data[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                final int value = (b >>> bit) & 1;
+                final int next  = CHILDREN[2 * node + value];
+                pending++;
+                ones &= value == 1;
+                if (next < 0) {
+                    final int symbol = -next - 1;
+                    if (symbol == EOS)
+                        throw new IOException("HPACK: EOS symbol in Huffman string");
+                    output.write(symbol);
+                    node = 0;
+                    pending = 0;
+                    ones = true;
+                } else if (next == 0)
+                    throw new IOException("HPACK: invalid Huffman code");
+                else
+                    node = next;
+            }
+        }
+        if (pending > 7 || !ones)
+            throw new IOException("HPACK: invalid Huffman padding");
+        return output.toByteArray();
+    }
+
+}
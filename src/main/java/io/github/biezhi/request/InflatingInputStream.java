@@ -0,0 +1,251 @@
+package io.github.biezhi.request;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import static io.github.biezhi.request.Const.ENCODING_DEFLATE;
+import static io.github.biezhi.request.Const.ENCODING_GZIP;
+
+/**
+ * Uncompresses a 'gzip' or 'deflate' encoded body with an inflater and
+ * input buffer from the {@link BufferPool}.
+ * <p>
+ * The gzip and zlib framing is parsed here so that a single pooled raw
+ * inflater serves both, {@link java.util.zip.GZIPInputStream} always
+ * allocates its own. The inflater goes back to the pool once the body has
+ * been read or the stream is closed. Following browsers, a 'deflate' body
+ * without the zlib header is read as raw deflate data.
+ */
+final class InflatingInputStream extends InflaterInputStream {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static final int FHCRC = 2;
+
+    private static final int FEXTRA = 4;
+
+    private static final int FNAME = 8;
+
+    private static final int FCOMMENT = 16;
+
+    private final BufferPool pool;
+
+    private final boolean gzip;
+
+    private Checksum checksum;
+
+    private int pending;
+
+    private boolean eof;
+
+    private boolean released;
+
+    private InflatingInputStream(final InputStream input, final boolean gzip,
+                                 final BufferPool pool, final int bufferSize) {
+        super(input, pool.inflater(), 1);
+        this.pool = pool;
+        this.gzip = gzip;
+        // Room for the two bytes of a zlib header
+        this.buf = pool.bytes(Math.max(bufferSize, 2));
+    }
+
+    /**
+     * Is the given content encoding one this stream can uncompress?
+     *
+     * @param encoding
+     * @return true if supported
+     */
+    static boolean isSupported(final String encoding) {
+        return ENCODING_GZIP.equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)
+                || ENCODING_DEFLATE.equalsIgnoreCase(encoding);
+    }
+
+    /**
+     * Open stream uncompressing the given body
+     *
+     * @param input      body, closed with the returned stream
+     * @param encoding   supported content encoding
+     * @param pool
+     * @param bufferSize
+     * @return stream
+     * @throws IOException
+     */
+    static InputStream open(final InputStream input, final String encoding,
+                            final BufferPool pool, final int bufferSize) throws IOException {
+        final boolean gzip = !ENCODING_DEFLATE.equalsIgnoreCase(encoding);
+        final InflatingInputStream stream = new InflatingInputStream(input, gzip, pool, bufferSize);
+        try {
+            if (!stream.start()) {
+                // Empty body, as sent for HEAD requests and 304s
+                stream.close();
+                return new ByteArrayInputStream(new byte[0]);
+            }
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+        return stream;
+    }
+
+    private boolean start() throws IOException {
+        while (len < 2) {
+            final int read = in.read(buf, len, buf.length - len);
+            if (read == -1)
+                break;
+            len += read;
+        }
+        if (len == 0)
+            return false;
+        pending = len;
+        if (gzip) {
+            header();
+        } else if (len >= 2 && isZlibHeader(buf[0] & 0xff, buf[1] & 0xff)) {
+            if ((buf[1] & 0x20) != 0)
+                throw new ZipException("Preset dictionaries are not supported");
+            pending -= 2;
+            checksum = new Adler32();
+        }
+        inf.setInput(buf, len - pending, pending);
+        return true;
+    }
+
+    private static boolean isZlibHeader(final int cmf, final int flg) {
+        return (cmf & 0x0f) == 8 && (cmf >> 4) <= 7 && (cmf << 8 | flg) % 31 == 0;
+    }
+
+    private void header() throws IOException {
+        if ((next() | next() << 8) != GZIP_MAGIC)
+            throw new ZipException("Not in GZIP format");
+        if (next() != 8)
+            throw new ZipException("Unsupported compression method");
+        final int flags = next();
+        // Modification time, extra flags and operating system
+        skip(6);
+        if ((flags & FEXTRA) != 0)
+            skip(next() | next() << 8);
+        if ((flags & FNAME) != 0)
+            skipString();
+        if ((flags & FCOMMENT) != 0)
+            skipString();
+        if ((flags & FHCRC) != 0)
+            skip(2);
+        checksum = new CRC32();
+    }
+
+    private void skip(int count) throws IOException {
+        while (count-- > 0)
+            next();
+    }
+
+    private void skipString() throws IOException {
+        int read;
+        do {
+            read = next();
+        } while (read != 0);
+    }
+
+    /**
+     * Read the next byte of framing, from the buffered input left over by
+     * the inflater first
+     */
+    private int next() throws IOException {
+        if (pending == 0 && !fillPending())
+            throw new EOFException("Unexpected end of compressed body");
+        return buf[len - pending--] & 0xff;
+    }
+
+    private boolean fillPending() throws IOException {
+        final int read = in.read(buf, 0, buf.length);
+        if (read <= 0)
+            return false;
+        len = read;
+        pending = read;
+        return true;
+    }
+
+    private long trailerInt(final boolean bigEndian) throws IOException {
+        long value = 0;
+        for (int i = 0; i < 4; i++)
+            value = bigEndian ? value << 8 | next() : value | (long) next() << (8 * i);
+        return value;
+    }
+
+    /**
+     * Check the trailer after the end of the compressed data
+     *
+     * @return true if another gzip member follows
+     */
+    private boolean trailer() throws IOException {
+        pending = inf.getRemaining();
+        if (checksum == null)
+            return false;
+        if (!gzip) {
+            if (trailerInt(true) != checksum.getValue())
+                throw new ZipException("Corrupt deflate checksum");
+            return false;
+        }
+        if (trailerInt(false) != checksum.getValue() || trailerInt(false) != (inf.getBytesWritten() & 0xffffffffL))
+            throw new ZipException("Corrupt GZIP trailer");
+        // Concatenated members form a single body, anything else is ignored
+        if (pending == 0 && !fillPending())
+            return false;
+        if ((buf[len - pending] & 0xff) != (GZIP_MAGIC & 0xff))
+            return false;
+        header();
+        inf.reset();
+        inf.setInput(buf, len - pending, pending);
+        return true;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (eof)
+            return -1;
+        while (true) {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                if (checksum != null)
+                    checksum.update(b, off, read);
+                return read;
+            }
+            if (read == 0)
+                return 0;
+            if (inf.needsDictionary())
+                throw new ZipException("Preset dictionaries are not supported");
+            if (!trailer()) {
+                eof = true;
+                release();
+                return -1;
+            }
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return eof ? 0 : super.available();
+    }
+
+    private void release() {
+        if (released)
+            return;
+        released = true;
+        pool.release(inf);
+        pool.release(buf);
+        buf = new byte[0];
+    }
+
+    @Override
+    public void close() throws IOException {
+        eof = true;
+        release();
+        super.close();
+    }
+
+}
@@ -0,0 +1,698 @@
+package io.github.biezhi.request;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * Non-blocking socket channel driven by a {@link NioEngine.Loop}
+ * <p>
+ * The loop thread performs all reads and writes. Callers enqueue outbound
+ * buffers and consume inbound bytes through {@link #inputStream(int)},
+ * blocking only on a condition while the loop fills the inbound queue. When
+ * the buffers of the queue hold more than {@link #HIGH_WATER} bytes reading
+ * is suspended until the consumer catches up. Their capacity counts rather
+ * than the bytes read into them, so a peer trickling small writes cannot
+ * make the queue hold many times that much. The loop reads into a single
+ * direct buffer and copies the bytes into heap arrays taken from
+ * {@link Request#bufferPool()}, filling the last queued one first, so
+ * queued bytes never pin direct memory. The arrays are given back once
+ * consumed. File regions queued with
+ * {@link #transfer(FileChannel, long, long, LongConsumer)} are sent with
+ * {@link FileChannel#transferTo} without passing through the heap.
+ */
+final class NioChannel implements Closeable {
+
+    static final int READ_SIZE = 16 * 1024;
+
+    private static final int HIGH_WATER = 256 * 1024;
+
+    private static final int LOW_WATER = 64 * 1024;
+
+    private final SocketChannel channel;
+
+    private final NioEngine.Loop loop;
+
+    private final InetSocketAddress address;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    private final ArrayDeque<Object> outbound = new ArrayDeque<>();
+
+    private final ArrayDeque<ByteBuffer> inbound = new ArrayDeque<>();
+
+    private final BufferPool pool = Request.bufferPool();
+
+    private SelectionKey key;
+
+    private boolean connected;
+
+    private boolean eof;
+
+    private boolean closed;
+
+    private boolean paused;
+
+    private int queued;
+
+    /**
+     * Capacity of the buffers in the inbound queue
+     */
+    private int held;
+
+    private IOException failure;
+
+    private NioChannel(final SocketChannel channel, final NioEngine.Loop loop,
+                       final InetSocketAddress address) {
+        this.channel = channel;
+        this.loop = loop;
+        this.address = address;
+    }
+
+    /**
+     * Open a channel to the given address and wait for the connection to be
+     * established
+     *
+     * @param loop
+     * @param address
+     * @param timeout connect timeout in milliseconds, 0 for infinite
+     * @return connected channel
+     * @throws IOException
+     */
+    static NioChannel open(final NioEngine.Loop loop, final InetSocketAddress address,
+                           final int timeout) throws IOException {
+        if (address.isUnresolved())
+            throw new UnknownHostException(address.getHostString());
+        final SocketChannel socket = SocketChannel.open();
+        final NioChannel    nio    = new NioChannel(socket, loop, address);
+        try {
+            socket.configureBlocking(false);
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            final boolean done = socket.connect(address);
+            loop.execute(() -> nio.register(done));
+            nio.awaitConnect(timeout);
+            return nio;
+        } catch (IOException e) {
+            nio.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Resolve the host and open a channel to the first address accepting
+     * the connection
+     *
+     * @param loop
+     * @param resolver
+     * @param host
+     * @param port
+     * @param timeout connect timeout in milliseconds per address, 0 for infinite
+     * @return connected channel
+     * @throws IOException
+     */
+    static NioChannel open(final NioEngine.Loop loop, final Resolver resolver, final String host,
+                           final int port, final int timeout) throws IOException {
+        final List<InetAddress> addresses = resolver.resolve(host);
+        if (addresses == null || addresses.isEmpty())
+            throw new UnknownHostException(host);
+        IOException refused = null;
+        for (InetAddress address : addresses) {
+            try {
+                return open(loop, new InetSocketAddress(address, port), timeout);
+            } catch (ConnectException | NoRouteToHostException e) {
+                refused = e;
+            }
+        }
+        throw refused;
+    }
+
+    InetSocketAddress address() {
+        return address;
+    }
+
+    private void register(final boolean done) {
+        try {
+            key = channel.register(loop.selector(), done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            if (done)
+                signalConnected();
+        } catch (IOException e) {
+            fail(e);
+        } catch (ClosedSelectorException e) {
+            fail(new ClosedChannelException());
+        }
+    }
+
+    private void awaitConnect(final int timeout) throws IOException {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (!connected) {
+                if (failure != null)
+                    throw failure;
+                if (closed)
+                    throw new ClosedChannelException();
+                if (timeout <= 0)
+                    changed.await();
+                else if (remaining <= 0)
+                    throw new SocketTimeoutException("connect timed out");
+                else
+                    remaining = changed.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting to " + address);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalConnected() {
+        lock.lock();
+        try {
+            connected = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Handle readiness selected by the loop
+     *
+     * @param key
+     */
+    void handle(final SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                signalConnected();
+                updateInterest();
+            }
+            if (key.isValid() && key.isWritable())
+                flush();
+            if (key.isValid() && key.isReadable())
+                read();
+        } catch (CancelledKeyException ignored) {
+            // Closed concurrently
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException("Unexpected failure handling " + address, e));
+        }
+    }
+
+    private void read() throws IOException {
+        final ByteBuffer scratch = loop.scratch();
+        while (true) {
+            scratch.clear();
+            final int read = channel.read(scratch);
+            if (read == 0)
+                return;
+            lock.lock();
+            try {
+                if (read == -1 || closed) {
+                    if (read != -1)
+                        return;
+                    eof = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    changed.signalAll();
+                    return;
+                }
+                scratch.flip();
+                append(scratch);
+                queued += read;
+                changed.signalAll();
+                if (held >= HIGH_WATER) {
+                    paused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (read < READ_SIZE)
+                return;
+        }
+    }
+
+    /**
+     * Copy read bytes to the inbound queue, into the free end of its last
+     * array first, must hold the lock
+     */
+    private void append(final ByteBuffer bytes) {
+        final ByteBuffer tail = inbound.peekLast();
+        if (tail != null && tail.limit() < tail.capacity()) {
+            final int        n    = Math.min(bytes.remaining(), tail.capacity() - tail.limit());
+            final ByteBuffer room = tail.duplicate();
+            room.limit(tail.limit() + n).position(tail.limit());
+            final int limit = bytes.limit();
+            bytes.limit(bytes.position() + n);
+            room.put(bytes);
+            bytes.limit(limit);
+            tail.limit(tail.limit() + n);
+        }
+        if (bytes.hasRemaining()) {
+            final ByteBuffer buffer = ByteBuffer.wrap(pool.bytes(READ_SIZE));
+            buffer.put(bytes).flip();
+            inbound.add(buffer);
+            held += buffer.capacity();
+        }
+    }
+
+    /**
+     * Region of a file queued for {@link FileChannel#transferTo}
+     */
+    private static final class FileRegion {
+
+        private final FileChannel file;
+
+        private final LongConsumer progress;
+
+        private long position;
+
+        private long remaining;
+
+        private FileRegion(final FileChannel file, final long position, final long count,
+                           final LongConsumer progress) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+            this.progress = progress;
+        }
+    }
+
+    /**
+     * Queue buffers to be written by the loop
+     *
+     * @param buffers
+     */
+    void write(final ByteBuffer... buffers) {
+        lock.lock();
+        try {
+            for (ByteBuffer buffer : buffers)
+                if (buffer.hasRemaining())
+                    outbound.add(buffer);
+        } finally {
+            lock.unlock();
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Queue a file region to be sent by the loop straight from the file to
+     * the socket
+     *
+     * @param file
+     * @param position
+     * @param count
+     * @param progress notified on the loop thread of the bytes sent by each
+     *                 transfer, may be null
+     * @see #closeAfterWrites(Closeable)
+     */
+    void transfer(final FileChannel file, final long position, final long count,
+                  final LongConsumer progress) {
+        lock.lock();
+        try {
+            if (count > 0)
+                outbound.add(new FileRegion(file, position, count, progress));
+        } finally {
+            lock.unlock();
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Close the given resource, such as the file of queued regions, once
+     * everything queued before has been written or the channel is closed
+     *
+     * @param resource
+     */
+    void closeAfterWrites(final Closeable resource) {
+        final boolean queued;
+        lock.lock();
+        try {
+            queued = !closed;
+            if (queued)
+                outbound.add(resource);
+        } finally {
+            lock.unlock();
+        }
+        if (queued)
+            scheduleFlush();
+        else
+            closeQuietly(resource);
+    }
+
+    private static void closeQuietly(final Closeable resource) {
+        try {
+            resource.close();
+        } catch (IOException ignored) {
+            // Ignored
+        }
+    }
+
+    private void scheduleFlush() {
+        loop.execute(() -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(new IOException("Unexpected failure writing to " + address, e));
+            }
+        });
+    }
+
+    private void flush() throws IOException {
+        if (key == null || !key.isValid() || !connected)
+            return;
+        List<Runnable> notifications = null;
+        lock.lock();
+        try {
+            while (!outbound.isEmpty()) {
+                final Object head = outbound.peek();
+                if (head instanceof ByteBuffer) {
+                    final ByteBuffer buffer = (ByteBuffer) head;
+                    channel.write(buffer);
+                    if (buffer.hasRemaining())
+                        break;
+                } else if (head instanceof Closeable) {
+                    closeQuietly((Closeable) head);
+                } else {
+                    final FileRegion region = (FileRegion) head;
+                    final long       sent   = region.file.transferTo(region.position, region.remaining, channel);
+                    if (sent > 0) {
+                        region.position += sent;
+                        region.remaining -= sent;
+                        if (region.progress != null) {
+                            if (notifications == null)
+                                notifications = new ArrayList<>();
+                            notifications.add(() -> region.progress.accept(sent));
+                        }
+                    } else if (region.position >= region.file.size())
+                        throw new EOFException("File is shorter than the request body");
+                    if (region.remaining > 0)
+                        break;
+                }
+                outbound.poll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        updateInterest();
+        // Callbacks run without the lock held, one that throws fails this
+        // channel only and not the loop
+        if (notifications != null)
+            for (Runnable notification : notifications)
+                try {
+                    notification.run();
+                } catch (RuntimeException e) {
+                    throw new IOException("Upload progress callback failed", e);
+                }
+    }
+
+    /**
+     * Drop all queued writes, must hold the lock
+     */
+    private void clearOutbound() {
+        for (Object pending : outbound)
+            if (pending instanceof Closeable)
+                closeQuietly((Closeable) pending);
+        outbound.clear();
+    }
+
+    private void updateInterest() {
+        if (key == null || !key.isValid())
+            return;
+        lock.lock();
+        try {
+            int ops = 0;
+            if (!paused && !eof)
+                ops |= SelectionKey.OP_READ;
+            if (!outbound.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fail(final IOException e) {
+        lock.lock();
+        try {
+            if (failure == null)
+                failure = e;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        // Bytes already received stay readable, the failure surfaces after them
+        loop.execute(this::closeSocket);
+    }
+
+    /**
+     * Read inbound bytes into the given array, blocking until at least one
+     * byte is available, the peer closed the connection or the timeout
+     * elapsed
+     *
+     * @param b
+     * @param off
+     * @param len
+     * @param timeout read timeout in milliseconds, 0 for infinite
+     * @return number of bytes read, -1 at end of stream
+     * @throws IOException
+     */
+    int read(final byte[] b, final int off, final int len, final int timeout) throws IOException {
+        if (len == 0)
+            return 0;
+        lock.lock();
+        try {
+            if (!awaitInbound(timeout))
+                return -1;
+            final ByteBuffer head = inbound.peek();
+            final int        n    = Math.min(len, head.remaining());
+            head.get(b, off, n);
+            consumed(head, n);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read inbound bytes into the given buffer, blocking like
+     * {@link #read(byte[], int, int, int)}
+     * <p>
+     * Bytes are copied straight from the receive queue into the buffer, so
+     * a direct buffer can go on to a file channel without another copy.
+     *
+     * @param dst
+     * @param timeout read timeout in milliseconds, 0 for infinite
+     * @return number of bytes read, -1 at end of stream
+     * @throws IOException
+     */
+    int read(final ByteBuffer dst, final int timeout) throws IOException {
+        if (!dst.hasRemaining())
+            return 0;
+        lock.lock();
+        try {
+            if (!awaitInbound(timeout))
+                return -1;
+            final ByteBuffer head  = inbound.peek();
+            final int        n     = Math.min(dst.remaining(), head.remaining());
+            final int        limit = head.limit();
+            head.limit(head.position() + n);
+            dst.put(head);
+            head.limit(limit);
+            consumed(head, n);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until inbound bytes are queued, must hold the lock
+     *
+     * @return false at end of stream
+     */
+    private boolean awaitInbound(final int timeout) throws IOException {
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (inbound.isEmpty()) {
+                if (failure != null)
+                    throw failure;
+                if (eof)
+                    return false;
+                if (closed)
+                    throw new ClosedChannelException();
+                if (timeout <= 0)
+                    changed.await();
+                else if (remaining <= 0)
+                    throw new SocketTimeoutException("Read timed out");
+                else
+                    remaining = changed.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading from " + address);
+        }
+    }
+
+    /**
+     * Account for bytes taken from the head buffer, must hold the lock
+     */
+    private void consumed(final ByteBuffer head, final int n) {
+        if (!head.hasRemaining()) {
+            held -= head.capacity();
+            pool.release(inbound.poll().array());
+        }
+        queued -= n;
+        if (paused && held <= LOW_WATER) {
+            paused = false;
+            loop.execute(this::updateInterest);
+        }
+    }
+
+    /**
+     * Number of inbound bytes that can be read without blocking
+     *
+     * @return available bytes
+     */
+    int available() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get a stream over the inbound bytes of this channel
+     * <p>
+     * The stream is also a {@link ReadableByteChannel}. Closing it does not
+     * close the channel.
+     *
+     * @param timeout read timeout in milliseconds, 0 for infinite
+     * @return stream
+     */
+    InputStream inputStream(final int timeout) {
+        return new ChannelInputStream(timeout);
+    }
+
+    private final class ChannelInputStream extends InputStream implements ReadableByteChannel {
+
+        private final byte[] single = new byte[1];
+
+        private final int timeout;
+
+        private ChannelInputStream(final int timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int n = NioChannel.this.read(single, 0, 1, timeout);
+            return n == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            return NioChannel.this.read(b, off, len, timeout);
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            return NioChannel.this.read(dst, timeout);
+        }
+
+        @Override
+        public int available() {
+            return NioChannel.this.available();
+        }
+
+        @Override
+        public boolean isOpen() {
+            // End of stream and failures are reported by read
+            return true;
+        }
+    }
+
+    /**
+     * Is this channel still usable for another exchange?
+     *
+     * @return true if open and the peer has not closed or failed it
+     */
+    boolean isOpen() {
+        lock.lock();
+        try {
+            return !closed && !eof && failure == null && channel.isOpen();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            for (ByteBuffer buffer : inbound)
+                pool.release(buffer.array());
+            inbound.clear();
+            clearOutbound();
+            queued = held = 0;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        loop.execute(this::closeSocket);
+    }
+
+    private void closeSocket() {
+        lock.lock();
+        try {
+            clearOutbound();
+        } finally {
+            lock.unlock();
+        }
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Ignored
+        }
+    }
+
+}
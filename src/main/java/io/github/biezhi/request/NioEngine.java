@@ -0,0 +1,164 @@
+package io.github.biezhi.request;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of selector threads that perform all socket I/O for
+ * {@link NioChannel channels}.
+ * <p>
+ * Channels are assigned to loops round-robin and stay on their loop for
+ * their whole life, so channel state touched from the loop never needs
+ * locking against other loops.
+ */
+final class NioEngine implements Closeable {
+
+    private final Loop[] loops;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Create engine and start its threads
+     *
+     * @param threads number of selector threads
+     * @param name    thread name prefix
+     * @throws IOException
+     */
+    NioEngine(final int threads, final String name) throws IOException {
+        if (threads < 1)
+            throw new IllegalArgumentException("Threads must be greater than zero");
+        loops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new Loop(Selector.open());
+            Thread thread = new Thread(loops[i], name + "-" + i);
+            thread.setDaemon(true);
+            loops[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Get the loop the next channel should be registered with
+     *
+     * @return loop
+     */
+    Loop next() {
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    @Override
+    public void close() {
+        for (Loop loop : loops)
+            loop.shutdown();
+    }
+
+    /**
+     * Single selector thread
+     */
+    static final class Loop implements Runnable {
+
+        private final Selector selector;
+
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Direct buffer the channels of this loop read into, only used on
+         * its thread
+         */
+        private final ByteBuffer scratch = ByteBuffer.allocateDirect(NioChannel.READ_SIZE);
+
+        private volatile boolean running = true;
+
+        private volatile boolean stopped;
+
+        private Thread thread;
+
+        private Loop(final Selector selector) {
+            this.selector = selector;
+        }
+
+        Selector selector() {
+            return selector;
+        }
+
+        ByteBuffer scratch() {
+            return scratch;
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Run the task on this loop's thread
+         *
+         * @param task
+         */
+        void execute(final Runnable task) {
+            if (inLoop()) {
+                task.run();
+                return;
+            }
+            tasks.add(task);
+            selector.wakeup();
+            // Tasks queued after the loop ended, such as registering a new
+            // channel, run here so they fail rather than wait forever
+            if (stopped)
+                runTasks();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    continue;
+                }
+                runTasks();
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final NioChannel channel = (NioChannel) key.attachment();
+                    try {
+                        channel.handle(key);
+                    } catch (RuntimeException e) {
+                        // A fault of one channel must not stop the others
+                        channel.close();
+                    }
+                }
+            }
+            stopped = true;
+            runTasks();
+            for (SelectionKey key : selector.keys())
+                ((NioChannel) key.attachment()).close();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // Ignored
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                try {
+                    task.run();
+                } catch (RuntimeException ignored) {
+                    // Tasks fail their own channel, keep the loop running
+                }
+        }
+    }
+
+}
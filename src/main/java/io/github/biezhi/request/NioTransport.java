@@ -0,0 +1,199 @@
+package io.github.biezhi.request;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.github.biezhi.request.Const.METHOD_POST;
+
+/**
+ * HTTP/1.1 {@link Transport} over non-blocking socket channels.
+ * <p>
+ * All socket reads and writes are performed by a small, fixed number of
+ * selector threads, so in-flight requests no longer pin a thread blocked in
+ * socket I/O. Only plain 'http' URLs without a proxy are handled, anything
+ * else is served by {@link ConnectionFactory#DEFAULT}.
+ * <p>
+ * Connections are kept alive in a {@link ConnectionPool} and returned to it
+ * once a response body has been fully read, so bodies should always be
+ * consumed or the request disconnected. The connection of a response that
+ * is neither is only closed once the response is garbage collected.
+ * <p>
+ * Use it for all requests with:
+ * <pre>
+ * Request.setConnectionFactory(new TransportConnectionFactory(new NioTransport()));
+ * </pre>
+ */
+public class NioTransport implements Transport, Closeable {
+
+    private final int ioThreads;
+
+    private final ConnectionPool pool;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile NioEngine engine;
+
+    private volatile Resolver resolver = Resolver.SYSTEM;
+
+    /**
+     * Create transport with one selector thread per two available processors
+     * and a default connection pool
+     */
+    public NioTransport() {
+        this(defaultThreads());
+    }
+
+    /**
+     * Create transport with the given number of selector threads and a
+     * default connection pool
+     *
+     * @param ioThreads
+     */
+    public NioTransport(final int ioThreads) {
+        this(ioThreads, new ConnectionPool());
+    }
+
+    /**
+     * Create transport with the given number of selector threads and
+     * connection pool
+     * <p>
+     * Threads are started on first use.
+     *
+     * @param ioThreads
+     * @param pool
+     */
+    public NioTransport(final int ioThreads, final ConnectionPool pool) {
+        if (ioThreads < 1)
+            throw new IllegalArgumentException("I/O threads must be greater than zero");
+        if (pool == null)
+            throw new IllegalArgumentException("Pool must not be null");
+        this.ioThreads = ioThreads;
+        this.pool = pool;
+    }
+
+    static int defaultThreads() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    public ConnectionPool pool() {
+        return pool;
+    }
+
+    /**
+     * Set the {@link Resolver} host names are resolved with
+     *
+     * @param resolver
+     * @return this transport
+     */
+    public NioTransport resolver(final Resolver resolver) {
+        if (resolver == null)
+            throw new IllegalArgumentException("Resolver must not be null");
+        this.resolver = resolver;
+        return this;
+    }
+
+    public Resolver resolver() {
+        return resolver;
+    }
+
+    @Override
+    public boolean supports(final URL url, final Proxy proxy) {
+        return "http".equalsIgnoreCase(url.getProtocol())
+                && (proxy == null || proxy.type() == Proxy.Type.DIRECT);
+    }
+
+    @Override
+    public Response execute(final Call call) throws IOException {
+        final ConnectionPool.Lease lease = acquire(call);
+        try {
+            return exchange(call, lease);
+        } catch (InterruptedIOException e) {
+            // Timed out or cancelled, such as a hedge that lost
+            throw e;
+        } catch (IOException e) {
+            // A pooled connection may have been closed by the server while
+            // idle, retry idempotent calls once on a fresh connection
+            if (!lease.reused() || !idempotent(call.method()))
+                throw e;
+            return exchange(call, acquire(call));
+        }
+    }
+
+    private ConnectionPool.Lease acquire(final Call call) throws IOException {
+        final NioEngine.Loop loop = engine().next();
+        return pool.acquire(call.authority(), () ->
+                NioChannel.open(loop, resolver, call.host(), call.port(), call.connectTimeout()));
+    }
+
+    private Response exchange(final Call call, final ConnectionPool.Lease lease) throws IOException {
+        final NioChannel channel = lease.channel();
+        try {
+            channel.write(Http1Codec.encodeHead(call, true));
+            if (call.body() != null)
+                writeBody(channel, call.body());
+            final InputStream input = channel.inputStream(call.readTimeout());
+            final Response    head  = Http1Codec.readHead(input);
+            final InputStream body  = Http1Codec.body(input, call.method(), head,
+                    reusable -> pool.release(lease, reusable));
+            pool.track(lease, body);
+            return new Response(head.protocol(), head.code(), head.message(), head.headers(), body);
+        } catch (IOException | RuntimeException e) {
+            pool.release(lease, false);
+            throw e;
+        }
+    }
+
+    /**
+     * Queue the body, file regions go from the file to the socket without
+     * being copied through the heap
+     */
+    private static void writeBody(final NioChannel channel, final RequestBody body) throws IOException {
+        for (RequestBody.Segment segment : body.segments()) {
+            if (!segment.isFile()) {
+                channel.write(segment.buffer());
+                continue;
+            }
+            final FileChannel file = segment.open();
+            channel.transfer(file, segment.position(), segment.length(), segment::progress);
+            channel.closeAfterWrites(file);
+        }
+    }
+
+    static boolean idempotent(final String method) {
+        return !METHOD_POST.equals(method) && !"PATCH".equals(method);
+    }
+
+    private NioEngine engine() throws IOException {
+        NioEngine engine = this.engine;
+        if (engine != null)
+            return engine;
+        // A lock rather than synchronized so waiting virtual threads unmount
+        lock.lock();
+        try {
+            engine = this.engine;
+            if (engine == null)
+                this.engine = engine = new NioEngine(ioThreads, "request-nio");
+            return engine;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close the connection pool and stop the selector threads
+     */
+    @Override
+    public void close() {
+        pool.close();
+        final NioEngine engine = this.engine;
+        if (engine != null)
+            engine.close();
+    }
+
+}
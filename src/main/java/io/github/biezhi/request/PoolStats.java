@@ -0,0 +1,81 @@
+package io.github.biezhi.request;
+
+/**
+ * Point in time statistics of a {@link ConnectionPool}
+ * <p>
+ * Counters that are not tracked for a view, such as the number of waiters
+ * per host, are reported as -1.
+ */
+public final class PoolStats {
+
+    private final int leased;
+
+    private final int idle;
+
+    private final int waiting;
+
+    private final long created;
+
+    private final long reused;
+
+    private final long closed;
+
+    PoolStats(final int leased, final int idle, final int waiting,
+              final long created, final long reused, final long closed) {
+        this.leased = leased;
+        this.idle = idle;
+        this.waiting = waiting;
+        this.created = created;
+        this.reused = reused;
+        this.closed = closed;
+    }
+
+    /**
+     * @return number of connections currently in use
+     */
+    public int leased() {
+        return leased;
+    }
+
+    /**
+     * @return number of open connections waiting to be reused
+     */
+    public int idle() {
+        return idle;
+    }
+
+    /**
+     * @return number of callers waiting for a connection
+     */
+    public int waiting() {
+        return waiting;
+    }
+
+    /**
+     * @return number of connections opened
+     */
+    public long created() {
+        return created;
+    }
+
+    /**
+     * @return number of exchanges served by an already open connection
+     */
+    public long reused() {
+        return reused;
+    }
+
+    /**
+     * @return number of connections closed by the pool
+     */
+    public long closed() {
+        return closed;
+    }
+
+    @Override
+    public String toString() {
+        return "PoolStats{leased=" + leased + ", idle=" + idle + ", waiting=" + waiting
+                + ", created=" + created + ", reused=" + reused + ", closed=" + closed + '}';
+    }
+
+}
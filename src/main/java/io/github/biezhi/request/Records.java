@@ -0,0 +1,190 @@
+package io.github.biezhi.request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily splits a body stream into delimited records.
+ * <p>
+ * The delimiter is searched for in the raw bytes, so the only allocation
+ * per record is its {@link String}. Records longer than the buffer grow it.
+ * The delimiter is encoded with the body's character set, which must
+ * encode ASCII as single bytes (UTF-8, ISO-8859-1, ...) for a match in
+ * the bytes to be a match in the text.
+ */
+final class Records implements Iterator<String> {
+
+    private final InputStream input;
+
+    private final byte[] delimiter;
+
+    private final boolean lines;
+
+    private final Charset charset;
+
+    private final BufferPool pool;
+
+    private byte[] pooled;
+
+    private byte[] buf;
+
+    private int pos;
+
+    private int limit;
+
+    private int scan;
+
+    private boolean eof;
+
+    private String next;
+
+    private Records(final InputStream input, final byte[] delimiter, final boolean lines,
+                    final Charset charset, final BufferPool pool, final int bufferSize) {
+        this.input = input;
+        this.delimiter = delimiter;
+        this.lines = lines;
+        this.charset = charset;
+        this.pool = pool;
+        this.pooled = pool.bytes(bufferSize);
+        this.buf = pooled;
+    }
+
+    /**
+     * Create a lazy stream of the records of the given body
+     *
+     * @param input     body, closed with the stream
+     * @param delimiter record delimiter
+     * @param lines     whether records are lines, which also end at '\r\n'
+     * @param charset
+     * @param pool
+     * @param bufferSize
+     * @param abandoned run when the stream is closed before the end of the body
+     * @return stream
+     */
+    static Stream<String> stream(final InputStream input, final String delimiter, final boolean lines,
+                                 final Charset charset, final BufferPool pool, final int bufferSize,
+                                 final Runnable abandoned) {
+        final Records records = new Records(input, delimiter.getBytes(charset), lines, charset, pool, bufferSize);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(records,
+                Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    final boolean complete = records.isComplete();
+                    records.close();
+                    if (!complete)
+                        abandoned.run();
+                });
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null)
+            next = read();
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        final String record = next;
+        next = null;
+        return record;
+    }
+
+    private boolean isComplete() {
+        return eof && pos == limit;
+    }
+
+    private String read() {
+        try {
+            while (true) {
+                final int end = indexOf();
+                if (end != -1) {
+                    final String record = record(pos, end);
+                    pos = end + delimiter.length;
+                    scan = pos;
+                    return record;
+                }
+                if (eof) {
+                    if (pos == limit)
+                        return null;
+                    final String record = record(pos, limit);
+                    pos = limit;
+                    return record;
+                }
+                fill();
+            }
+        } catch (IOException e) {
+            throw new RequestException(e);
+        }
+    }
+
+    private String record(final int start, final int end) {
+        int length = end - start;
+        if (lines && length > 0 && buf[end - 1] == '\r')
+            length--;
+        return new String(buf, start, length, charset);
+    }
+
+    private int indexOf() {
+        final byte first = delimiter[0];
+        for (int i = scan; i <= limit - delimiter.length; i++) {
+            if (buf[i] != first)
+                continue;
+            int matched = 1;
+            while (matched < delimiter.length && buf[i + matched] == delimiter[matched])
+                matched++;
+            if (matched == delimiter.length)
+                return i;
+        }
+        // A delimiter may start in the bytes not searched yet
+        scan = Math.max(pos, limit - delimiter.length + 1);
+        return -1;
+    }
+
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            scan -= pos;
+            pos = 0;
+        } else if (limit == buf.length) {
+            final byte[] grown = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, grown, 0, limit);
+            buf = grown;
+            releaseBuffer();
+        }
+        final int read = input.read(buf, limit, buf.length - limit);
+        if (read == -1)
+            eof = true;
+        else
+            limit += read;
+    }
+
+    private void releaseBuffer() {
+        final byte[] buffer = pooled;
+        pooled = null;
+        pool.release(buffer);
+    }
+
+    private void close() {
+        try {
+            input.close();
+        } catch (IOException ignored) {
+            // Ignored
+        }
+        if (pooled != null && buf == pooled)
+            buf = new byte[0];
+        releaseBuffer();
+        pos = limit = scan = 0;
+        eof = true;
+    }
+
+}
@@ -3,6 +3,13 @@ package io.github.biezhi.request;
 import javax.net.ssl.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.security.AccessController;
 import java.security.GeneralSecurityException;
 import java.security.PrivilegedAction;
@@ -10,8 +17,13 @@ import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.GZIPInputStream;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 import static io.github.biezhi.request.Const.*;
 import static io.github.biezhi.request.Utils.append;
@@ -31,6 +43,16 @@ public final class Request {
     private static SSLSocketFactory TRUSTED_FACTORY;
     private static HostnameVerifier TRUSTED_VERIFIER;
     private static ConnectionFactory CONNECTION_FACTORY = ConnectionFactory.DEFAULT;
+    private static Executor          EXECUTOR;
+    private static BufferPool        BUFFER_POOL = BufferPool.DEFAULT;
+
+    private static final int DEFAULT_COMPRESS_THRESHOLD = 1024;
+
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
+    private static final long MIN_SEGMENT_SIZE = 256 * 1024;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
 
     private HttpURLConnection connection = null;
 
@@ -38,6 +60,8 @@ public final class Request {
 
     private final String requestMethod;
 
+    private final RequestClient client;
+
     private RequestOutputStream output;
 
     private boolean multipart;
@@ -48,6 +72,12 @@ public final class Request {
 
     private boolean unCompress = false;
 
+    private int compressThreshold = -1;
+
+    private int compressLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private boolean fixedLength;
+
     private int bufferSize = 8192;
 
     private long totalSize = -1;
@@ -58,6 +88,8 @@ public final class Request {
 
     private UploadProgress progress = UploadProgress.DEFAULT;
 
+    private Executor executor;
+
     private static String getValidCharset(final String charset) {
         if (charset != null && charset.length() > 0)
             return charset;
@@ -102,6 +134,10 @@ public final class Request {
 
     /**
      * Specify the {@link ConnectionFactory} used to create new requests.
+     * <p>
+     * Use a {@link TransportConnectionFactory} to serve requests from a
+     * {@link Transport} such as {@link NioTransport} instead of
+     * {@link URL#openConnection()}.
      */
     public static void setConnectionFactory(final ConnectionFactory connectionFactory) {
         if (connectionFactory == null)
@@ -110,6 +146,38 @@ public final class Request {
             CONNECTION_FACTORY = connectionFactory;
     }
 
+    /**
+     * Specify the {@link BufferPool} bodies are copied through.
+     * <p>
+     * Specifying null restores {@link BufferPool#DEFAULT}, use
+     * {@link BufferPool#NONE} to allocate a new buffer each time.
+     */
+    public static void setBufferPool(final BufferPool bufferPool) {
+        if (bufferPool == null)
+            BUFFER_POOL = BufferPool.DEFAULT;
+        else
+            BUFFER_POOL = bufferPool;
+    }
+
+    /**
+     * Get the {@link BufferPool} bodies are copied through
+     *
+     * @return pool
+     */
+    public static BufferPool bufferPool() {
+        return BUFFER_POOL;
+    }
+
+    /**
+     * Specify the {@link Executor} asynchronous requests run on when neither
+     * the request nor its {@link RequestClient} configure one.
+     * <p>
+     * Specifying null restores the default pool of daemon threads.
+     */
+    public static void setExecutor(final Executor executor) {
+        EXECUTOR = executor;
+    }
+
     /**
      * Start a 'GET' request to the given URL
      *
@@ -418,7 +486,8 @@ public final class Request {
     /**
      * Set the 'http.keepAlive' property to the given value.
      * <p>
-     * This setting will apply to all requests.
+     * This setting will apply to all requests not created from a
+     * {@link RequestClient}.
      *
      * @param keepAlive
      */
@@ -429,7 +498,9 @@ public final class Request {
     /**
      * Set the 'http.maxConnections' property to the given value.
      * <p>
-     * This setting will apply to all requests.
+     * This setting will apply to all requests not created from a
+     * {@link RequestClient}, use a {@link ConnectionPool} for per host
+     * limits.
      *
      * @param maxConnections
      */
@@ -511,33 +582,59 @@ public final class Request {
      * @throws RequestException
      */
     public Request(final CharSequence url, final String method) throws RequestException {
+        this(url, method, null);
+    }
+
+    /**
+     * Create HTTP connection wrapper
+     *
+     * @param url    Remote resource URL.
+     * @param method HTTP request method (e.g., "GET", "POST").
+     * @throws RequestException
+     */
+    public Request(final URL url, final String method) throws RequestException {
+        this(url, method, null);
+    }
+
+    /**
+     * Create HTTP connection wrapper served by the given client
+     *
+     * @param url    Remote resource URL.
+     * @param method HTTP request method (e.g., "GET", "POST").
+     * @param client client or null to use the global connection factory
+     * @throws RequestException
+     */
+    Request(final CharSequence url, final String method, final RequestClient client) throws RequestException {
         try {
             this.url = new URL(url.toString());
         } catch (MalformedURLException e) {
             throw new RequestException(e);
         }
         this.requestMethod = method;
+        this.client = client;
     }
 
     /**
-     * Create HTTP connection wrapper
+     * Create HTTP connection wrapper served by the given client
      *
      * @param url    Remote resource URL.
      * @param method HTTP request method (e.g., "GET", "POST").
-     * @throws RequestException
+     * @param client client or null to use the global connection factory
      */
-    public Request(final URL url, final String method) throws RequestException {
+    Request(final URL url, final String method, final RequestClient client) {
         this.url = url;
         this.requestMethod = method;
+        this.client = client;
     }
 
     private HttpURLConnection createConnection() {
         try {
+            final ConnectionFactory factory = client != null ? client.connectionFactory() : CONNECTION_FACTORY;
             final HttpURLConnection connection;
             if (this.proxy != null)
-                connection = CONNECTION_FACTORY.create(url, this.proxy);
+                connection = factory.create(url, this.proxy);
             else
-                connection = CONNECTION_FACTORY.create(url);
+                connection = factory.create(url);
             connection.setRequestMethod(requestMethod);
             return connection;
         } catch (IOException e) {
@@ -753,21 +850,65 @@ public final class Request {
      * when read from.
      * <p>
      * This will only affect requests that have the 'Content-Encoding' response
-     * header set to 'gzip'.
+     * header set to 'gzip' or 'deflate'.
      * <p>
-     * This causes all receive methods to use a {@link GZIPInputStream} when
-     * applicable so that higher level streams and readers can read the data
-     * uncompressed.
+     * This causes all receive methods to uncompress the body when applicable
+     * so that higher level streams and readers can read the data uncompressed.
+     * Inflaters are taken from the {@link #bufferPool()} and returned to it
+     * once the body has been read or closed.
      * <p>
-     * Setting this option does not cause any request headers to be set
-     * automatically so {@link #acceptGzipEncoding()} should be used in
-     * conjunction with this setting to tell the server to gzip the response.
+     * Enabling this option sets the 'Accept-Encoding' header to
+     * 'gzip, deflate' unless an 'Accept-Encoding' header has already been set.
      *
      * @param uncompress
      * @return this request
      */
     public Request uncompress(final boolean uncompress) {
         this.unCompress = uncompress;
+        if (uncompress && getConnection().getRequestProperty(HEADER_ACCEPT_ENCODING) == null)
+            acceptEncoding(ENCODING_GZIP + ", " + ENCODING_DEFLATE);
+        return this;
+    }
+
+    /**
+     * Set whether or not the request body should be gzipped when it is at
+     * least 1,024 bytes and compresses well
+     *
+     * @param compress
+     * @return this request
+     * @see #compress(int, int)
+     */
+    public Request compress(final boolean compress) {
+        if (compress)
+            return compress(DEFAULT_COMPRESS_THRESHOLD, Deflater.DEFAULT_COMPRESSION);
+        compressThreshold = -1;
+        return this;
+    }
+
+    /**
+     * Gzip the request body when it is at least the given number of bytes
+     * and its start compresses to at most 90% of its size, setting the
+     * 'Content-Encoding' request header to 'gzip'.
+     * <p>
+     * The body is held back until the given number of bytes or the request
+     * buffer size, if larger, have been written so the decision is made on
+     * real data. While compressing, stretches of data that turn out not to
+     * compress are stored instead so already compressed files cost little
+     * CPU. Bodies with a fixed {@link #contentLength(int)} are not compressed.
+     * The server must accept gzipped request bodies.
+     *
+     * @param threshold minimum body size in bytes
+     * @param level     compression level from 1 (fastest) to 9 (smallest), or -1
+     *                  for the default
+     * @return this request
+     */
+    public Request compress(final int threshold, final int level) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("Threshold must not be negative");
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Level must be between -1 and 9");
+        compressThreshold = threshold;
+        compressLevel = level;
         return this;
     }
 
@@ -788,19 +929,69 @@ public final class Request {
      * Get response as {@link String} in given character set
      * <p>
      * This will fall back to using the UTF-8 character set if the given charset
-     * is null
+     * is null. A body of known length is read into an array of exactly that
+     * size and decoded once, any other body is decoded while it is read.
      *
      * @param charset
      * @return string
      * @throws RequestException
      */
     public String body(final String charset) throws RequestException {
-        final ByteArrayOutputStream output = byteStream();
+        final Charset decoded = toCharset(charset);
+        if (bodyLength() >= 0)
+            return new String(bytes(), decoded);
+        final StringBuilder builder = new StringBuilder();
+        decode(builder, decoded);
+        return builder.toString();
+    }
+
+    /**
+     * Decode response body into the given output using the given character
+     * set, a buffer at a time
+     * <p>
+     * This will fall back to using the UTF-8 character set if the given charset
+     * is null. The body is never held in memory as a whole, so appending to a
+     * {@link Writer} or a parser's input avoids building the {@link String}
+     * {@link #body(String)} would return.
+     *
+     * @param output
+     * @param charset
+     * @return this request
+     * @throws RequestException
+     */
+    public Request body(final Appendable output, final String charset) throws RequestException {
+        return decode(output, toCharset(charset));
+    }
+
+    /**
+     * Decode response body into the given output using the character set
+     * returned from {@link #charset()}
+     *
+     * @param output
+     * @return this request
+     * @throws RequestException
+     * @see #body(Appendable, String)
+     */
+    public Request body(final Appendable output) throws RequestException {
+        return body(output, charset());
+    }
+
+    private Request decode(final Appendable output, final Charset charset) throws RequestException {
+        final InputStream input = stream();
+        return new CloseOperation<Request>(input, ignoreCloseExceptions) {
+            @Override
+            protected Request run() throws IOException {
+                BodyDecoder.decode(input, charset, output, BUFFER_POOL, bufferSize);
+                return Request.this;
+            }
+        }.call();
+    }
+
+    private static Charset toCharset(final String charset) throws RequestException {
         try {
-            copy(buffer(), output);
-            return output.toString(getValidCharset(charset));
-        } catch (IOException e) {
-            throw new RequestException(e);
+            return Charset.forName(getValidCharset(charset));
+        } catch (IllegalArgumentException e) {
+            throw new RequestException(new UnsupportedEncodingException(charset));
         }
     }
 
@@ -832,13 +1023,27 @@ public final class Request {
      * @throws RequestException
      */
     public byte[] bytes() throws RequestException {
-        final ByteArrayOutputStream output = byteStream();
-        try {
-            copy(buffer(), output);
-        } catch (IOException e) {
-            throw new RequestException(e);
-        }
-        return output.toByteArray();
+        return readBody().toByteArray();
+    }
+
+    /**
+     * Read the whole response body into memory
+     * <p>
+     * With a known length the body is read into one array of exactly that
+     * size, otherwise into chunks that are never copied into a growing array.
+     *
+     * @return body
+     * @throws RequestException
+     */
+    private ChunkedBytes readBody() throws RequestException {
+        final long        length = bodyLength();
+        final InputStream input  = stream();
+        return new CloseOperation<ChunkedBytes>(input, ignoreCloseExceptions) {
+            @Override
+            protected ChunkedBytes run() throws IOException {
+                return ChunkedBytes.read(input, length);
+            }
+        }.call();
     }
 
     /**
@@ -849,7 +1054,29 @@ public final class Request {
      * @see #bufferSize(int)
      */
     public BufferedInputStream buffer() throws RequestException {
-        return new BufferedInputStream(stream(), bufferSize);
+        return new PooledInputStream(stream(), bufferSize, BUFFER_POOL);
+    }
+
+    /**
+     * Buffered stream taking its buffer from a {@link BufferPool} and giving
+     * it back when closed
+     */
+    private static final class PooledInputStream extends BufferedInputStream {
+
+        private final BufferPool pool;
+
+        private PooledInputStream(final InputStream input, final int size, final BufferPool pool) {
+            super(input, 1);
+            this.pool = pool;
+            this.buf = pool.bytes(size);
+        }
+
+        @Override
+        public void close() throws IOException {
+            final byte[] buffer = buf;
+            super.close();
+            pool.release(buffer);
+        }
     }
 
     /**
@@ -879,10 +1106,10 @@ public final class Request {
                 }
             }
         }
-        if (!unCompress || !ENCODING_GZIP.equals(contentEncoding()))
+        if (!isUncompressed())
             return stream;
         try {
-            return new GZIPInputStream(stream);
+            return InflatingInputStream.open(stream, contentEncoding(), BUFFER_POOL, bufferSize);
         } catch (IOException e) {
             throw new RequestException(e);
         }
@@ -917,6 +1144,50 @@ public final class Request {
         return reader(charset());
     }
 
+    /**
+     * Get a lazy stream of the lines of the response body using the
+     * character set returned from {@link #charset()}
+     * <p>
+     * Lines end at '\n' or '\r\n'. The body is read as the stream is
+     * consumed, close the stream to release the connection; closing it
+     * before the end disconnects.
+     * <pre>
+     * try (Stream&lt;String&gt; lines = Request.get(url).lines()) {
+     *     lines.map(Json::parse).forEach(sink);
+     * }
+     * </pre>
+     *
+     * @return stream of lines
+     * @throws RequestException
+     */
+    public Stream<String> lines() throws RequestException {
+        return records("\n", true);
+    }
+
+    /**
+     * Get a lazy stream of the records of the response body separated by the
+     * given delimiter, using the character set returned from {@link #charset()}
+     * <p>
+     * The delimiter is searched for in the raw bytes, so the character set
+     * must encode ASCII as single bytes, such as UTF-8. Close the stream to
+     * release the connection.
+     *
+     * @param delimiter
+     * @return stream of records
+     * @throws RequestException
+     * @see #lines()
+     */
+    public Stream<String> records(final String delimiter) throws RequestException {
+        return records(delimiter, false);
+    }
+
+    private Stream<String> records(final String delimiter, final boolean lines) throws RequestException {
+        if (delimiter == null || delimiter.isEmpty())
+            throw new IllegalArgumentException("Delimiter must not be empty");
+        final Charset charset = toCharset(charset());
+        return Records.stream(stream(), delimiter, lines, charset, BUFFER_POOL, bufferSize, this::disconnect);
+    }
+
     /**
      * Get buffered reader to response body using the given character set r and
      * the configured buffer size
@@ -944,26 +1215,346 @@ public final class Request {
 
     /**
      * Stream response body to file
+     * <p>
+     * The body is moved into the file with
+     * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}
+     * rather than through heap buffers, and the file is extended to its final
+     * size up front when the response has a Content-Length. A body that ends
+     * early or fails leaves the file truncated to the bytes received.
      *
      * @param file
      * @return this request
      * @throws RequestException
      */
     public Request receive(final File file) throws RequestException {
-        final OutputStream output;
+        final FileChannel channel;
         try {
-            output = new BufferedOutputStream(new FileOutputStream(file), bufferSize);
-        } catch (FileNotFoundException e) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
             throw new RequestException(e);
         }
-        return new CloseOperation<Request>(output, ignoreCloseExceptions) {
+        return new CloseOperation<Request>(channel, ignoreCloseExceptions) {
             @Override
             protected Request run() throws RequestException, IOException {
-                return receive(output);
+                final long length = bodyLength();
+                if (length > 0)
+                    channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+                // transfer() counts into totalWritten as it goes, which still
+                // tells the bytes received when it throws
+                final long before = totalWritten;
+                try {
+                    transfer(channel, 0, -1);
+                } finally {
+                    // Drop the preallocated tail of a body that ended early
+                    final long written = totalWritten - before;
+                    if (written < length)
+                        channel.truncate(written);
+                }
+                return Request.this;
             }
         }.call();
     }
 
+    /**
+     * Stream response body to file over several connections at once
+     * <p>
+     * When the response is a 200 with a Content-Length, 'Accept-Ranges: bytes'
+     * and no Content-Encoding, the body is split into the given number of
+     * byte ranges. This request reads the first range and the others are
+     * fetched concurrently with Range requests on the {@link #executor()},
+     * each written into its own region of the file. Range requests carry
+     * If-Range with the ETag or Last-Modified date of this response, so a
+     * resource that changes in between fails the download instead of mixing
+     * versions. Any other response is received with {@link #receive(File)}.
+     * <p>
+     * The ranges of a failed download are not tracked for resuming, the file
+     * is truncated to the bytes this request received of the first range.
+     * <p>
+     * Request headers are copied to the range requests, so call this before
+     * reading the response.
+     *
+     * @param file
+     * @param segments number of ranges fetched concurrently
+     * @return this request
+     * @throws RequestException
+     */
+    public Request receiveParallel(final File file, final int segments) throws RequestException {
+        if (segments < 1)
+            throw new IllegalArgumentException("Segments must be greater than zero");
+        final Map<String, List<String>> headers = getConnection().getRequestProperties();
+        final long                      length  = getConnection().getContentLengthLong();
+        if (segments == 1 || code() != HTTP_OK || length < segments * MIN_SEGMENT_SIZE
+                || !"bytes".equalsIgnoreCase(header(HEADER_ACCEPT_RANGES))
+                || (contentEncoding() != null && !"identity".equalsIgnoreCase(contentEncoding())))
+            return receive(file);
+
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new RequestException(e);
+        }
+        return new CloseOperation<Request>(channel, ignoreCloseExceptions) {
+            @Override
+            protected Request run() throws RequestException, IOException {
+                // Ranges are written at their offsets, so the file must be
+                // full size before any of them starts
+                channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+
+                final long   size    = (length + segments - 1) / segments;
+                final String ifRange = validator();
+                final URL                           location = getConnection().getURL();
+                final List<CompletableFuture<Long>> ranges   = new ArrayList<>();
+                for (int i = 1; i < segments; i++) {
+                    final long start = i * size;
+                    final long end   = Math.min(length, start + size) - 1;
+                    ranges.add(range(location, headers, start, end, ifRange)
+                            .async(range -> range.receiveRange(channel, start, end)));
+                }
+
+                // The other ranges must finish before the file is closed,
+                // whatever happens to this one
+                final long       before  = totalWritten;
+                RuntimeException failure = null;
+                try {
+                    final long received = transfer(channel, 0, size);
+                    if (received < size)
+                        throw new EOFException("Expected " + size + " bytes but received " + received);
+                } catch (IOException e) {
+                    failure = new RequestException(e);
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+                for (CompletableFuture<Long> range : ranges) {
+                    try {
+                        range.join();
+                    } catch (CompletionException e) {
+                        if (failure == null)
+                            failure = e.getCause() instanceof RuntimeException
+                                    ? (RuntimeException) e.getCause() : e;
+                    }
+                }
+                if (failure != null) {
+                    // Only the start of the file is known to be complete
+                    channel.truncate(totalWritten - before);
+                    throw failure;
+                }
+                return Request.this;
+            }
+        }.call();
+    }
+
+    /**
+     * Create a request for one byte range of the given resource
+     */
+    private Request range(final URL location, final Map<String, List<String>> headers,
+                          final long start, final long end, final String ifRange) {
+        final Request request = new Request(location, requestMethod, client);
+        request.proxy = proxy;
+        request.executor = executor;
+        request.bufferSize = bufferSize;
+        request.ignoreCloseExceptions = ignoreCloseExceptions;
+        final HttpURLConnection connection = request.getConnection();
+        connection.setConnectTimeout(getConnection().getConnectTimeout());
+        connection.setReadTimeout(getConnection().getReadTimeout());
+        if (connection instanceof HttpsURLConnection && getConnection() instanceof HttpsURLConnection) {
+            final HttpsURLConnection https = (HttpsURLConnection) getConnection();
+            ((HttpsURLConnection) connection).setSSLSocketFactory(https.getSSLSocketFactory());
+            ((HttpsURLConnection) connection).setHostnameVerifier(https.getHostnameVerifier());
+        }
+        for (Entry<String, List<String>> header : headers.entrySet())
+            if (header.getKey() != null)
+                for (String value : header.getValue())
+                    connection.addRequestProperty(header.getKey(), value);
+        request.header(HEADER_RANGE, "bytes=" + start + '-' + end);
+        if (ifRange != null)
+            request.header(HEADER_IF_RANGE, ifRange);
+        return request;
+    }
+
+    /**
+     * Receive the response to a range request into its region of the file
+     *
+     * @return number of bytes received
+     */
+    private long receiveRange(final FileChannel file, final long start, final long end) {
+        final String expected = "bytes " + start + '-' + end + '/';
+        final String range    = header(HEADER_CONTENT_RANGE);
+        if (code() != HTTP_PARTIAL || range == null || !range.startsWith(expected)) {
+            disconnect();
+            throw new RequestException(new IOException("Server did not return range "
+                    + start + '-' + end + " of " + url() + ", got " + code()
+                    + (range != null ? ' ' + range : "")));
+        }
+        try {
+            final long received = transfer(file, start, end - start + 1);
+            if (received < end - start + 1)
+                throw new EOFException("Expected " + (end - start + 1) + " bytes but received " + received);
+            return received;
+        } catch (IOException e) {
+            throw new RequestException(e);
+        }
+    }
+
+    /**
+     * Stream response body to file, continuing a previous download of it
+     * <p>
+     * While the body is received, the validator of the response (a strong
+     * ETag or else the Last-Modified date) is kept in a '.resume' file next
+     * to the target. When that file exists and the target is not empty, only
+     * the missing bytes are requested with 'Range: bytes=N-' and If-Range. A
+     * 206 response is appended, a 200 means the resource changed or ranges
+     * are not supported and the file is written again from the start. The
+     * '.resume' file is deleted once the body is complete.
+     * <p>
+     * The Range header has to be set before the request is sent, so call this
+     * before reading the response. Error responses leave the file untouched.
+     *
+     * @param file
+     * @return this request
+     * @throws RequestException
+     */
+    public Request receiveResumable(final File file) throws RequestException {
+        final File   state  = new File(file.getPath() + ".resume");
+        final long   offset = file.isFile() ? file.length() : 0;
+        final String stored = offset > 0 ? readValidator(state) : null;
+        if (stored != null) {
+            header(HEADER_RANGE, "bytes=" + offset + '-');
+            header(HEADER_IF_RANGE, stored);
+        }
+
+        final int    code  = code();
+        final String range = header(HEADER_CONTENT_RANGE);
+        if (stored != null && code == HTTP_RANGE_NOT_SATISFIABLE && ("bytes */" + offset).equals(range)) {
+            // Everything was received, only the cleanup was missed
+            disconnect();
+            state.delete();
+            return this;
+        }
+        final boolean append = stored != null && code == HTTP_PARTIAL;
+        if (append && (range == null || !range.startsWith("bytes " + offset + '-'))) {
+            disconnect();
+            throw new RequestException(new IOException("Server returned " + range
+                    + " instead of the range starting at " + offset + " of " + url()));
+        }
+        if (!append && code != HTTP_OK)
+            return this;
+
+        try {
+            if (!append) {
+                final String validator = validator();
+                if (validator != null && (contentEncoding() == null || "identity".equalsIgnoreCase(contentEncoding())))
+                    Files.write(state.toPath(), validator.getBytes(CHARSET_UTF8));
+                else
+                    Files.deleteIfExists(state.toPath());
+            }
+        } catch (IOException e) {
+            throw new RequestException(e);
+        }
+
+        final FileChannel channel;
+        try {
+            channel = append
+                    ? FileChannel.open(file.toPath(), StandardOpenOption.WRITE)
+                    : FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new RequestException(e);
+        }
+        return new CloseOperation<Request>(channel, ignoreCloseExceptions) {
+            @Override
+            protected Request run() throws RequestException, IOException {
+                final long length  = bodyLength();
+                final long written = transfer(channel, append ? offset : 0, -1);
+                if (length < 0 || written == length)
+                    Files.deleteIfExists(state.toPath());
+                return Request.this;
+            }
+        }.call();
+    }
+
+    /**
+     * Get the validator If-Range requests for this response should carry
+     *
+     * @return strong entity tag, last modified date or null if neither
+     */
+    private String validator() {
+        final String etag = eTag();
+        if (etag != null && !etag.startsWith("W/"))
+            return etag;
+        return header(HEADER_LAST_MODIFIED);
+    }
+
+    private static String readValidator(final File state) {
+        try {
+            final String validator = new String(Files.readAllBytes(state.toPath()), CHARSET_UTF8).trim();
+            return validator.isEmpty() ? null : validator;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the response body into the file starting at the given position
+     * <p>
+     * Bodies of a {@link Transport} are channels themselves and are read
+     * straight into the direct buffer of the file channel. The file must
+     * not be shorter than the position.
+     *
+     * @param file
+     * @param position
+     * @param count    maximum number of bytes to write or -1 for the whole body
+     * @return number of bytes written
+     * @throws IOException
+     */
+    private long transfer(final FileChannel file, final long position, final long count) throws IOException {
+        final InputStream input = stream();
+        return new CloseOperation<Long>(input, ignoreCloseExceptions) {
+
+            @Override
+            public Long run() throws IOException {
+                final ReadableByteChannel source = input instanceof ReadableByteChannel
+                        ? (ReadableByteChannel) input : Channels.newChannel(input);
+                long written = 0;
+                while (count < 0 || written < count) {
+                    final long chunk = count < 0 ? TRANSFER_SIZE : Math.min(TRANSFER_SIZE, count - written);
+                    final long read  = file.transferFrom(source, position + written, chunk);
+                    if (read <= 0)
+                        break;
+                    written += read;
+                    totalWritten += read;
+                    progress.onUpload(totalWritten, totalSize);
+                }
+                return written;
+            }
+        }.call();
+    }
+
+    /**
+     * Get the number of bytes {@link #stream()} will return
+     *
+     * @return length or -1 if unknown
+     */
+    private long bodyLength() {
+        // Reading a response header sends the request, the body must be complete
+        closeOutputQuietly();
+        // HEAD, 204 and 304 responses may announce a length they never send
+        if (isUncompressed() || !Http1Codec.hasBody(requestMethod, code()))
+            return -1;
+        return getConnection().getContentLengthLong();
+    }
+
+    /**
+     * Will {@link #stream()} uncompress the body?
+     *
+     * @return true if enabled and the encoding is supported
+     */
+    private boolean isUncompressed() {
+        return unCompress && InflatingInputStream.isSupported(contentEncoding());
+    }
+
     /**
      * Stream response to given output stream
      *
@@ -973,7 +1564,7 @@ public final class Request {
      */
     public Request receive(final OutputStream output) throws RequestException {
         try {
-            return copy(buffer(), output);
+            return copy(stream(), output);
         } catch (IOException e) {
             throw new RequestException(e);
         }
@@ -998,13 +1589,111 @@ public final class Request {
      * @throws RequestException
      */
     public Request receive(final Writer writer) throws RequestException {
-        final BufferedReader reader = bufferedReader();
-        return new CloseOperation<Request>(reader, ignoreCloseExceptions) {
-            @Override
-            public Request run() throws IOException {
-                return copy(reader, writer);
-            }
-        }.call();
+        return body(writer);
+    }
+
+    /**
+     * Set the {@link Executor} the asynchronous methods of this request run on
+     *
+     * @param executor
+     * @return this request
+     */
+    public Request executor(final Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Get the {@link Executor} the asynchronous methods of this request run
+     * on, falling back to the client's and then the global executor
+     *
+     * @return executor
+     */
+    public Executor executor() {
+        if (executor != null)
+            return executor;
+        if (client != null && client.executor() != null)
+            return client.executor();
+        if (EXECUTOR != null)
+            return EXECUTOR;
+        return DefaultExecutor.get();
+    }
+
+    /**
+     * Run the given operation against this request on its {@link #executor()}
+     * <p>
+     * A {@link RequestException} thrown by the operation completes the
+     * returned future exceptionally.
+     *
+     * @param operation
+     * @return future result of the operation
+     */
+    public <V> CompletableFuture<V> async(final Function<? super Request, V> operation) {
+        return CompletableFuture.supplyAsync(() -> operation.apply(this), executor());
+    }
+
+    /**
+     * Get the status code of the response asynchronously
+     *
+     * @return future response code
+     * @see #code()
+     */
+    public CompletableFuture<Integer> codeAsync() {
+        return async(Request::code);
+    }
+
+    /**
+     * Get response as {@link String} in given character set asynchronously
+     *
+     * @param charset
+     * @return future body
+     * @see #body(String)
+     */
+    public CompletableFuture<String> bodyAsync(final String charset) {
+        return async(request -> request.body(charset));
+    }
+
+    /**
+     * Get response as {@link String} using character set returned from
+     * {@link #charset()} asynchronously
+     *
+     * @return future body
+     * @see #body()
+     */
+    public CompletableFuture<String> bodyAsync() {
+        return async(Request::body);
+    }
+
+    /**
+     * Get response as byte array asynchronously
+     *
+     * @return future bytes
+     * @see #bytes()
+     */
+    public CompletableFuture<byte[]> bytesAsync() {
+        return async(Request::bytes);
+    }
+
+    /**
+     * Stream response body to file asynchronously
+     *
+     * @param file
+     * @return future completed with this request
+     * @see #receive(File)
+     */
+    public CompletableFuture<Request> receiveAsync(final File file) {
+        return async(request -> request.receive(file));
+    }
+
+    /**
+     * Stream response to given output stream asynchronously
+     *
+     * @param output
+     * @return future completed with this request
+     * @see #receive(OutputStream)
+     */
+    public CompletableFuture<Request> receiveAsync(final OutputStream output) {
+        return async(request -> request.receive(output));
     }
 
     /**
@@ -1549,6 +2238,7 @@ public final class Request {
      */
     public Request contentLength(final int contentLength) {
         getConnection().setFixedLengthStreamingMode(contentLength);
+        fixedLength = true;
         return this;
     }
 
@@ -1585,12 +2275,17 @@ public final class Request {
 
             @Override
             public Request run() throws IOException {
-                final byte[] buffer = new byte[bufferSize];
-                int          read;
-                while ((read = input.read(buffer)) != -1) {
-                    output.write(buffer, 0, read);
-                    totalWritten += read;
-                    progress.onUpload(totalWritten, totalSize);
+                final BufferPool pool   = BUFFER_POOL;
+                final byte[]     buffer = pool.bytes(bufferSize);
+                try {
+                    int read;
+                    while ((read = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, read);
+                        totalWritten += read;
+                        progress.onUpload(totalWritten, totalSize);
+                    }
+                } finally {
+                    pool.release(buffer);
                 }
                 return Request.this;
             }
@@ -1611,12 +2306,17 @@ public final class Request {
 
             @Override
             public Request run() throws IOException {
-                final char[] buffer = new char[bufferSize];
-                int          read;
-                while ((read = input.read(buffer)) != -1) {
-                    output.write(buffer, 0, read);
-                    totalWritten += read;
-                    progress.onUpload(totalWritten, -1);
+                final BufferPool pool   = BUFFER_POOL;
+                final char[]     buffer = pool.chars(bufferSize);
+                try {
+                    int read;
+                    while ((read = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, read);
+                        totalWritten += read;
+                        progress.onUpload(totalWritten, -1);
+                    }
+                } finally {
+                    pool.release(buffer);
                 }
                 return Request.this;
             }
@@ -1696,8 +2396,15 @@ public final class Request {
         getConnection().setDoOutput(true);
         final String charset = getParam(
                 getConnection().getRequestProperty(HEADER_CONTENT_TYPE), PARAM_CHARSET);
-        output = new RequestOutputStream(getConnection().getOutputStream(), charset,
-                bufferSize);
+        if (compressThreshold >= 0 && !fixedLength)
+            output = new RequestOutputStream(gzip -> {
+                if (gzip)
+                    header(HEADER_CONTENT_ENCODING, ENCODING_GZIP);
+                return getConnection().getOutputStream();
+            }, charset, bufferSize, BUFFER_POOL, compressThreshold, compressLevel);
+        else
+            output = new RequestOutputStream(getConnection().getOutputStream(), charset,
+                    bufferSize, BUFFER_POOL);
         return this;
     }
 
@@ -1865,14 +2572,13 @@ public final class Request {
      */
     public Request part(final String name, final String filename,
                         final String contentType, final File part) throws RequestException {
-        final InputStream stream;
         try {
-            stream = new BufferedInputStream(new FileInputStream(part));
-            incrementTotalSize(part.length());
+            startPart();
+            writePartHeader(name, filename, contentType);
+            return sendFile(part);
         } catch (IOException e) {
             throw new RequestException(e);
         }
-        return part(name, filename, contentType, stream);
     }
 
     /**
@@ -1932,14 +2638,38 @@ public final class Request {
      * @throws RequestException
      */
     public Request send(final File input) throws RequestException {
-        final InputStream stream;
         try {
-            stream = new BufferedInputStream(new FileInputStream(input));
-            incrementTotalSize(input.length());
-        } catch (FileNotFoundException e) {
+            openOutput();
+            return sendFile(input);
+        } catch (IOException e) {
             throw new RequestException(e);
         }
-        return send(stream);
+    }
+
+    /**
+     * Write contents of file to the open output
+     * <p>
+     * Connections created by a {@link TransportConnectionFactory} only keep a
+     * reference to the file and the transport sends it with
+     * {@link java.nio.channels.FileChannel#transferTo}, any other connection
+     * gets the file copied through the output stream. Upload progress is
+     * reported either way.
+     *
+     * @param input
+     * @return this request
+     * @throws IOException
+     */
+    private Request sendFile(final File input) throws IOException {
+        if (!input.isFile() || !input.canRead())
+            throw new FileNotFoundException(input.getPath());
+        incrementTotalSize(input.length());
+        final UploadProgress callback = progress;
+        if (output.transfer(input, sent -> {
+            totalWritten += sent;
+            callback.onUpload(totalWritten, totalSize);
+        }))
+            return this;
+        return copy(new BufferedInputStream(new FileInputStream(input)), output);
     }
 
     /**
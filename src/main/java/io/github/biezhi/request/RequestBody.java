@@ -0,0 +1,239 @@
+package io.github.biezhi.request;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Request body captured by a {@link TransportConnection} so that a
+ * {@link Transport} can write it out, possibly more than once.
+ * <p>
+ * A body is a sequence of byte segments and file regions. File regions are
+ * not read into memory; transports that own their sockets hand them to
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} so the
+ * kernel copies them straight from the page cache, sendfile on Linux.
+ */
+public final class RequestBody {
+
+    /**
+     * Empty body
+     */
+    public static final RequestBody EMPTY = new RequestBody(Collections.<Segment>emptyList());
+
+    private final List<Segment> segments;
+
+    private final long length;
+
+    private RequestBody(final List<Segment> segments) {
+        this.segments = segments;
+        long length = 0;
+        for (Segment segment : segments)
+            length += segment.length();
+        this.length = length;
+    }
+
+    /**
+     * Create body backed by the given bytes
+     * <p>
+     * The array is not copied and must not be modified afterwards.
+     *
+     * @param data
+     * @return body
+     */
+    public static RequestBody of(final byte[] data) {
+        return of(data, data.length);
+    }
+
+    /**
+     * Create body backed by the first length bytes of the given array
+     *
+     * @param data
+     * @param length
+     * @return body
+     */
+    public static RequestBody of(final byte[] data, final int length) {
+        return new RequestBody(Collections.singletonList(Segment.bytes(data, 0, length)));
+    }
+
+    /**
+     * Create body streaming the given file
+     *
+     * @param file
+     * @return body
+     */
+    public static RequestBody of(final File file) {
+        return new RequestBody(Collections.singletonList(Segment.file(file, 0, file.length(), null)));
+    }
+
+    static RequestBody of(final List<Segment> segments) {
+        return new RequestBody(Collections.unmodifiableList(new ArrayList<>(segments)));
+    }
+
+    /**
+     * Part of a body: either bytes in memory or a region of a file
+     */
+    static final class Segment {
+
+        private final byte[] data;
+
+        private final int offset;
+
+        private final File file;
+
+        private final long position;
+
+        private final long length;
+
+        private final LongConsumer progress;
+
+        private Segment(final byte[] data, final int offset, final File file, final long position,
+                        final long length, final LongConsumer progress) {
+            this.data = data;
+            this.offset = offset;
+            this.file = file;
+            this.position = position;
+            this.length = length;
+            this.progress = progress;
+        }
+
+        static Segment bytes(final byte[] data, final int offset, final int length) {
+            return new Segment(data, offset, null, 0, length, null);
+        }
+
+        /**
+         * @param file
+         * @param position
+         * @param length
+         * @param progress notified of the number of bytes sent after each
+         *                 transfer, may be null
+         * @return segment
+         */
+        static Segment file(final File file, final long position, final long length, final LongConsumer progress) {
+            return new Segment(null, 0, file, position, length, progress);
+        }
+
+        boolean isFile() {
+            return file != null;
+        }
+
+        long length() {
+            return length;
+        }
+
+        long position() {
+            return position;
+        }
+
+        /**
+         * @return read-only view of the bytes of a byte segment
+         */
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(data, offset, (int) length).asReadOnlyBuffer();
+        }
+
+        /**
+         * @return new channel to the file of a file segment
+         * @throws IOException
+         */
+        FileChannel open() throws IOException {
+            return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        void progress(final long sent) {
+            if (progress != null)
+                progress.accept(sent);
+        }
+    }
+
+    /**
+     * Get the number of bytes in this body
+     *
+     * @return length
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Does this body contain file regions?
+     *
+     * @return true if any segment is read from a file
+     */
+    public boolean hasFiles() {
+        for (Segment segment : segments)
+            if (segment.isFile())
+                return true;
+        return false;
+    }
+
+    List<Segment> segments() {
+        return segments;
+    }
+
+    /**
+     * Get a fresh read-only view of this body for channel writes
+     * <p>
+     * File regions are read into memory, transports should write them with
+     * {@link FileChannel#transferTo} instead.
+     *
+     * @return buffers
+     * @throws IOException
+     */
+    public ByteBuffer[] buffers() throws IOException {
+        final ByteBuffer[] buffers = new ByteBuffer[segments.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            final Segment segment = segments.get(i);
+            if (!segment.isFile()) {
+                buffers[i] = segment.buffer();
+                continue;
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate((int) segment.length);
+            try (FileChannel channel = segment.open()) {
+                while (buffer.hasRemaining())
+                    if (channel.read(buffer, segment.position + buffer.position()) == -1)
+                        throw new IOException("File " + segment.file + " is shorter than expected");
+            }
+            buffer.flip();
+            buffers[i] = buffer;
+        }
+        return buffers;
+    }
+
+    /**
+     * Write this body to the given stream
+     *
+     * @param output
+     * @throws IOException
+     */
+    public void writeTo(final OutputStream output) throws IOException {
+        for (Segment segment : segments) {
+            if (!segment.isFile()) {
+                output.write(segment.data, segment.offset, (int) segment.length);
+                continue;
+            }
+            final WritableByteChannel target = Channels.newChannel(output);
+            try (FileChannel channel = segment.open()) {
+                long position  = segment.position;
+                long remaining = segment.length;
+                while (remaining > 0) {
+                    final long sent = channel.transferTo(position, remaining, target);
+                    if (sent <= 0)
+                        throw new IOException("File " + segment.file + " is shorter than expected");
+                    position += sent;
+                    remaining -= sent;
+                    segment.progress(sent);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,332 @@
+package io.github.biezhi.request;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static io.github.biezhi.request.Const.*;
+import static io.github.biezhi.request.Utils.append;
+import static io.github.biezhi.request.Utils.encode;
+
+/**
+ * A client that owns its own {@link ConnectionPool} and selector threads.
+ * <p>
+ * {@link Request Requests} created from a client are served by its
+ * {@link NioTransport} instead of the JVM wide keep-alive cache of
+ * {@link java.net.HttpURLConnection}, so several clients can be sized and
+ * isolated independently in one process:
+ * <pre>
+ * RequestClient client = new RequestClient(new ConnectionPool().maxPerHost(8));
+ * String body = client.get("http://xxxx.com").body();
+ * client.close();
+ * </pre>
+ * Requests to URLs the transport does not support, such as 'https', fall
+ * back to {@link ConnectionFactory#DEFAULT}. Any other {@link Transport},
+ * such as {@link Http2Transport}, can be used instead of the default one.
+ */
+public class RequestClient implements Closeable {
+
+    private final ConnectionPool pool;
+
+    private final Transport transport;
+
+    private final ConnectionFactory connectionFactory;
+
+    private volatile Executor executor;
+
+    /**
+     * Create client with a default connection pool
+     */
+    public RequestClient() {
+        this(new ConnectionPool());
+    }
+
+    /**
+     * Create client using the given connection pool
+     *
+     * @param pool
+     */
+    public RequestClient(final ConnectionPool pool) {
+        this(pool, NioTransport.defaultThreads());
+    }
+
+    /**
+     * Create client using the given connection pool and number of selector
+     * threads
+     *
+     * @param pool
+     * @param ioThreads
+     */
+    public RequestClient(final ConnectionPool pool, final int ioThreads) {
+        this(new NioTransport(ioThreads, pool));
+    }
+
+    /**
+     * Create client using the given transport, which is closed with the
+     * client
+     *
+     * @param transport
+     */
+    public RequestClient(final Transport transport) {
+        if (transport == null)
+            throw new IllegalArgumentException("Transport must not be null");
+        final Transport base = ForwardingTransport.unwrap(transport);
+        this.pool = base instanceof NioTransport ? ((NioTransport) base).pool() : null;
+        this.transport = transport;
+        this.connectionFactory = new TransportConnectionFactory(transport);
+    }
+
+    /**
+     * Get the connection pool of this client
+     *
+     * @return pool or null if the transport does not use a {@link ConnectionPool}
+     */
+    public ConnectionPool pool() {
+        return pool;
+    }
+
+    /**
+     * Get the {@link ConnectionFactory} used by requests of this client
+     *
+     * @return connection factory
+     */
+    public ConnectionFactory connectionFactory() {
+        return connectionFactory;
+    }
+
+    /**
+     * Set the {@link Executor} asynchronous requests of this client run on
+     *
+     * @param executor executor or null to use the global one
+     * @return this client
+     * @see Request#setExecutor(Executor)
+     */
+    public RequestClient executor(final Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Get the {@link Executor} asynchronous requests of this client run on
+     *
+     * @return executor or null if none configured
+     */
+    public Executor executor() {
+        return executor;
+    }
+
+    /**
+     * Start a request with the given method to the given URL
+     *
+     * @param url
+     * @param method
+     * @return request
+     * @throws RequestException
+     */
+    public Request request(final CharSequence url, final String method) throws RequestException {
+        return new Request(url, method, this);
+    }
+
+    /**
+     * Start a request with the given method to the given URL
+     *
+     * @param url
+     * @param method
+     * @return request
+     * @throws RequestException
+     */
+    public Request request(final URL url, final String method) throws RequestException {
+        return new Request(url, method, this);
+    }
+
+    /**
+     * Start a 'GET' request to the given URL
+     *
+     * @param url
+     * @return request
+     * @throws RequestException
+     */
+    public Request get(final CharSequence url) throws RequestException {
+        return request(url, METHOD_GET);
+    }
+
+    /**
+     * Start a 'GET' request to the given URL
+     *
+     * @param url
+     * @return request
+     * @throws RequestException
+     */
+    public Request get(final URL url) throws RequestException {
+        return request(url, METHOD_GET);
+    }
+
+    /**
+     * Start a 'GET' request to the given URL along with the query params
+     *
+     * @param baseUrl
+     * @param params  The query parameters to include as part of the baseUrl
+     * @param encode  true to encode the full URL
+     * @return request
+     */
+    public Request get(final CharSequence baseUrl, final Map<?, ?> params, final boolean encode) {
+        final String url = append(baseUrl, params);
+        return get(encode ? encode(url) : url);
+    }
+
+    /**
+     * Start a 'POST' request to the given URL
+     *
+     * @param url
+     * @return request
+     * @throws RequestException
+     */
+    public Request post(final CharSequence url) throws RequestException {
+        return request(url, METHOD_POST);
+    }
+
+    /**
+     * Start a 'POST' request to the given URL
+     *
+     * @param url
+     * @return request
+     * @throws RequestException
+     */
+    public Request post(final URL url) throws RequestException {
+        return request(url, METHOD_POST);
+    }
+
+    /**
+     * Start a 'PUT' request to the given URL
+     *
+     * @param url
+     * @return request
+     * @throws RequestException
+     */
+    public Request put(final CharSequence url) throws RequestException {
+        return request(url, METHOD_PUT);
+    }
+
+    /**
+     * Start a 'PUT' request to the given URL
+     *
+     * @param url
+     * @return request
+     * @throws RequestException
+     */
+    public Request put(final URL url) throws RequestException {
+        return request(url, METHOD_PUT);
+    }
+
+    /**
+     * Start a 'DELETE' request to the given URL
+     *
+     * @param url
+     * @return request
+     * @throws RequestException
+     */
+    public Request delete(final CharSequence url) throws RequestException {
+        return request(url, METHOD_DELETE);
+    }
+
+    /**
+     * Start a 'DELETE' request to the given URL
+     *
+     * @param url
+     * @return request
+     * @throws RequestException
+     */
+    public Request delete(final URL url) throws RequestException {
+        return request(url, METHOD_DELETE);
+    }
+
+    /**
+     * Start a 'HEAD' request to the given URL
+     *
+     * @param url
+     * @return request
+     * @throws RequestException
+     */
+    public Request head(final CharSequence url) throws RequestException {
+        return request(url, METHOD_HEAD);
+    }
+
+    /**
+     * Start a 'HEAD' request to the given URL
+     *
+     * @param url
+     * @return request
+     * @throws RequestException
+     */
+    public Request head(final URL url) throws RequestException {
+        return request(url, METHOD_HEAD);
+    }
+
+    /**
+     * Start an 'OPTIONS' request to the given URL
+     *
+     * @param url
+     * @return request
+     * @throws RequestException
+     */
+    public Request options(final CharSequence url) throws RequestException {
+        return request(url, METHOD_OPTIONS);
+    }
+
+    /**
+     * Start a 'TRACE' request to the given URL
+     *
+     * @param url
+     * @return request
+     * @throws RequestException
+     */
+    public Request trace(final CharSequence url) throws RequestException {
+        return request(url, METHOD_TRACE);
+    }
+
+    /**
+     * Set the {@link Resolver} host names are resolved with, such as a
+     * {@link CachingResolver}
+     *
+     * @param resolver
+     * @return this client
+     * @throws IllegalStateException if the transport does not resolve names
+     */
+    public RequestClient resolver(final Resolver resolver) {
+        final Transport base = ForwardingTransport.unwrap(transport);
+        if (base instanceof NioTransport)
+            ((NioTransport) base).resolver(resolver);
+        else if (base instanceof Http2Transport)
+            ((Http2Transport) base).resolver(resolver);
+        else
+            throw new IllegalStateException("Transport does not support a resolver: " + transport);
+        return this;
+    }
+
+    /**
+     * Get the transport requests of this client are served by
+     *
+     * @return transport
+     */
+    public Transport transport() {
+        return transport;
+    }
+
+    /**
+     * Close the transport of this client, which closes its connections and
+     * stops its selector threads
+     */
+    @Override
+    public void close() {
+        if (!(transport instanceof Closeable))
+            return;
+        try {
+            ((Closeable) transport).close();
+        } catch (IOException ignored) {
+            // Ignored
+        }
+    }
+
+}
@@ -1,32 +1,212 @@
 package io.github.biezhi.request;
 
-import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import static io.github.biezhi.request.Const.CHARSET_UTF8;
 
 /**
  * Request output stream
+ * <p>
+ * Writes are buffered in an array taken from a {@link BufferPool} and given
+ * back when the stream is closed.
+ * <p>
+ * A compressing stream holds back the body until its first buffer is full
+ * or it is closed. A body smaller than the threshold, or whose first buffer
+ * does not compress to {@link #MAX_RATIO} of its size, is sent as is.
+ * Otherwise it is gzipped, and every {@link #WINDOW} bytes the ratio is
+ * checked again: incompressible stretches, such as a zip file in a
+ * multipart body, are stored without compression until a later probe finds
+ * the data compressible again.
  */
-class RequestOutputStream extends BufferedOutputStream {
+class RequestOutputStream extends FilterOutputStream {
+
+    /**
+     * Opens the connection's output once the body's encoding is known
+     */
+    interface Opener {
+
+        /**
+         * @param gzip whether the body will be gzipped
+         * @return connection output
+         * @throws IOException
+         */
+        OutputStream open(boolean gzip) throws IOException;
+    }
+
+    /**
+     * Largest compressed to uncompressed size ratio worth compressing for
+     */
+    static final double MAX_RATIO = 0.9;
+
+    /**
+     * Number of bytes between checks of the compression ratio
+     */
+    static final int WINDOW = 64 * 1024;
+
+    /**
+     * Number of stored windows before compression is tried again
+     */
+    private static final int PROBE_INTERVAL = 4;
 
     private final CharsetEncoder encoder;
 
+    private final BufferPool pool;
+
+    private byte[] buf;
+
+    private int count;
+
+    private Opener opener;
+
+    private int threshold;
+
+    private int level;
+
+    private Deflater deflater;
+
     /**
      * Create request output stream
      *
      * @param stream
      * @param charset
      * @param bufferSize
+     * @param pool
      */
-    RequestOutputStream(final OutputStream stream, final String charset, final int bufferSize) {
-        super(stream, bufferSize);
+    RequestOutputStream(final OutputStream stream, final String charset, final int bufferSize,
+                        final BufferPool pool) {
+        super(stream);
         encoder = Charset.forName(getValidCharset(charset)).newEncoder();
+        this.pool = pool;
+        this.buf = pool.bytes(bufferSize);
+    }
+
+    /**
+     * Create request output stream that gzips bodies of at least the given
+     * size when they compress well
+     *
+     * @param opener     opens the connection's output
+     * @param charset
+     * @param bufferSize
+     * @param pool
+     * @param threshold  minimum body size to compress
+     * @param level      {@link Deflater} compression level
+     */
+    RequestOutputStream(final Opener opener, final String charset, final int bufferSize,
+                        final BufferPool pool, final int threshold, final int level) {
+        this(null, charset, Math.max(bufferSize, threshold), pool);
+        this.opener = opener;
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (count == buf.length)
+            flushBuffer();
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (opener != null && len >= buf.length - count) {
+            // Fill the buffer so the encoding is decided on as much as possible
+            final int part = buf.length - count;
+            System.arraycopy(b, off, buf, count, part);
+            count += part;
+            flushBuffer();
+            write(b, off + part, len - part);
+            return;
+        }
+        if (len >= buf.length) {
+            flushBuffer();
+            out.write(b, off, len);
+            return;
+        }
+        if (len > buf.length - count)
+            flushBuffer();
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (opener != null)
+            start();
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Decide on the encoding from the buffered start of the body and open
+     * the connection's output
+     */
+    private void start() throws IOException {
+        final Opener opener = this.opener;
+        this.opener = null;
+        final boolean gzip = count > 0 && count >= threshold && isCompressible();
+        final OutputStream stream = opener.open(gzip);
+        if (gzip)
+            out = new GzipOutputStream(stream, deflater, level, pool, buf.length);
+        else
+            out = stream;
+    }
+
+    private boolean isCompressible() {
+        deflater = new Deflater(level, true);
+        deflater.setInput(buf, 0, count);
+        deflater.finish();
+        final byte[] sample = pool.bytes(buf.length);
+        final long   limit  = (long) (count * MAX_RATIO);
+        try {
+            while (!deflater.finished() && deflater.getBytesWritten() <= limit)
+                deflater.deflate(sample);
+            return deflater.getBytesWritten() <= limit;
+        } finally {
+            pool.release(sample);
+            deflater.reset();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Keep holding back the body until its encoding is decided
+        if (opener != null)
+            return;
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buf == null)
+            return;
+        try {
+            flushBuffer();
+            out.flush();
+        } finally {
+            final byte[] buffer = buf;
+            buf = null;
+            pool.release(buffer);
+            try {
+                if (out != null)
+                    out.close();
+            } finally {
+                if (deflater != null)
+                    deflater.end();
+            }
+        }
     }
 
     /**
@@ -38,11 +218,28 @@ class RequestOutputStream extends BufferedOutputStream {
      */
     RequestOutputStream write(final String value) throws IOException {
         final ByteBuffer bytes = encoder.encode(CharBuffer.wrap(value));
-        super.write(bytes.array(), 0, bytes.limit());
+        write(bytes.array(), 0, bytes.limit());
 
         return this;
     }
 
+    /**
+     * Append a file to the request body without copying it through this
+     * stream, if the underlying connection supports it
+     *
+     * @param file
+     * @param progress notified of the bytes sent
+     * @return true if appended, false if the file must be copied instead
+     * @throws IOException
+     */
+    boolean transfer(final File file, final LongConsumer progress) throws IOException {
+        if (opener != null || !(out instanceof TransportConnection.BodyOutputStream))
+            return false;
+        flush();
+        ((TransportConnection.BodyOutputStream) out).file(file, progress);
+        return true;
+    }
+
     private static String getValidCharset(final String charset) {
         if (charset != null && charset.length() > 0)
             return charset;
@@ -53,4 +250,80 @@ class RequestOutputStream extends BufferedOutputStream {
     CharsetEncoder getEncoder() {
         return encoder;
     }
+
+    /**
+     * Writes the gzip format with the given raw deflater, storing windows of
+     * data that do not compress
+     */
+    private static final class GzipOutputStream extends DeflaterOutputStream {
+
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final CRC32 crc = new CRC32();
+
+        private final BufferPool pool;
+
+        private final int level;
+
+        private long windowRead;
+
+        private long windowWritten;
+
+        private int storedWindows;
+
+        private boolean finished;
+
+        private GzipOutputStream(final OutputStream out, final Deflater deflater, final int level,
+                                 final BufferPool pool, final int bufferSize) throws IOException {
+            super(out, deflater, 1);
+            this.buf = pool.bytes(bufferSize);
+            this.pool = pool;
+            this.level = level;
+            out.write(HEADER);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            super.write(b, off, len);
+            crc.update(b, off, len);
+            final long read = def.getBytesRead();
+            if (read - windowRead < WINDOW)
+                return;
+            final long written = def.getBytesWritten();
+            if (storedWindows > 0) {
+                if (++storedWindows > PROBE_INTERVAL) {
+                    storedWindows = 0;
+                    def.setLevel(level);
+                }
+            } else if (written - windowWritten > (read - windowRead) * MAX_RATIO) {
+                storedWindows = 1;
+                def.setLevel(Deflater.NO_COMPRESSION);
+            }
+            windowRead = read;
+            windowWritten = written;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (finished)
+                return;
+            finished = true;
+            super.finish();
+            final long value = crc.getValue();
+            final long size  = def.getBytesRead();
+            out.write(new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24),
+                    (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)});
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                final byte[] buffer = buf;
+                buf = new byte[0];
+                pool.release(buffer);
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,30 @@
+package io.github.biezhi.request;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Resolves host names to {@link InetAddress addresses} for transports that
+ * open their own connections, such as {@link NioTransport} and
+ * {@link Http2Transport}.
+ */
+public interface Resolver {
+
+    /**
+     * Resolve the given host name
+     *
+     * @param host
+     * @return addresses in the order they should be tried, never empty
+     * @throws UnknownHostException
+     */
+    List<InetAddress> resolve(String host) throws UnknownHostException;
+
+    /**
+     * A {@link Resolver} which uses the built-in
+     * {@link InetAddress#getAllByName(String)} and the JVM's address cache
+     */
+    Resolver SYSTEM = host -> Arrays.asList(InetAddress.getAllByName(host));
+
+}
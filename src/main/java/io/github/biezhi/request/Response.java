@@ -0,0 +1,85 @@
+package io.github.biezhi.request;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response returned from a {@link Transport}: status, headers and a stream
+ * to the body.
+ * <p>
+ * The body stream must be closed, either directly or through
+ * {@link #close()}, so the transport can release the underlying connection.
+ */
+public class Response implements Closeable {
+
+    private final String protocol;
+
+    private final int code;
+
+    private final String message;
+
+    private final Headers headers;
+
+    private final InputStream body;
+
+    /**
+     * Create response
+     *
+     * @param protocol protocol version such as 'HTTP/1.1'
+     * @param code
+     * @param message
+     * @param headers
+     * @param body     body stream or null if there is no body
+     */
+    public Response(final String protocol, final int code, final String message,
+                    final Headers headers, final InputStream body) {
+        this.protocol = protocol;
+        this.code = code;
+        this.message = message;
+        this.headers = headers != null ? headers : new Headers();
+        this.body = body != null ? body : new ByteArrayInputStream(new byte[0]);
+    }
+
+    public String protocol() {
+        return protocol;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    public String message() {
+        return message;
+    }
+
+    public Headers headers() {
+        return headers;
+    }
+
+    public String header(final String name) {
+        return headers.get(name);
+    }
+
+    public InputStream body() {
+        return body;
+    }
+
+    /**
+     * Get the status line of this response, e.g. 'HTTP/1.1 200 OK'
+     *
+     * @return status line
+     */
+    public String statusLine() {
+        if (message == null || message.isEmpty())
+            return protocol + ' ' + code;
+        return protocol + ' ' + code + ' ' + message;
+    }
+
+    @Override
+    public void close() throws IOException {
+        body.close();
+    }
+
+}
@@ -0,0 +1,271 @@
+package io.github.biezhi.request;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static io.github.biezhi.request.Const.*;
+
+/**
+ * Decides which failed calls a {@link RetryTransport} sends again and how
+ * long it waits in between.
+ * <p>
+ * By default calls are attempted up to 3 times when the connection fails,
+ * is reset or times out, or when the server answers 429, 502, 503 or 504.
+ * Waits grow exponentially from 100 milliseconds up to 10 seconds with full
+ * jitter, each one a random duration up to the exponential bound, and a
+ * 'Retry-After' header is honored when it asks for no more than the
+ * maximum wait.
+ * <p>
+ * Only idempotent methods are retried, along with calls carrying an
+ * 'Idempotency-Key' header. Other calls are only retried when the
+ * connection could not be opened, as the server cannot have seen them.
+ * Retries are limited by a budget: every call earns a fraction of a retry
+ * and every retry spends a whole one, so retries stay a bounded share of
+ * the traffic when a server is struggling:
+ * <pre>
+ * RetryPolicy policy = new RetryPolicy()
+ *         .maxAttempts(4)
+ *         .backoff(50, 2000, TimeUnit.MILLISECONDS)
+ *         .budget(0.1, 20);
+ * RequestClient client = new RequestClient(new RetryTransport(new NioTransport(), policy));
+ * </pre>
+ */
+public class RetryPolicy {
+
+    private static final Set<String> IDEMPOTENT = new HashSet<>(Arrays.asList(
+            METHOD_GET, METHOD_HEAD, METHOD_OPTIONS, METHOD_TRACE, METHOD_PUT, METHOD_DELETE));
+
+    private volatile int maxAttempts = 3;
+
+    private volatile Class<?>[] exceptions = {
+            SocketException.class, SocketTimeoutException.class, EOFException.class};
+
+    private volatile int[] codes = {429, 502, 503, 504};
+
+    private volatile long baseDelay = 100;
+
+    private volatile long maxDelay = 10000;
+
+    private volatile boolean retryAfter = true;
+
+    private volatile boolean retryNonIdempotent;
+
+    private volatile double budgetRatio = 0.2;
+
+    private volatile int budgetReserve = 10;
+
+    /**
+     * Set the number of times a call is sent at most, including the first
+     * attempt
+     *
+     * @param maxAttempts
+     * @return this policy
+     */
+    public RetryPolicy maxAttempts(final int maxAttempts) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("Max attempts must be greater than zero");
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * @return maximum number of attempts
+     */
+    public int maxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Set the exceptions, and their subclasses, that are retried
+     *
+     * @param exceptions
+     * @return this policy
+     */
+    @SafeVarargs
+    public final RetryPolicy retryOn(final Class<? extends IOException>... exceptions) {
+        this.exceptions = exceptions.clone();
+        return this;
+    }
+
+    /**
+     * Set the response status codes that are retried
+     *
+     * @param codes
+     * @return this policy
+     */
+    public RetryPolicy retryOnStatus(final int... codes) {
+        this.codes = codes.clone();
+        return this;
+    }
+
+    /**
+     * Set the bounds of the exponential backoff between attempts
+     *
+     * @param base bound of the first wait
+     * @param max  bound of every wait
+     * @param unit
+     * @return this policy
+     */
+    public RetryPolicy backoff(final long base, final long max, final TimeUnit unit) {
+        if (base < 0 || max < base)
+            throw new IllegalArgumentException("Backoff must satisfy 0 <= base <= max");
+        this.baseDelay = unit.toMillis(base);
+        this.maxDelay = unit.toMillis(max);
+        return this;
+    }
+
+    /**
+     * Set whether a 'Retry-After' header sets the wait before the next
+     * attempt. Responses asking for more than the maximum wait are returned
+     * rather than retried.
+     *
+     * @param retryAfter
+     * @return this policy
+     */
+    public RetryPolicy retryAfter(final boolean retryAfter) {
+        this.retryAfter = retryAfter;
+        return this;
+    }
+
+    /**
+     * Set whether calls with non-idempotent methods such as 'POST' are
+     * retried like idempotent ones
+     *
+     * @param retryNonIdempotent
+     * @return this policy
+     */
+    public RetryPolicy retryNonIdempotent(final boolean retryNonIdempotent) {
+        this.retryNonIdempotent = retryNonIdempotent;
+        return this;
+    }
+
+    /**
+     * Set the retry budget: each call adds the given ratio of a retry to
+     * the budget, up to the reserve, and each retry takes one. The budget
+     * starts full.
+     *
+     * @param ratio   retries allowed per call, e.g. 0.2 for 20%
+     * @param reserve retries that can be spent at once
+     * @return this policy
+     */
+    public RetryPolicy budget(final double ratio, final int reserve) {
+        if (ratio < 0 || reserve < 0)
+            throw new IllegalArgumentException("Budget must not be negative");
+        this.budgetRatio = ratio;
+        this.budgetReserve = reserve;
+        return this;
+    }
+
+    double budgetRatio() {
+        return budgetRatio;
+    }
+
+    int budgetReserve() {
+        return budgetReserve;
+    }
+
+    /**
+     * Can the given call be retried after its response or whatever failure?
+     *
+     * @param call
+     * @return true if idempotent or non-idempotent calls are retried
+     */
+    boolean mayRetry(final Call call) {
+        return retryNonIdempotent || isIdempotent(call);
+    }
+
+    /**
+     * Is the given call idempotent, by its method or an 'Idempotency-Key'
+     * header?
+     *
+     * @param call
+     * @return true if idempotent
+     */
+    static boolean isIdempotent(final Call call) {
+        return IDEMPOTENT.contains(call.method()) || call.header(HEADER_IDEMPOTENCY_KEY) != null;
+    }
+
+    /**
+     * Should the given failure of the given call be retried?
+     *
+     * @param call
+     * @param failure
+     * @return true to retry
+     */
+    boolean retries(final Call call, final IOException failure) {
+        // Refused connections never reached the server
+        if (!mayRetry(call) && !(failure instanceof ConnectException)
+                && !(failure instanceof NoRouteToHostException))
+            return false;
+        for (Class<?> type : exceptions)
+            if (type.isInstance(failure))
+                return true;
+        return false;
+    }
+
+    /**
+     * Should the given response status of the given call be retried?
+     *
+     * @param call
+     * @param code
+     * @return true to retry
+     */
+    boolean retries(final Call call, final int code) {
+        if (!mayRetry(call))
+            return false;
+        for (int retried : codes)
+            if (retried == code)
+                return true;
+        return false;
+    }
+
+    /**
+     * Get the wait before the given retry
+     *
+     * @param retry      number of the retry, starting at 1
+     * @param retryAfter value of the 'Retry-After' header or null if none
+     * @return wait in milliseconds or -1 if the server asked for longer than
+     * the maximum wait
+     */
+    long delay(final int retry, final String retryAfter) {
+        if (retryAfter != null && this.retryAfter) {
+            final long after = retryAfter(retryAfter);
+            if (after > maxDelay)
+                return -1;
+            if (after >= 0)
+                return after;
+        }
+        final long bound = Math.min(maxDelay, baseDelay << Math.min(retry - 1, 30));
+        return bound > 0 ? ThreadLocalRandom.current().nextLong(bound + 1) : 0;
+    }
+
+    /**
+     * Parse a 'Retry-After' header, either seconds or an HTTP date
+     *
+     * @return milliseconds or -1 if invalid
+     */
+    private static long retryAfter(final String value) {
+        final long seconds = CacheControl.seconds(value.trim(), -1);
+        if (seconds >= 0)
+            return Math.min(seconds, Long.MAX_VALUE / 1000) * 1000;
+        final long date = CacheEntry.time(value);
+        return date > 0 ? Math.max(0, date - System.currentTimeMillis()) : -1;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{maxAttempts=" + maxAttempts + ", codes=" + Arrays.toString(codes)
+                + ", baseDelay=" + baseDelay + ", maxDelay=" + maxDelay + ", budgetRatio=" + budgetRatio
+                + ", budgetReserve=" + budgetReserve + '}';
+    }
+
+}
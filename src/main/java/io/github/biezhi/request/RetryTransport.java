@@ -0,0 +1,117 @@
+package io.github.biezhi.request;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.github.biezhi.request.Const.HEADER_RETRY_AFTER;
+
+/**
+ * {@link Transport} that sends failed calls again as decided by a
+ * {@link RetryPolicy}.
+ * <p>
+ * Request bodies are captured as a {@link RequestBody} before the first
+ * attempt, including files sent with {@link Request#send(java.io.File)}
+ * which are read again from the start, so every attempt sends the whole
+ * body. The response of the last attempt is returned, or its failure
+ * thrown, once the attempts or the retry budget run out.
+ */
+public class RetryTransport extends ForwardingTransport {
+
+    private final RetryPolicy policy;
+
+    private final Budget budget;
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Create transport retrying calls to the given transport with the given
+     * policy
+     *
+     * @param delegate
+     * @param policy
+     */
+    public RetryTransport(final Transport delegate, final RetryPolicy policy) {
+        super(delegate);
+        if (policy == null)
+            throw new IllegalArgumentException("Policy must not be null");
+        this.policy = policy;
+        this.budget = new Budget(policy.budgetReserve());
+    }
+
+    /**
+     * @return policy of this transport
+     */
+    public RetryPolicy policy() {
+        return policy;
+    }
+
+    /**
+     * @return number of retries sent
+     */
+    public long retries() {
+        return retries.get();
+    }
+
+    /**
+     * @return number of retries not sent as the retry budget was spent
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public Response execute(final Call call) throws IOException {
+        deposit();
+        for (int attempt = 1; ; attempt++) {
+            final Response response;
+            try {
+                response = super.execute(call);
+            } catch (IOException e) {
+                if (attempt >= policy.maxAttempts() || !policy.retries(call, e) || !withdraw())
+                    throw e;
+                sleep(policy.delay(attempt, null));
+                continue;
+            }
+            if (attempt >= policy.maxAttempts() || !policy.retries(call, response.code()))
+                return response;
+            final long delay = policy.delay(attempt, response.header(HEADER_RETRY_AFTER));
+            if (delay < 0 || !withdraw())
+                return response;
+            response.close();
+            sleep(delay);
+        }
+    }
+
+    private void deposit() {
+        budget.deposit(policy.budgetRatio(), policy.budgetReserve());
+    }
+
+    private boolean withdraw() {
+        if (!budget.withdraw()) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        retries.incrementAndGet();
+        return true;
+    }
+
+    private static void sleep(final long delay) throws InterruptedIOException {
+        if (delay <= 0)
+            return;
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to retry");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RetryTransport{retries=" + retries + ", rejected=" + rejected + ", " + policy + '}';
+    }
+
+}
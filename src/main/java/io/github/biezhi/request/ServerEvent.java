@@ -0,0 +1,53 @@
+package io.github.biezhi.request;
+
+/**
+ * Event received from a server-sent event stream
+ */
+public class ServerEvent {
+
+    private final String id;
+
+    private final String event;
+
+    private final String data;
+
+    /**
+     * Create event
+     *
+     * @param id    last event id, may be empty
+     * @param event event type
+     * @param data
+     */
+    public ServerEvent(final String id, final String event, final String data) {
+        this.id = id;
+        this.event = event;
+        this.data = data;
+    }
+
+    /**
+     * @return last event id seen on the stream, empty if none
+     */
+    public String id() {
+        return id;
+    }
+
+    /**
+     * @return event type, 'message' unless the server named it
+     */
+    public String event() {
+        return event;
+    }
+
+    /**
+     * @return data lines joined with '\n'
+     */
+    public String data() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerEvent(id=" + id + ", event=" + event + ", data=" + data + ")";
+    }
+
+}
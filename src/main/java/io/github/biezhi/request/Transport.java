@@ -0,0 +1,40 @@
+package io.github.biezhi.request;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.URL;
+
+/**
+ * Executes {@link Call calls} on the wire.
+ * <p>
+ * Transports are plugged into {@link Request} through a
+ * {@link TransportConnectionFactory} which adapts them to the
+ * {@link java.net.HttpURLConnection} API the rest of this library is
+ * written against.
+ */
+public interface Transport {
+
+    /**
+     * Execute the call and return once the response status and headers have
+     * been received
+     *
+     * @param call
+     * @return response
+     * @throws IOException
+     */
+    Response execute(Call call) throws IOException;
+
+    /**
+     * Can this transport handle requests to the given URL via the given proxy?
+     * <p>
+     * Unsupported requests fall back to {@link ConnectionFactory#DEFAULT}.
+     *
+     * @param url
+     * @param proxy proxy or null if none
+     * @return true if supported, false otherwise
+     */
+    default boolean supports(URL url, Proxy proxy) {
+        return true;
+    }
+
+}
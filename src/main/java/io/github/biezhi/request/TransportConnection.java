@@ -0,0 +1,369 @@
+package io.github.biezhi.request;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.function.LongConsumer;
+
+import static io.github.biezhi.request.Const.*;
+
+/**
+ * {@link HttpURLConnection} adapter over a {@link Transport}
+ * <p>
+ * Request headers and body are collected, in memory or spooled to a
+ * temporary file in streaming mode, and turned into a {@link Call} the
+ * first time the response is accessed. Redirects are
+ * followed here, as {@link HttpURLConnection} would, so transports only ever
+ * deal with single exchanges.
+ */
+class TransportConnection extends HttpURLConnection {
+
+    private static final int MAX_REDIRECTS = 20;
+
+    private final Transport transport;
+
+    private BodyOutputStream body;
+
+    private Response response;
+
+    private IOException failure;
+
+    TransportConnection(final URL url, final Transport transport) {
+        super(url);
+        this.transport = transport;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        // Calls are executed lazily once the response is requested
+    }
+
+    @Override
+    public void disconnect() {
+        if (body != null)
+            body.delete();
+        if (response != null)
+            try {
+                response.close();
+            } catch (IOException ignored) {
+                // Ignored
+            }
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (!doOutput)
+            throw new ProtocolException("cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+        if (response != null || failure != null)
+            throw new ProtocolException("Cannot write output after reading input.");
+        if (METHOD_GET.equals(method))
+            method = METHOD_POST;
+        if (body == null)
+            body = new BodyOutputStream(chunkLength > 0 || fixedContentLengthLong >= 0 || fixedContentLength >= 0,
+                    fixedContentLengthLong >= 0 ? fixedContentLengthLong : fixedContentLength);
+        return body;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        final Response response = execute();
+        final int      code     = response.code();
+        if (code >= HTTP_BAD_REQUEST) {
+            if (code == HTTP_NOT_FOUND || code == HTTP_GONE)
+                throw new FileNotFoundException(url.toString());
+            throw new IOException("Server returned HTTP response code: " + code + " for URL: " + url);
+        }
+        return response.body();
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        if (response == null || response.code() < HTTP_BAD_REQUEST)
+            return null;
+        return response.body();
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        return execute().code();
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        return execute().message();
+    }
+
+    @Override
+    public String getHeaderField(final String name) {
+        final Response response = executeQuietly();
+        return response != null ? response.header(name) : null;
+    }
+
+    @Override
+    public String getHeaderField(final int n) {
+        final Response response = executeQuietly();
+        if (response == null)
+            return null;
+        if (n == 0)
+            return response.statusLine();
+        final Headers headers = response.headers();
+        return n <= headers.size() ? headers.value(n - 1) : null;
+    }
+
+    @Override
+    public String getHeaderFieldKey(final int n) {
+        final Response response = executeQuietly();
+        if (response == null || n == 0)
+            return null;
+        final Headers headers = response.headers();
+        return n <= headers.size() ? headers.name(n - 1) : null;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        final Response response = executeQuietly();
+        if (response == null)
+            return Collections.emptyMap();
+        final Map<String, List<String>> fields = new LinkedHashMap<>();
+        fields.put(null, Collections.singletonList(response.statusLine()));
+        fields.putAll(response.headers().toMap());
+        return Collections.unmodifiableMap(fields);
+    }
+
+    /**
+     * Get the response, executing the call on first access
+     *
+     * @return response
+     * @throws IOException
+     */
+    Response execute() throws IOException {
+        if (response != null)
+            return response;
+        if (failure != null)
+            throw failure;
+        try {
+            response = follow(newCall());
+            return response;
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } finally {
+            // Spooled bodies have been sent once the response arrives
+            if (body != null)
+                body.delete();
+        }
+    }
+
+    private Response executeQuietly() {
+        try {
+            return execute();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Call newCall() throws IOException {
+        final Headers headers = Headers.of(getRequestProperties());
+        if (ifModifiedSince > 0 && headers.get("If-Modified-Since") == null)
+            headers.add("If-Modified-Since", httpDate(ifModifiedSince));
+        connected = true;
+        final RequestBody requestBody = body != null ? body.toBody() : null;
+        return new Call(method, url, headers, requestBody, getConnectTimeout(), getReadTimeout());
+    }
+
+    private Response follow(Call call) throws IOException {
+        for (int redirects = 0; ; redirects++) {
+            final Response response = transport.execute(call);
+            final Call     next     = redirect(call, response);
+            if (next == null)
+                return response;
+            if (redirects >= MAX_REDIRECTS) {
+                response.close();
+                throw new ProtocolException("Server redirected too many times (" + MAX_REDIRECTS + ")");
+            }
+            response.close();
+            call = next;
+            url = call.url();
+            method = call.method();
+        }
+    }
+
+    private Call redirect(final Call call, final Response response) throws IOException {
+        if (!getInstanceFollowRedirects())
+            return null;
+        final int code = response.code();
+        if (code != HTTP_MOVED_PERM && code != HTTP_MOVED_TEMP && code != HTTP_SEE_OTHER
+                && code != 307 && code != 308)
+            return null;
+        final String location = response.header(HEADER_LOCATION);
+        if (location == null)
+            return null;
+        final URL target = new URL(call.url(), location);
+        if (!target.getProtocol().equalsIgnoreCase(call.url().getProtocol()))
+            return null;
+        Call next = call.withUrl(target);
+        if (code == HTTP_SEE_OTHER
+                || (code != 307 && code != 308 && !METHOD_GET.equals(call.method()) && !METHOD_HEAD.equals(call.method())))
+            next = next.withMethod(METHOD_GET, null)
+                    .withHeader(HEADER_CONTENT_TYPE, null)
+                    .withHeader(HEADER_CONTENT_LENGTH, null);
+        return next;
+    }
+
+    private static String httpDate(final long time) {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    /**
+     * Collects the request body in memory, files appended with
+     * {@link #file(File, LongConsumer)} are only referenced.
+     * <p>
+     * In chunked or fixed-length streaming mode the body is not sent as it
+     * is written, since transports need the whole body to send it again on
+     * retries. Instead bytes beyond {@link #SPILL_THRESHOLD} are spooled to
+     * a temporary file, which is then sent like any other file, so large
+     * streamed uploads do not end up on the heap. A fixed length is
+     * enforced as {@link HttpURLConnection} would.
+     */
+    static class BodyOutputStream extends OutputStream {
+
+        /**
+         * Bytes kept in memory before a streamed body is spooled to disk
+         */
+        static final int SPILL_THRESHOLD = 64 * 1024;
+
+        private final List<RequestBody.Segment> segments = new ArrayList<>();
+
+        private final boolean streaming;
+
+        private final long fixedLength;
+
+        private byte[] buf = new byte[512];
+
+        private int count;
+
+        private long written;
+
+        private File spill;
+
+        private OutputStream spillOutput;
+
+        private long spillStart;
+
+        private long spillLength;
+
+        BodyOutputStream() {
+            this(false, -1);
+        }
+
+        /**
+         * @param streaming   true to spool large bodies to a temporary file
+         * @param fixedLength number of bytes that must be written, -1 for any
+         */
+        BodyOutputStream(final boolean streaming, final long fixedLength) {
+            this.streaming = streaming;
+            this.fixedLength = fixedLength;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (fixedLength >= 0 && written + len > fixedLength)
+                throw new IOException("too many bytes written");
+            written += len;
+            if (spillOutput != null) {
+                spillOutput.write(b, off, len);
+                spillLength += len;
+                return;
+            }
+            if (count + len > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(count + len, buf.length << 1));
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+            if (streaming && count > SPILL_THRESHOLD)
+                spill();
+        }
+
+        private void spill() throws IOException {
+            if (spill == null) {
+                spill = File.createTempFile("request-body", ".tmp");
+                spill.deleteOnExit();
+            }
+            spillOutput = new BufferedOutputStream(new FileOutputStream(spill, true));
+            spillOutput.write(buf, 0, count);
+            spillLength += count;
+            buf = new byte[512];
+            count = 0;
+        }
+
+        /**
+         * End the bytes written so far as a segment
+         */
+        private void segment() throws IOException {
+            if (spillOutput != null) {
+                spillOutput.close();
+                spillOutput = null;
+                segments.add(RequestBody.Segment.file(spill, spillStart, spillLength - spillStart, null));
+                spillStart = spillLength;
+            } else if (count > 0) {
+                segments.add(RequestBody.Segment.bytes(buf, 0, count));
+                buf = new byte[512];
+                count = 0;
+            }
+        }
+
+        /**
+         * Append the whole file after the bytes written so far
+         *
+         * @param file
+         * @param progress notified of the bytes sent, may be null
+         * @throws IOException
+         */
+        void file(final File file, final LongConsumer progress) throws IOException {
+            final long length = file.length();
+            if (fixedLength >= 0 && written + length > fixedLength)
+                throw new IOException("too many bytes written");
+            written += length;
+            segment();
+            segments.add(RequestBody.Segment.file(file, 0, length, progress));
+        }
+
+        RequestBody toBody() throws IOException {
+            if (fixedLength >= 0 && written < fixedLength)
+                throw new IOException("insufficient data written");
+            if (segments.isEmpty() && spillOutput == null)
+                return RequestBody.of(buf, count);
+            segment();
+            return RequestBody.of(segments);
+        }
+
+        /**
+         * Delete the temporary file of a spooled body
+         */
+        void delete() {
+            if (spillOutput != null)
+                try {
+                    spillOutput.close();
+                } catch (IOException ignored) {
+                    // Ignored
+                }
+            if (spill != null && !spill.delete())
+                spill.deleteOnExit();
+        }
+    }
+
+}
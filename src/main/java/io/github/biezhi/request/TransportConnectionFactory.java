@@ -0,0 +1,41 @@
+package io.github.biezhi.request;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+
+/**
+ * A {@link ConnectionFactory} that creates connections backed by a
+ * {@link Transport}.
+ * <p>
+ * URLs or proxies the transport does not support are handed to
+ * {@link ConnectionFactory#DEFAULT}.
+ */
+public class TransportConnectionFactory implements ConnectionFactory {
+
+    private final Transport transport;
+
+    public TransportConnectionFactory(final Transport transport) {
+        if (transport == null)
+            throw new IllegalArgumentException("Transport must not be null");
+        this.transport = transport;
+    }
+
+    public Transport transport() {
+        return transport;
+    }
+
+    public HttpURLConnection create(final URL url) throws IOException {
+        if (!transport.supports(url, null))
+            return DEFAULT.create(url);
+        return new TransportConnection(url, transport);
+    }
+
+    public HttpURLConnection create(final URL url, final Proxy proxy) throws IOException {
+        if (!transport.supports(url, proxy))
+            return DEFAULT.create(url, proxy);
+        return new TransportConnection(url, transport);
+    }
+
+}
@@ -0,0 +1,41 @@
+package io.github.biezhi.request;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Holder of the executor used for asynchronous requests when none is
+ * configured.
+ * <p>
+ * On Java 21 and later every asynchronous request runs on its own virtual
+ * thread, so blocking on the server no longer ties up a platform thread.
+ */
+final class DefaultExecutor {
+
+    private DefaultExecutor() {
+    }
+
+    private static final class Holder {
+        static final ExecutorService INSTANCE = Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name("request-async-", 1).factory());
+    }
+
+    /**
+     * Get the shared default executor, creating it on first use
+     *
+     * @return executor
+     */
+    static ExecutorService get() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Is the current thread a virtual thread?
+     *
+     * @return true on a virtual thread
+     */
+    static boolean onVirtualThread() {
+        return Thread.currentThread().isVirtual();
+    }
+
+}
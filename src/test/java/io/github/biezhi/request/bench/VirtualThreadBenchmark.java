@@ -0,0 +1,150 @@
+package io.github.biezhi.request.bench;
+
+import io.github.biezhi.request.ConnectionPool;
+import io.github.biezhi.request.RequestClient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of 10k concurrent <code>get(...).body()</code> calls against a
+ * local keep-alive server that answers after a fixed delay, run on a fixed
+ * pool of platform threads and, on Java 21+, on one virtual thread per
+ * request.
+ * <p>
+ * The server uses a thread per connection so it is not the bottleneck; the
+ * JDK's built-in HTTP server dispatches on a single thread and is. Client and
+ * server share the machine, so run it with several cores available: on a
+ * single core both variants are CPU bound and end up close to each other.
+ * <p>
+ * Run with: java -cp target/classes:target/test-classes io.github.biezhi.request.bench.VirtualThreadBenchmark [requests] [platformThreads] [delayMillis]
+ */
+public class VirtualThreadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int requests        = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int platformThreads = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int delay           = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        DelayServer server = new DelayServer(delay);
+        String url = "http://127.0.0.1:" + server.port() + "/";
+
+        ConnectionPool pool = new ConnectionPool().maxPerHost(2048).maxTotal(2048)
+                .acquireTimeout(5, TimeUnit.MINUTES);
+        try (RequestClient client = new RequestClient(pool)) {
+            // warm up connections and JIT
+            run(client, url, Math.min(requests, 2000), Executors.newFixedThreadPool(platformThreads), "warmup");
+
+            run(client, url, requests, Executors.newFixedThreadPool(platformThreads),
+                    "platform(" + platformThreads + ")");
+            // passed explicitly, the default executor is only virtual when
+            // loaded from the multi-release jar and not from target/classes
+            ExecutorService virtual = virtualExecutor();
+            if (virtual != null)
+                run(client, url, requests, virtual, "virtual");
+            else
+                System.out.println("virtual threads require Java 21+, skipped");
+            System.out.println(pool.stats());
+        } finally {
+            server.close();
+        }
+    }
+
+    private static void run(RequestClient client, String url, int requests,
+                            ExecutorService executor, String name) {
+        long                            start   = System.nanoTime();
+        List<CompletableFuture<String>> futures = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++)
+            futures.add(client.get(url).executor(executor).bodyAsync());
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        System.out.printf("%-16s %6d requests in %6d ms, %8.0f req/s%n", name, requests,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), requests / (elapsed / 1e9));
+    }
+
+    /**
+     * @return virtual-thread-per-task executor or null before Java 21
+     */
+    private static ExecutorService virtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Minimal HTTP/1.1 server answering every request with 'ok' after a delay
+     */
+    private static final class DelayServer implements Closeable {
+
+        private static final byte[] RESPONSE = ("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n"
+                + "Content-Type: text/plain; charset=UTF-8\r\n\r\nok").getBytes(StandardCharsets.ISO_8859_1);
+
+        private final ServerSocket socket;
+
+        DelayServer(int delay) throws IOException {
+            socket = new ServerSocket(0, 4096, InetAddress.getByName("127.0.0.1"));
+            Thread acceptor = new Thread(() -> {
+                while (!socket.isClosed()) {
+                    try {
+                        Socket connection = socket.accept();
+                        Thread handler = new Thread(() -> serve(connection, delay));
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return socket.getLocalPort();
+        }
+
+        private static void serve(Socket accepted, int delay) {
+            try (Socket connection = accepted) {
+                connection.setTcpNoDelay(true);
+                InputStream  in  = connection.getInputStream();
+                OutputStream out = connection.getOutputStream();
+                int          state = 0;
+                int          b;
+                while ((b = in.read()) != -1) {
+                    // look for the CRLFCRLF ending the request head, requests carry no body
+                    state = (b == '\r' && (state == 0 || state == 2)) || (b == '\n' && (state == 1 || state == 3))
+                            ? state + 1 : (b == '\r' ? 1 : 0);
+                    if (state == 4) {
+                        state = 0;
+                        Thread.sleep(delay);
+                        out.write(RESPONSE);
+                        out.flush();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // connection closed
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+}
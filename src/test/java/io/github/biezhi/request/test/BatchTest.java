@@ -0,0 +1,168 @@
+package io.github.biezhi.request.test;
+
+import com.sun.net.httpserver.HttpServer;
+import io.github.biezhi.request.Batch;
+import io.github.biezhi.request.BatchStats;
+import io.github.biezhi.request.ConnectionPool;
+import io.github.biezhi.request.Request;
+import io.github.biezhi.request.RequestClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchTest {
+
+    private final AtomicInteger              inFlight     = new AtomicInteger();
+    private final AtomicInteger              maxInFlight  = new AtomicInteger();
+    private final Map<String, AtomicInteger> hostInFlight = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> hostMax      = new ConcurrentHashMap<>();
+
+    private HttpServer      server;
+    private ExecutorService serverExecutor;
+    private int             port;
+
+    @Before
+    public void before() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/slow", exchange -> {
+            String        host    = exchange.getRequestHeaders().getFirst("Host");
+            AtomicInteger current = hostInFlight.computeIfAbsent(host, key -> new AtomicInteger());
+            AtomicInteger max     = hostMax.computeIfAbsent(host, key -> new AtomicInteger());
+            max.accumulateAndGet(current.incrementAndGet(), Math::max);
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ignored) {
+                // Ignored
+            }
+            current.decrementAndGet();
+            inFlight.decrementAndGet();
+            byte[] body = exchange.getRequestURI().getQuery().getBytes("UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        port = server.getAddress().getPort();
+    }
+
+    @After
+    public void after() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testLimitsAndCompletionOrder() {
+        try (RequestClient client = new RequestClient(new ConnectionPool(), 1)) {
+            List<Request> requests = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                requests.add(client.get("http://127.0.0.1:" + port + "/slow?a" + i));
+                requests.add(client.get("http://localhost:" + port + "/slow?b" + i));
+            }
+            Batch<String> batch = Batch.of(requests, Request::body).maxConcurrency(3).maxPerHost(2);
+
+            Set<String> bodies = batch.stream()
+                    .map(Batch.Result::value)
+                    .collect(Collectors.toSet());
+            assertEquals(40, bodies.size());
+            assertTrue(maxInFlight.get() <= 3);
+            for (AtomicInteger max : hostMax.values())
+                assertTrue(max.get() <= 2);
+
+            BatchStats stats = batch.stats();
+            assertEquals(40, stats.completed());
+            assertEquals(0, stats.failed());
+            assertTrue(stats.throughput() > 0);
+            assertTrue(stats.p50() >= 20);
+            // Each host never needs more connections than its limit
+            assertTrue(client.pool().stats().created() <= 4);
+        }
+    }
+
+    @Test
+    public void testFailuresAreReported() throws IOException {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        List<Request> requests = new ArrayList<>();
+        requests.add(Request.get("http://127.0.0.1:" + port + "/slow?ok"));
+        requests.add(Request.get("http://127.0.0.1:" + closedPort + "/"));
+        Batch<Integer> batch = Batch.of(requests, Request::code);
+
+        Set<Integer> failed = new HashSet<>();
+        for (Batch.Result<Integer> result : batch.execute())
+            if (!result.isSuccess())
+                failed.add(result.index());
+            else
+                assertEquals(200, (int) result.value());
+        assertEquals(1, failed.size());
+        assertTrue(failed.contains(1));
+        assertEquals(1, batch.stats().failed());
+        assertFalse(batch.stats().completed() < 2);
+    }
+
+    @Test
+    public void testHandlerError() throws InterruptedException {
+        List<Request> requests = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            requests.add(Request.get("http://127.0.0.1:" + port + "/slow?" + i));
+        Batch<String> batch = Batch.<String>of(requests, request -> {
+            if (request.url().getQuery().equals("1"))
+                throw new AssertionError("handler broke");
+            return request.body();
+        }).maxConcurrency(1);
+
+        // An Error must not leave the batch waiting for the failed request
+        List<Batch.Result<String>> results = batch.execute();
+        assertEquals(3, results.size());
+        for (Batch.Result<String> result : results)
+            if (result.index() == 1)
+                assertTrue(result.error().getCause() instanceof AssertionError);
+            else
+                assertEquals(String.valueOf(result.index()), result.value());
+
+        // Elapsed time stops when the last request completes
+        double elapsed = batch.stats().elapsed();
+        Thread.sleep(50);
+        assertEquals(elapsed, batch.stats().elapsed(), 0);
+    }
+
+    @Test
+    public void testCallerRunsExecutor() {
+        List<Request> requests = new ArrayList<>();
+        for (int i = 0; i < 20000; i++)
+            requests.add(Request.get("http://127.0.0.1:" + port + "/slow?" + i));
+        // Each request completes on the dispatching thread, which must not
+        // recurse into the next one
+        Batch<String> batch = Batch.<String>of(requests, request -> request.url().getQuery())
+                .maxConcurrency(1)
+                .executor(Runnable::run);
+        List<Batch.Result<String>> results = batch.execute();
+        assertEquals(20000, results.size());
+        for (Batch.Result<String> result : results)
+            assertEquals(String.valueOf(result.index()), result.value());
+    }
+
+}
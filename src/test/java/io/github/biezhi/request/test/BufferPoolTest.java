@@ -0,0 +1,81 @@
+package io.github.biezhi.request.test;
+
+import io.github.biezhi.request.BufferPool;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testThreadLocalReuse() {
+        BufferPool pool  = new BufferPool(0);
+        byte[]     first = pool.bytes(8192);
+        pool.release(first);
+        assertSame(first, pool.bytes(8192));
+        assertNotSame(first, pool.bytes(4096));
+        assertEquals(1, pool.hits());
+        assertEquals(2, pool.misses());
+    }
+
+    @Test
+    public void testSharedAcrossThreads() {
+        BufferPool pool   = new BufferPool(1, false);
+        char[]     first  = pool.chars(1024);
+        char[]     second = pool.chars(1024);
+        pool.release(first);
+        pool.release(second);
+        // Only one fits in the shared pool
+        char[] reused = CompletableFuture.supplyAsync(() -> pool.chars(1024)).join();
+        assertSame(first, reused);
+        assertNotSame(second, pool.chars(1024));
+        assertEquals(1, pool.hits());
+    }
+
+    @Test
+    public void testDirect() {
+        BufferPool pool   = new BufferPool();
+        ByteBuffer buffer = pool.direct(16384);
+        assertTrue(buffer.isDirect());
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        ByteBuffer reused = pool.direct(16384);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(16384, reused.remaining());
+    }
+
+    @Test
+    public void testInflatersShared() {
+        BufferPool pool   = new BufferPool(1);
+        Inflater   first  = pool.inflater();
+        Inflater   second = pool.inflater();
+        pool.release(first);
+        pool.release(second);
+        // Not kept by this thread, the one the shared pool had no room for is ended
+        assertSame(first, CompletableFuture.supplyAsync(pool::inflater).join());
+        try {
+            second.getBytesRead();
+            fail("Exception expected");
+        } catch (NullPointerException e) {
+            // Ended
+        }
+    }
+
+    @Test
+    public void testNone() {
+        byte[] buffer = BufferPool.NONE.bytes(16);
+        BufferPool.NONE.release(buffer);
+        assertNotSame(buffer, BufferPool.NONE.bytes(16));
+        assertEquals(0, BufferPool.NONE.hits());
+    }
+
+}
@@ -0,0 +1,109 @@
+package io.github.biezhi.request.test;
+
+import com.sun.net.httpserver.HttpServer;
+import io.github.biezhi.request.CachingResolver;
+import io.github.biezhi.request.Resolver;
+import io.github.biezhi.request.RequestClient;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CachingResolverTest {
+
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    private final Resolver counting = host -> {
+        lookups.incrementAndGet();
+        if (host.endsWith(".invalid"))
+            throw new UnknownHostException(host);
+        return Collections.singletonList(InetAddress.getByAddress(host, new byte[]{127, 0, 0, 1}));
+    };
+
+    @Test
+    public void testCachesUntilExpiry() throws Exception {
+        CachingResolver resolver = new CachingResolver(counting).ttl(100, TimeUnit.MILLISECONDS).refreshAhead(1);
+        for (int i = 0; i < 5; i++)
+            assertEquals("127.0.0.1", resolver.resolve("Example.COM").get(0).getHostAddress());
+        assertEquals(1, lookups.get());
+        assertEquals(4, resolver.hits());
+
+        Thread.sleep(150);
+        resolver.resolve("example.com");
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testNegativeCaching() {
+        CachingResolver resolver = new CachingResolver(counting).negativeTtl(1, TimeUnit.MINUTES);
+        for (int i = 0; i < 3; i++) {
+            try {
+                resolver.resolve("missing.invalid");
+                fail("Exception expected");
+            } catch (UnknownHostException expected) {
+                // Expected
+            }
+        }
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+        CachingResolver resolver = new CachingResolver(counting)
+                .ttl(1, TimeUnit.MINUTES)
+                .refreshAhead(0.000001)
+                .executor(Runnable::run);
+        resolver.resolve("example.com");
+        Thread.sleep(5);
+        resolver.resolve("example.com");
+        assertEquals(2, lookups.get());
+        assertEquals(1, resolver.refreshes());
+        assertEquals(1, resolver.misses());
+    }
+
+    @Test
+    public void testMaxEntries() throws Exception {
+        CachingResolver resolver = new CachingResolver(counting).maxEntries(2);
+        resolver.resolve("a.test");
+        resolver.resolve("b.test");
+        resolver.resolve("a.test");
+        // The least recently used host makes room, although none expired
+        resolver.resolve("c.test");
+        assertEquals(3, lookups.get());
+        resolver.resolve("a.test");
+        resolver.resolve("c.test");
+        assertEquals(3, lookups.get());
+        resolver.resolve("b.test");
+        assertEquals(4, lookups.get());
+    }
+
+    @Test
+    public void testStaticHostWithClient() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/hello", exchange -> {
+            byte[] body = exchange.getRequestHeaders().getFirst("Host").getBytes("UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        int port = server.getAddress().getPort();
+        CachingResolver resolver = new CachingResolver(counting)
+                .host("api.test", InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
+        try (RequestClient client = new RequestClient().resolver(resolver)) {
+            assertEquals("api.test:" + port, client.get("http://api.test:" + port + "/hello").body());
+            assertEquals(0, lookups.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+}
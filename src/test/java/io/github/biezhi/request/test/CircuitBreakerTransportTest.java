@@ -0,0 +1,184 @@
+package io.github.biezhi.request.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.github.biezhi.request.CircuitBreaker;
+import io.github.biezhi.request.CircuitBreakerTransport;
+import io.github.biezhi.request.CircuitOpenException;
+import io.github.biezhi.request.NioTransport;
+import io.github.biezhi.request.RequestClient;
+import io.github.biezhi.request.RequestException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerTransportTest {
+
+    private HttpServer      server;
+    private ExecutorService executor;
+    private String          baseUrl;
+    private String          host;
+
+    private final AtomicInteger requests    = new AtomicInteger();
+    private final List<String>  transitions = new CopyOnWriteArrayList<>();
+
+    private volatile int  code  = 200;
+    private volatile long delay = 0;
+
+    @Before
+    public void before() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/data", exchange -> {
+            requests.incrementAndGet();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            send(exchange, code, "data");
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        host = "127.0.0.1:" + server.getAddress().getPort();
+        baseUrl = "http://" + host;
+    }
+
+    @After
+    public void after() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static void send(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    private CircuitBreakerTransport transport() {
+        return new CircuitBreakerTransport(new NioTransport(1))
+                .window(4, 4)
+                .failureRate(0.5)
+                .openDuration(200, TimeUnit.MILLISECONDS)
+                .halfOpenCalls(2)
+                .listener((breaker, from, to) -> transitions.add(from + "->" + to));
+    }
+
+    private static void assertOpen(RequestClient client, String url) {
+        try {
+            client.get(url).code();
+            fail("Exception expected");
+        } catch (RequestException e) {
+            assertTrue(e.getCause() instanceof CircuitOpenException);
+        }
+    }
+
+    @Test
+    public void testOpensAndCloses() throws InterruptedException {
+        CircuitBreakerTransport transport = transport();
+        try (RequestClient client = new RequestClient(transport)) {
+            assertEquals(200, client.get(baseUrl + "/data").code());
+            assertEquals(200, client.get(baseUrl + "/data").code());
+            code = 503;
+            assertEquals(503, client.get(baseUrl + "/data").code());
+            assertEquals(CircuitBreaker.State.CLOSED, transport.breaker(host).state());
+            assertEquals(503, client.get(baseUrl + "/data").code());
+            assertEquals(CircuitBreaker.State.OPEN, transport.breaker(host).state());
+
+            // Open calls fail without reaching the server
+            assertOpen(client, baseUrl + "/data");
+            assertEquals(4, requests.get());
+
+            Thread.sleep(300);
+            code = 200;
+            assertEquals(200, client.get(baseUrl + "/data").code());
+            assertEquals(CircuitBreaker.State.HALF_OPEN, transport.breaker(host).state());
+            assertEquals(200, client.get(baseUrl + "/data").code());
+            assertEquals(CircuitBreaker.State.CLOSED, transport.breaker(host).state());
+            assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->CLOSED]", transitions.toString());
+        }
+    }
+
+    @Test
+    public void testThrowingListener() {
+        code = 500;
+        CircuitBreakerTransport transport = transport().listener((breaker, from, to) -> {
+            throw new IllegalStateException("listener");
+        }).listener((breaker, from, to) -> transitions.add("second " + to));
+        try (RequestClient client = new RequestClient(transport)) {
+            // The call that opens the circuit still gets its response
+            for (int i = 0; i < 4; i++)
+                assertEquals("data", client.get(baseUrl + "/data").body());
+            assertOpen(client, baseUrl + "/data");
+            assertEquals("[CLOSED->OPEN, second OPEN]", transitions.toString());
+        }
+    }
+
+    @Test
+    public void testHalfOpenFailure() throws InterruptedException {
+        code = 500;
+        CircuitBreakerTransport transport = transport();
+        try (RequestClient client = new RequestClient(transport)) {
+            for (int i = 0; i < 4; i++)
+                client.get(baseUrl + "/data").code();
+            assertOpen(client, baseUrl + "/data");
+
+            Thread.sleep(300);
+            assertEquals(500, client.get(baseUrl + "/data").code());
+            assertEquals(500, client.get(baseUrl + "/data").code());
+            assertEquals(CircuitBreaker.State.OPEN, transport.breaker(host).state());
+            assertOpen(client, baseUrl + "/data");
+            assertEquals(6, requests.get());
+            assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->OPEN]", transitions.toString());
+
+            transport.breaker(host).reset();
+            assertEquals(500, client.get(baseUrl + "/data").code());
+        }
+    }
+
+    @Test
+    public void testSlowCalls() {
+        delay = 100;
+        CircuitBreakerTransport transport = transport().slowCall(50, TimeUnit.MILLISECONDS, 0.75);
+        try (RequestClient client = new RequestClient(transport)) {
+            for (int i = 0; i < 3; i++)
+                assertEquals(200, client.get(baseUrl + "/data").code());
+            assertEquals(1.0, transport.breaker(host).slowCallRate(), 0);
+            assertEquals(0.0, transport.breaker(host).failureRate(), 0);
+            assertEquals(200, client.get(baseUrl + "/data").code());
+            assertOpen(client, baseUrl + "/data");
+        }
+    }
+
+    @Test
+    public void testConnectFailures() throws IOException {
+        server.stop(0);
+        CircuitBreakerTransport transport = transport();
+        try (RequestClient client = new RequestClient(transport)) {
+            for (int i = 0; i < 4; i++)
+                try {
+                    client.get(baseUrl + "/data").code();
+                    fail("Exception expected");
+                } catch (RequestException e) {
+                    assertTrue(!(e.getCause() instanceof CircuitOpenException));
+                }
+            assertOpen(client, baseUrl + "/data");
+        }
+    }
+
+}
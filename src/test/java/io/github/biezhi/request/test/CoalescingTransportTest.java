@@ -0,0 +1,110 @@
+package io.github.biezhi.request.test;
+
+import com.sun.net.httpserver.HttpServer;
+import io.github.biezhi.request.CoalescingTransport;
+import io.github.biezhi.request.NioTransport;
+import io.github.biezhi.request.RequestClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class CoalescingTransportTest {
+
+    private static final int CALLERS = 8;
+
+    private HttpServer      server;
+    private ExecutorService executor;
+    private ExecutorService callers;
+    private String          baseUrl;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void before() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/slow", exchange -> {
+            int count = requests.incrementAndGet();
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException ignored) {
+                // Stopping
+            }
+            byte[] body = ("slow-" + count + "-" + exchange.getRequestURI().getQuery()).getBytes("UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        executor = Executors.newCachedThreadPool();
+        callers = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void after() {
+        server.stop(0);
+        executor.shutdownNow();
+        callers.shutdownNow();
+    }
+
+    private List<String> concurrently(RequestClient client, String url) throws Exception {
+        CountDownLatch       start   = new CountDownLatch(1);
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++)
+            futures.add(callers.submit(() -> {
+                start.await();
+                return client.get(url).body();
+            }));
+        start.countDown();
+        List<String> bodies = new ArrayList<>();
+        for (Future<String> future : futures)
+            bodies.add(future.get());
+        return bodies;
+    }
+
+    @Test
+    public void testSharesCallInFlight() throws Exception {
+        CoalescingTransport transport = new CoalescingTransport(new NioTransport(1));
+        try (RequestClient client = new RequestClient(transport)) {
+            for (String body : concurrently(client, baseUrl + "/slow?a"))
+                assertEquals("slow-1-a", body);
+            assertEquals(1, requests.get());
+            assertEquals(1, transport.sent());
+            assertEquals(CALLERS - 1, transport.saved());
+            assertEquals(0, transport.inFlight());
+
+            // Nothing is kept once the call completed
+            assertEquals("slow-2-a", client.get(baseUrl + "/slow?a").body());
+            // Different URLs and headers are separate calls
+            assertEquals("slow-3-b", client.get(baseUrl + "/slow?b").body());
+            client.get(baseUrl + "/slow?a").header("Accept", "text/plain").body();
+            assertEquals(4, transport.sent());
+        }
+    }
+
+    @Test
+    public void testLargeBodiesNotShared() throws Exception {
+        CoalescingTransport transport = new CoalescingTransport(new NioTransport(1)).maxBodyBytes(4);
+        try (RequestClient client = new RequestClient(transport)) {
+            for (String body : concurrently(client, baseUrl + "/slow?large"))
+                assertEquals("-large", body.substring(body.lastIndexOf('-')));
+            assertEquals(CALLERS, requests.get());
+            assertEquals(0, transport.saved());
+            assertEquals(CALLERS, transport.sent());
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package io.github.biezhi.request.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.github.biezhi.request.CacheStats;
+import io.github.biezhi.request.CachingTransport;
+import io.github.biezhi.request.DiskCache;
+import io.github.biezhi.request.HttpCache;
+import io.github.biezhi.request.NioTransport;
+import io.github.biezhi.request.RequestClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DiskCacheTest {
+
+    private static final String PADDING = new String(new char[2000]).replace('\0', 'p');
+
+    private HttpServer      server;
+    private ExecutorService executor;
+    private String          baseUrl;
+    private File            directory;
+
+    private final AtomicInteger requests    = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    @Before
+    public void before() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/file", exchange -> {
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+            // Makes each index record about 2 KB so few requests fill it
+            exchange.getResponseHeaders().add("X-Padding", PADDING);
+            requests.incrementAndGet();
+            send(exchange, body(exchange.getRequestURI().getQuery()));
+        });
+        server.createContext("/grow", exchange -> {
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+            send(exchange, requests.incrementAndGet() == 1 ? "small" : body("large"));
+        });
+        server.createContext("/etag", exchange -> {
+            requests.incrementAndGet();
+            exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            send(exchange, body("etag"));
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        directory = Files.createTempDirectory("disk-cache").toFile();
+    }
+
+    @After
+    public void after() {
+        server.stop(0);
+        executor.shutdownNow();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    private static String body(String seed) {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 10000)
+            body.append(seed).append(body.length()).append('\n');
+        return body.toString();
+    }
+
+    private static void send(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    private RequestClient client(HttpCache cache) {
+        return new RequestClient(new CachingTransport(new NioTransport(1), cache));
+    }
+
+    @Test
+    public void testSurvivesRestart() throws IOException {
+        try (DiskCache disk = new DiskCache(directory, 1024 * 1024);
+             RequestClient client = client(new HttpCache(1024).disk(disk))) {
+            assertEquals(body("a"), client.get(baseUrl + "/file?a").body());
+            assertEquals(body("a"), client.get(baseUrl + "/file?a").body());
+            assertEquals(body("etag"), client.get(baseUrl + "/etag").body());
+            CacheStats stats = disk.stats();
+            assertEquals(2, stats.entries());
+            assertEquals(1, stats.hits());
+        }
+        assertEquals(2, requests.get());
+
+        // A new cache on the same directory serves the stored bodies
+        try (DiskCache disk = new DiskCache(directory, 1024 * 1024);
+             RequestClient client = client(new HttpCache(1024).disk(disk))) {
+            assertEquals(2, disk.stats().entries());
+            assertEquals(body("a"), client.get(baseUrl + "/file?a").body());
+            assertEquals(2, requests.get());
+            assertEquals(body("etag"), client.get(baseUrl + "/etag").body());
+            assertEquals(body("etag"), client.get(baseUrl + "/etag").body());
+            assertEquals(2, notModified.get());
+            assertEquals(2, disk.stats().revalidations());
+            assertEquals(2, disk.stats().entries());
+        }
+    }
+
+    @Test
+    public void testEvictionAndCompaction() throws IOException {
+        try (DiskCache disk = new DiskCache(directory, 35000).maxEntryBytes(20000);
+             RequestClient client = client(new HttpCache(1024).disk(disk))) {
+            for (int i = 0; i < 5; i++)
+                client.get(baseUrl + "/file?" + i).body();
+            // Use the third one so the fourth is the least recently used
+            client.get(baseUrl + "/file?2").body();
+            client.get(baseUrl + "/file?5").body();
+            CacheStats stats = disk.stats();
+            assertEquals(3, stats.entries());
+            assertEquals(3, stats.evictions());
+            assertTrue(stats.bytes() <= 35000);
+            assertEquals(6, requests.get());
+            assertEquals(body("2"), client.get(baseUrl + "/file?2").body());
+            assertEquals(6, requests.get());
+
+            // Replacing the same entries over and over compacts the index,
+            // which would otherwise grow past its initial 64 KB
+            for (int i = 0; i < 40; i++)
+                client.get(baseUrl + "/file?x").header("Cache-Control", "no-cache").body();
+            assertEquals(3, disk.stats().entries());
+            assertTrue(new File(directory, "index").length() <= 64 * 1024);
+            assertEquals(body("x"), client.get(baseUrl + "/file?x").body());
+            assertEquals(3, directory.list((dir, name) -> name.endsWith(".body")).length);
+        }
+    }
+
+    @Test
+    public void testDiskOnlyReplacesMemory() throws IOException {
+        try (DiskCache disk = new DiskCache(directory, 1024 * 1024);
+             RequestClient client = client(new HttpCache(64 * 1024).maxEntryBytes(1024).disk(disk))) {
+            assertEquals("small", client.get(baseUrl + "/grow").body());
+            // Too large for memory, the new body is only stored on disk
+            assertEquals(body("large"), client.get(baseUrl + "/grow").header("Cache-Control", "no-cache").body());
+            assertEquals(body("large"), client.get(baseUrl + "/grow").body());
+            assertEquals(2, requests.get());
+        }
+    }
+
+}
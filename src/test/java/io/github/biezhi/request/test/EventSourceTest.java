@@ -0,0 +1,148 @@
+package io.github.biezhi.request.test;
+
+import com.sun.net.httpserver.HttpServer;
+import io.github.biezhi.request.EventSource;
+import io.github.biezhi.request.ServerEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventSourceTest {
+
+    private HttpServer      server;
+    private ExecutorService executor;
+    private String          baseUrl;
+
+    private final List<String>   lastEventIds = new CopyOnWriteArrayList<>();
+    private final CountDownLatch stop         = new CountDownLatch(1);
+
+    @Before
+    public void before() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/events", exchange -> {
+            String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+            lastEventIds.add(String.valueOf(lastEventId));
+            exchange.getResponseHeaders().add("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                if (lastEventId == null) {
+                    // Fields split across writes and every kind of line ending
+                    send(out, "\uFEFFretry: 50\n: comment\n\nid: 1\nda");
+                    send(out, "ta: first\r\ndata:second\r");
+                    send(out, "\n\r\nevent: update\rid: 2\rdata: ");
+                    send(out, "été\n\n");
+                } else {
+                    send(out, "id: 3\ndata: resumed\n\n");
+                    stop.await(10, TimeUnit.SECONDS);
+                }
+            } catch (IOException | InterruptedException ignored) {
+                // Client went away
+            }
+            exchange.close();
+        });
+        server.createContext("/gone", exchange -> {
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.createContext("/html", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "text/html");
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().write("<html/>".getBytes("UTF-8"));
+            exchange.close();
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void after() {
+        stop.countDown();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static void send(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes("UTF-8"));
+        out.flush();
+    }
+
+    @Test
+    public void testEventsAndReconnect() throws Exception {
+        BlockingQueue<ServerEvent> events  = new LinkedBlockingQueue<>();
+        ExecutorService            readers = Executors.newCachedThreadPool();
+        EventSource                source  = new EventSource(baseUrl + "/events", events::add).executor(readers).start();
+        try {
+            ServerEvent first = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(first);
+            assertEquals("1", first.id());
+            assertEquals("message", first.event());
+            assertEquals("first\nsecond", first.data());
+
+            ServerEvent second = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(second);
+            assertEquals("2", second.id());
+            assertEquals("update", second.event());
+            assertEquals("été", second.data());
+
+            // Reconnects after the server's retry delay, resuming from the last id
+            ServerEvent third = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(third);
+            assertEquals("resumed", third.data());
+            assertEquals(50, source.retry());
+            assertEquals("3", source.lastEventId());
+            assertEquals("null", lastEventIds.get(0));
+            assertEquals("2", lastEventIds.get(1));
+        } finally {
+            source.close();
+        }
+        assertTrue(source.isClosed());
+        // Closing unblocks the reader of the open stream
+        readers.shutdown();
+        assertTrue(readers.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(2, lastEventIds.size());
+    }
+
+    @Test
+    public void testNoContentCloses() throws Exception {
+        CountDownLatch errors = new CountDownLatch(1);
+        EventSource source = new EventSource(baseUrl + "/gone", event -> {
+        }).retry(10, TimeUnit.MILLISECONDS).start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!source.isClosed() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(source.isClosed());
+
+        EventSource html = new EventSource(baseUrl + "/html", new EventSource.Listener() {
+            @Override
+            public void onEvent(ServerEvent event) {
+            }
+
+            @Override
+            public void onError(EventSource source, Throwable error) {
+                errors.countDown();
+            }
+        }).start();
+        assertTrue(errors.await(5, TimeUnit.SECONDS));
+        assertTrue(html.isClosed());
+    }
+
+}
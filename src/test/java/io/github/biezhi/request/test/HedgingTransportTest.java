@@ -0,0 +1,202 @@
+package io.github.biezhi.request.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.github.biezhi.request.Call;
+import io.github.biezhi.request.ForwardingTransport;
+import io.github.biezhi.request.HedgingTransport;
+import io.github.biezhi.request.NioTransport;
+import io.github.biezhi.request.RequestClient;
+import io.github.biezhi.request.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HedgingTransportTest {
+
+    private HttpServer      server;
+    private HttpServer      replica;
+    private ExecutorService executor;
+    private String          baseUrl;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger replicas = new AtomicInteger();
+
+    private volatile int slow = 1;
+
+    @Before
+    public void before() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/data", exchange -> {
+            // The first requests stall, later ones answer at once
+            if (requests.incrementAndGet() <= slow)
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            send(exchange, "primary");
+        });
+        server.setExecutor(executor);
+        server.start();
+        replica = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        replica.createContext("/data", exchange -> {
+            replicas.incrementAndGet();
+            send(exchange, "replica");
+        });
+        replica.setExecutor(executor);
+        replica.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void after() {
+        server.stop(0);
+        replica.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static void send(HttpExchange exchange, String body) throws IOException {
+        try {
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        } catch (IOException e) {
+            // Hedge losers are disconnected
+        }
+        exchange.close();
+    }
+
+    @Test
+    public void testHedgeWins() {
+        HedgingTransport transport = new HedgingTransport(new NioTransport(2)).delay(50, TimeUnit.MILLISECONDS);
+        try (RequestClient client = new RequestClient(transport)) {
+            long start = System.nanoTime();
+            assertEquals("primary", client.get(baseUrl + "/data").body());
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+            assertEquals(2, requests.get());
+            assertEquals(1, transport.hedges());
+            assertEquals(1, transport.wins());
+
+            // Fast responses are not hedged
+            assertEquals("primary", client.get(baseUrl + "/data").body());
+            assertEquals(3, requests.get());
+            assertEquals(1, transport.hedges());
+        }
+    }
+
+    @Test
+    public void testAlternate() {
+        HedgingTransport transport = new HedgingTransport(new NioTransport(2))
+                .delay(50, TimeUnit.MILLISECONDS)
+                .alternate("127.0.0.1:" + replica.getAddress().getPort());
+        try (RequestClient client = new RequestClient(transport)) {
+            assertEquals("replica", client.get(baseUrl + "/data").body());
+            assertEquals(1, replicas.get());
+            assertEquals(1, transport.wins());
+        }
+    }
+
+    @Test
+    public void testBudget() {
+        slow = 3;
+        HedgingTransport transport = new HedgingTransport(new NioTransport(4))
+                .delay(50, TimeUnit.MILLISECONDS)
+                .alternate("127.0.0.1:" + replica.getAddress().getPort())
+                .budget(0, 1);
+        try (RequestClient client = new RequestClient(transport)) {
+            assertEquals("replica", client.get(baseUrl + "/data").body());
+            // The budget is spent so the next call waits for the slow server
+            long start = System.nanoTime();
+            assertEquals("primary", client.get(baseUrl + "/data").body());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(1500));
+            assertEquals(1, transport.hedges());
+            assertEquals(1, transport.limited());
+        }
+    }
+
+    @Test
+    public void testNotIdempotent() {
+        HedgingTransport transport = new HedgingTransport(new NioTransport(2)).delay(50, TimeUnit.MILLISECONDS);
+        try (RequestClient client = new RequestClient(transport)) {
+            assertEquals("primary", client.post(baseUrl + "/data").send("once").body());
+            assertEquals(1, requests.get());
+            assertEquals(0, transport.hedges());
+        }
+    }
+
+    @Test
+    public void testPercentile() {
+        slow = 0;
+        HedgingTransport transport = new HedgingTransport(new NioTransport(2))
+                .delay(5, TimeUnit.SECONDS)
+                .percentile(0.95);
+        try (RequestClient client = new RequestClient(transport)) {
+            assertEquals(5000, transport.currentDelay());
+            for (int i = 0; i < 25; i++)
+                assertEquals("primary", client.get(baseUrl + "/data").body());
+            assertTrue(transport.currentDelay() < 1000);
+            // Only calls made after the 20 samples needed for the percentile can hedge
+            assertTrue(transport.hedges() <= 25 - 20);
+        }
+    }
+
+    @Test
+    public void testLoserDisconnected() throws Exception {
+        List<IOException> failures = new CopyOnWriteArrayList<>();
+        try (ServerSocket stalled = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            // Records how each attempt ended below the hedging transport
+            ForwardingTransport recording = new ForwardingTransport(new NioTransport(2)) {
+                @Override
+                public Response execute(Call call) throws IOException {
+                    try {
+                        return super.execute(call);
+                    } catch (IOException e) {
+                        failures.add(e);
+                        throw e;
+                    }
+                }
+            };
+            HedgingTransport transport = new HedgingTransport(recording)
+                    .delay(50, TimeUnit.MILLISECONDS)
+                    .alternate("127.0.0.1:" + replica.getAddress().getPort());
+            try (RequestClient client = new RequestClient(transport)) {
+                assertEquals("replica", client.get("http://127.0.0.1:" + stalled.getLocalPort() + "/data").body());
+                assertEquals(1, transport.wins());
+
+                // The primary never answers, so it ends only by being cancelled
+                try (Socket socket = stalled.accept()) {
+                    socket.setSoTimeout(5000);
+                    InputStream input = socket.getInputStream();
+                    byte[]      buffer = new byte[1024];
+                    while (input.read(buffer) != -1) {
+                        // Drain the request until the client disconnects
+                    }
+                }
+                for (int i = 0; i < 100 && failures.isEmpty(); i++)
+                    Thread.sleep(20);
+                assertEquals(1, failures.size());
+                assertTrue(failures.get(0) instanceof InterruptedIOException);
+            }
+        }
+    }
+
+}
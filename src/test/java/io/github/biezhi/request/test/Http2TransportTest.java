@@ -0,0 +1,303 @@
+package io.github.biezhi.request.test;
+
+import io.github.biezhi.request.Http2Transport;
+import io.github.biezhi.request.Request;
+import io.github.biezhi.request.RequestClient;
+import io.github.biezhi.request.RequestException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Http2TransportTest {
+
+    private H2cServer      server;
+    private Http2Transport transport;
+    private RequestClient  client;
+    private String         baseUrl;
+
+    @Before
+    public void before() throws IOException {
+        server = new H2cServer();
+        baseUrl = "http://127.0.0.1:" + server.port();
+        transport = new Http2Transport(1);
+        client = new RequestClient(transport);
+    }
+
+    @After
+    public void after() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testGet() {
+        // :status 200, content-type: text/plain; charset=UTF-8 without indexing
+        server.reply = (stream, body) -> new Reply(concat(new byte[]{(byte) 0x88, 0x0f, 0x10},
+                literal("text/plain; charset=UTF-8")), "hello h2".getBytes());
+        Request request = client.get(baseUrl + "/hello");
+        assertEquals(200, request.code());
+        assertEquals("UTF-8", request.charset());
+        assertEquals("hello h2", request.body());
+    }
+
+    @Test
+    public void testPostLargerThanWindow() {
+        server.reply = (stream, body) -> new Reply(new byte[]{(byte) 0x88}, body);
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+            data.append("line ").append(i).append('\n');
+        assertEquals(data.toString(), client.post(baseUrl + "/echo").send(data).body());
+    }
+
+    @Test
+    public void testSendFile() throws IOException {
+        server.reply = (stream, body) -> new Reply(new byte[]{(byte) 0x88}, body);
+        byte[] data = new byte[2 * 1024 * 1024 + 5];
+        new Random(8).nextBytes(data);
+        File file = File.createTempFile("upload", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        assertArrayEquals(data, client.post(baseUrl + "/echo").send(file).bytes());
+    }
+
+    @Test
+    public void testFailingProgress() throws IOException {
+        server.reply = (stream, body) -> new Reply(new byte[]{(byte) 0x88}, body);
+        File file = File.createTempFile("upload", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[1024 * 1024]);
+        }
+        try {
+            client.post(baseUrl + "/echo").progress((sent, size) -> {
+                throw new IllegalStateException("progress broke");
+            }).send(file).bytes();
+            fail("Exception expected");
+        } catch (RequestException e) {
+            assertEquals("Upload progress callback failed", e.getCause().getMessage());
+        }
+        // Only the stream is reset, the connection serves the next request
+        assertEquals("hello", client.post(baseUrl + "/echo").send("hello").body());
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void testReceiveFile() throws IOException {
+        byte[] data = new byte[3 * 1024 * 1024 + 1];
+        new Random(9).nextBytes(data);
+        server.reply = (stream, body) -> new Reply(new byte[]{(byte) 0x88}, data);
+        File file = File.createTempFile("download", ".bin");
+        file.deleteOnExit();
+        client.get(baseUrl + "/download").receive(file);
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testMultiplexed() {
+        server.reply = (stream, body) -> new Reply(new byte[]{(byte) 0x88}, ("stream " + stream).getBytes());
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            futures.add(client.get(baseUrl + "/" + i).bodyAsync());
+        for (CompletableFuture<String> future : futures)
+            assertTrue(future.join().startsWith("stream "));
+        assertEquals(1, server.connections.get());
+        assertEquals(1, transport.connectionCount());
+    }
+
+    @Test
+    public void testHpackDynamicTable() {
+        // Responses of RFC 7541 C.6, the first shrinking the table to 256 bytes
+        final String[] blocks = {
+                "3fe101 4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0 82a6 2d1b ff6e 919d"
+                        + "29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3",
+                "4883 640e ffc1 c0bf",
+                "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a 839b d9ab 77ad 94e7 821d d7f2"
+                        + "e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27 0fb5 291f 9587 3160 65c0 03ed 4ee5 b106 3d50 07"};
+        server.reply = (stream, body) -> new Reply(hex(blocks[stream / 2]), new byte[0]);
+
+        Request first = client.get(baseUrl + "/1");
+        assertEquals(302, first.code());
+        assertEquals("https://www.example.com", first.location());
+        assertEquals("private", first.cacheControl());
+
+        Request second = client.get(baseUrl + "/2");
+        assertEquals(307, second.code());
+        assertEquals("Mon, 21 Oct 2013 20:13:21 GMT", second.header("Date"));
+
+        Request third = client.get(baseUrl + "/3");
+        assertEquals(200, third.code());
+        assertEquals("gzip", third.contentEncoding());
+        assertEquals("https://www.example.com", third.location());
+        assertEquals("foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1", third.header("Set-Cookie"));
+    }
+
+    @Test
+    public void testNotFound() {
+        // :status 404
+        server.reply = (stream, body) -> new Reply(new byte[]{(byte) 0x8d}, "not here".getBytes());
+        Request request = client.get(baseUrl + "/missing");
+        assertEquals(404, request.code());
+        assertEquals("not here", request.body());
+    }
+
+    private static byte[] literal(String value) {
+        return concat(new byte[]{(byte) value.length()}, value.getBytes());
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static byte[] hex(String value) {
+        value = value.replace(" ", "");
+        byte[] bytes = new byte[value.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(value.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+
+    private static final class Reply {
+
+        private final byte[] headerBlock;
+        private final byte[] body;
+
+        private Reply(byte[] headerBlock, byte[] body) {
+            this.headerBlock = headerBlock;
+            this.body = body;
+        }
+    }
+
+    private interface Handler {
+        Reply handle(int stream, byte[] body);
+    }
+
+    /**
+     * Minimal cleartext HTTP/2 server answering every request with a fixed
+     * header block, request headers are not decoded
+     */
+    private static final class H2cServer implements Closeable {
+
+        private final ServerSocket socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private volatile Handler reply;
+
+        private H2cServer() throws IOException {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket connection = socket.accept();
+                        connections.incrementAndGet();
+                        Thread thread = new Thread(() -> serve(connection));
+                        thread.setDaemon(true);
+                        thread.start();
+                    }
+                } catch (IOException ignored) {
+                    // Closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return socket.getLocalPort();
+        }
+
+        private void serve(Socket accepted) {
+            try (Socket connection = accepted) {
+                DataInputStream in  = new DataInputStream(connection.getInputStream());
+                OutputStream    out = connection.getOutputStream();
+                in.readFully(new byte[24]);
+                writeFrame(out, 0x4, 0, 0, new byte[0]);
+                Map<Integer, ByteArrayOutputStream> bodies = new HashMap<>();
+                while (true) {
+                    int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+                    int type   = in.readUnsignedByte();
+                    int flags  = in.readUnsignedByte();
+                    int stream = in.readInt() & Integer.MAX_VALUE;
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    if (type == 0x4 && (flags & 0x1) == 0) {
+                        writeFrame(out, 0x4, 0x1, 0, new byte[0]);
+                    } else if (type == 0x1) {
+                        bodies.put(stream, new ByteArrayOutputStream());
+                        if ((flags & 0x1) != 0)
+                            respond(out, stream, bodies.remove(stream).toByteArray());
+                    } else if (type == 0x0) {
+                        bodies.get(stream).write(payload);
+                        if (length > 0) {
+                            writeFrame(out, 0x8, 0, 0, increment(length));
+                            writeFrame(out, 0x8, 0, stream, increment(length));
+                        }
+                        if ((flags & 0x1) != 0)
+                            respond(out, stream, bodies.remove(stream).toByteArray());
+                    }
+                }
+            } catch (IOException ignored) {
+                // Client went away
+            }
+        }
+
+        private void respond(OutputStream out, int stream, byte[] body) throws IOException {
+            Reply reply = this.reply.handle(stream, body);
+            writeFrame(out, 0x1, 0x4 | (reply.body.length == 0 ? 0x1 : 0), stream, reply.headerBlock);
+            for (int offset = 0; offset < reply.body.length; offset += 16384) {
+                int length = Math.min(16384, reply.body.length - offset);
+                byte[] chunk = new byte[length];
+                System.arraycopy(reply.body, offset, chunk, 0, length);
+                writeFrame(out, 0x0, offset + length == reply.body.length ? 0x1 : 0, stream, chunk);
+            }
+        }
+
+        private static byte[] increment(int value) {
+            return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+
+        private static void writeFrame(OutputStream out, int type, int flags, int stream, byte[] payload)
+                throws IOException {
+            byte[] header = {(byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length,
+                    (byte) type, (byte) flags, (byte) (stream >>> 24), (byte) (stream >>> 16), (byte) (stream >>> 8),
+                    (byte) stream};
+            out.write(header);
+            out.write(payload);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+package io.github.biezhi.request.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.github.biezhi.request.CacheStats;
+import io.github.biezhi.request.CachingTransport;
+import io.github.biezhi.request.HttpCache;
+import io.github.biezhi.request.NioTransport;
+import io.github.biezhi.request.Request;
+import io.github.biezhi.request.RequestClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpCacheTest {
+
+    private HttpServer      server;
+    private ExecutorService executor;
+    private String          baseUrl;
+    private HttpCache       cache;
+    private RequestClient   client;
+
+    private final AtomicInteger requests    = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    @Before
+    public void before() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fresh", exchange -> {
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+            send(exchange, 200, "fresh-" + requests.incrementAndGet());
+        });
+        server.createContext("/etag", exchange -> {
+            requests.incrementAndGet();
+            exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            send(exchange, 200, "tagged");
+        });
+        server.createContext("/nostore", exchange -> {
+            exchange.getResponseHeaders().add("Cache-Control", "no-store");
+            send(exchange, 200, "nostore-" + requests.incrementAndGet());
+        });
+        server.createContext("/vary", exchange -> {
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+            exchange.getResponseHeaders().add("Vary", "Accept-Language");
+            requests.incrementAndGet();
+            send(exchange, 200, String.valueOf(exchange.getRequestHeaders().getFirst("Accept-Language")));
+        });
+        server.createContext("/big", exchange -> {
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+            requests.incrementAndGet();
+            send(exchange, 200, new String(new char[400]).replace('\0', 'x'));
+        });
+        server.createContext("/swr", exchange -> {
+            // Only the first response goes stale quickly, so slow runs refresh once
+            int count = requests.incrementAndGet();
+            exchange.getResponseHeaders().add("Cache-Control",
+                    "max-age=" + (count == 1 ? 1 : 60) + ", stale-while-revalidate=30");
+            send(exchange, 200, "swr-" + count);
+        });
+        server.createContext("/flaky", exchange -> {
+            if (requests.incrementAndGet() > 1) {
+                send(exchange, 503, "down");
+                return;
+            }
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=1");
+            send(exchange, 200, "flaky");
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        cache = new HttpCache(1200).maxEntryBytes(1200);
+        client = new RequestClient(new CachingTransport(new NioTransport(1), cache));
+    }
+
+    @After
+    public void after() {
+        client.close();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static void send(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    @Test
+    public void testFreshAndInvalidated() {
+        assertEquals("fresh-1", client.get(baseUrl + "/fresh").body());
+        assertEquals("fresh-1", client.get(baseUrl + "/fresh").body());
+        Request cached = client.get(baseUrl + "/fresh");
+        assertEquals(200, cached.code());
+        assertTrue(cached.header("Age") != null);
+        cached.body();
+        assertEquals(1, requests.get());
+
+        // Asking for a newer response skips the stored one
+        assertEquals("fresh-2", client.get(baseUrl + "/fresh").header("Cache-Control", "max-age=0").body());
+        assertEquals("fresh-2", client.get(baseUrl + "/fresh").body());
+
+        // A successful POST to the URL removes it
+        client.post(baseUrl + "/fresh").code();
+        assertEquals("fresh-4", client.get(baseUrl + "/fresh").body());
+
+        CacheStats stats = cache.stats();
+        assertEquals(3, stats.hits());
+        assertEquals(3, stats.misses());
+        assertEquals(1, stats.entries());
+    }
+
+    @Test
+    public void testRevalidation() {
+        assertEquals("tagged", client.get(baseUrl + "/etag").body());
+        assertEquals("tagged", client.get(baseUrl + "/etag").body());
+        Request revalidated = client.get(baseUrl + "/etag");
+        assertEquals(200, revalidated.code());
+        assertEquals("tagged", revalidated.body());
+        assertEquals(3, requests.get());
+        assertEquals(2, notModified.get());
+        assertEquals(2, cache.stats().revalidations());
+    }
+
+    @Test
+    public void testNotStored() {
+        assertEquals("nostore-1", client.get(baseUrl + "/nostore").body());
+        assertEquals("nostore-2", client.get(baseUrl + "/nostore").body());
+        assertEquals(0, cache.stats().entries());
+
+        assertEquals(504, client.get(baseUrl + "/missing").header("Cache-Control", "only-if-cached").code());
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testVary() {
+        assertEquals("en", client.get(baseUrl + "/vary").header("Accept-Language", "en").body());
+        assertEquals("fr", client.get(baseUrl + "/vary").header("Accept-Language", "fr").body());
+        assertEquals("en", client.get(baseUrl + "/vary").header("Accept-Language", "en").body());
+        assertEquals("fr", client.get(baseUrl + "/vary").header("Accept-Language", "fr").body());
+        assertEquals(2, requests.get());
+        assertEquals(2, cache.stats().entries());
+    }
+
+    @Test
+    public void testEviction() {
+        for (int i = 0; i < 4; i++)
+            assertEquals(400, client.get(baseUrl + "/big?" + i).body().length());
+        CacheStats stats = cache.stats();
+        assertTrue(stats.bytes() <= 1200);
+        assertEquals(2, stats.entries());
+        assertEquals(2, stats.evictions());
+
+        // The most recent responses are still served from the cache
+        client.get(baseUrl + "/big?3").body();
+        assertEquals(4, requests.get());
+        client.get(baseUrl + "/big?0").body();
+        assertEquals(5, requests.get());
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        assertEquals("swr-1", client.get(baseUrl + "/swr").body());
+        Thread.sleep(1100);
+        Request stale = client.get(baseUrl + "/swr");
+        assertEquals("swr-1", stale.body());
+        assertTrue(stale.header("Warning").startsWith("110"));
+
+        // The refresh runs in the background and replaces the stored response
+        for (int i = 0; i < 100 && !"swr-2".equals(client.get(baseUrl + "/swr").body()); i++)
+            Thread.sleep(20);
+        assertEquals("swr-2", client.get(baseUrl + "/swr").body());
+        assertEquals(2, requests.get());
+        assertTrue(cache.stats().stale() >= 1);
+    }
+
+    @Test
+    public void testStaleIfError() throws Exception {
+        assertEquals("flaky", client.get(baseUrl + "/flaky").body());
+        Thread.sleep(1100);
+        // The response does not allow it
+        assertEquals(503, client.get(baseUrl + "/flaky").code());
+
+        try (RequestClient tolerant = new RequestClient(new CachingTransport(new NioTransport(1), cache)
+                .staleIfError(1, TimeUnit.MINUTES))) {
+            Request stale = tolerant.get(baseUrl + "/flaky");
+            assertEquals(200, stale.code());
+            assertEquals("flaky", stale.body());
+            assertTrue(stale.header("Warning").startsWith("111"));
+
+            // Nor does a refused connection
+            server.stop(0);
+            assertEquals("flaky", tolerant.get(baseUrl + "/flaky").body());
+        }
+    }
+
+}
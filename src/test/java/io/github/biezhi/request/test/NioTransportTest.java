@@ -0,0 +1,556 @@
+package io.github.biezhi.request.test;
+
+import com.sun.net.httpserver.HttpServer;
+import io.github.biezhi.request.BufferPool;
+import io.github.biezhi.request.NioTransport;
+import io.github.biezhi.request.Request;
+import io.github.biezhi.request.RequestException;
+import io.github.biezhi.request.TransportConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NioTransportTest {
+
+    private HttpServer   server;
+    private NioTransport transport;
+    private String       baseUrl;
+    private byte[]       download;
+
+    private final AtomicInteger ranges = new AtomicInteger();
+
+    @Before
+    public void before() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/hello", exchange -> {
+            byte[] body = "hello world".getBytes("UTF-8");
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.createContext("/chunked", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            for (int i = 0; i < 1000; i++)
+                out.write(("line " + i + "\n").getBytes("UTF-8"));
+            exchange.close();
+        });
+        server.createContext("/echo", exchange -> {
+            byte[] body = readAll(exchange.getRequestBody());
+            exchange.getResponseHeaders().add("X-Method", exchange.getRequestMethod());
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        download = new byte[5 * 1024 * 1024 + 3];
+        new Random(9).nextBytes(download);
+        server.createContext("/download", exchange -> {
+            boolean chunked = exchange.getRequestURI().getQuery() != null;
+            exchange.sendResponseHeaders(200, chunked ? 0 : download.length);
+            exchange.getResponseBody().write(download);
+            exchange.close();
+        });
+        server.createContext("/ranges", exchange -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            // '?changed' answers range requests as if the resource changed
+            boolean changed = exchange.getRequestURI().getQuery() != null;
+            if (range == null || changed || !"\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-Range"))) {
+                exchange.sendResponseHeaders(200, download.length);
+                try {
+                    exchange.getResponseBody().write(download);
+                } catch (IOException ignored) {
+                    // Client stopped reading after its range
+                }
+                exchange.close();
+                return;
+            }
+            ranges.incrementAndGet();
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int      start  = Integer.parseInt(bounds[0]);
+            int      end    = bounds.length > 1 ? Integer.parseInt(bounds[1]) : download.length - 1;
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + download.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+            exchange.getResponseBody().write(download, start, end - start + 1);
+            exchange.close();
+        });
+        server.createContext("/redirect", exchange -> {
+            exchange.getResponseHeaders().add("Location", "/hello");
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.createContext("/missing", exchange -> {
+            byte[] body = "not here".getBytes("UTF-8");
+            exchange.sendResponseHeaders(404, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        transport = new NioTransport(1);
+        Request.setConnectionFactory(new TransportConnectionFactory(transport));
+    }
+
+    @After
+    public void after() {
+        Request.setConnectionFactory(null);
+        transport.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testGet() {
+        Request request = Request.get(baseUrl + "/hello");
+        assertEquals(200, request.code());
+        assertEquals("UTF-8", request.charset());
+        assertEquals("hello world", request.body());
+    }
+
+    @Test
+    public void testChunked() {
+        String body = Request.get(baseUrl + "/chunked").body();
+        assertTrue(body.startsWith("line 0\n"));
+        assertTrue(body.endsWith("line 999\n"));
+    }
+
+    @Test
+    public void testPost() {
+        Request request = Request.post(baseUrl + "/echo").form("name", "jack");
+        assertEquals("name=jack", request.body());
+        assertEquals("POST", request.header("X-Method"));
+    }
+
+    @Test
+    public void testRedirect() {
+        Request request = Request.get(baseUrl + "/redirect");
+        assertEquals("hello world", request.body());
+        assertTrue(request.url().toString().endsWith("/hello"));
+    }
+
+    @Test
+    public void testErrorBody() {
+        Request request = Request.get(baseUrl + "/missing");
+        assertTrue(request.notFound());
+        assertEquals("not here", request.body());
+    }
+
+    @Test
+    public void testSendFile() throws IOException {
+        byte[] data = new byte[3 * 1024 * 1024 + 17];
+        new Random(8).nextBytes(data);
+        File file = File.createTempFile("upload", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        AtomicLong uploaded = new AtomicLong();
+        AtomicLong total    = new AtomicLong();
+        Request request = Request.post(baseUrl + "/echo").progress((sent, size) -> {
+            uploaded.set(sent);
+            total.set(size);
+        }).send(file);
+        assertArrayEquals(data, request.bytes());
+        assertEquals(data.length, uploaded.get());
+        assertEquals(data.length, total.get());
+    }
+
+    @Test
+    public void testFailingProgress() throws IOException {
+        File file = File.createTempFile("upload", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[1024 * 1024]);
+        }
+        try {
+            Request.post(baseUrl + "/echo").progress((sent, size) -> {
+                throw new IllegalStateException("progress broke");
+            }).send(file).bytes();
+            fail("Exception expected");
+        } catch (RequestException e) {
+            assertEquals("Upload progress callback failed", e.getCause().getMessage());
+        }
+        // The loop survives and serves the next request
+        assertEquals("hello", Request.post(baseUrl + "/echo").send("hello").body());
+    }
+
+    @Test
+    public void testStreamingModes() throws IOException {
+        byte[] data = new byte[1024 * 1024 + 5];
+        new Random(3).nextBytes(data);
+        File file = File.createTempFile("upload", ".txt");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("from a file".getBytes("UTF-8"));
+        }
+        // Streamed bodies are spooled to disk rather than held on the heap
+        byte[] echoed = Request.post(baseUrl + "/echo").chunk(8192)
+                .send(data).send(file).send("end").bytes();
+        assertEquals(data.length + "from a fileend".length(), echoed.length);
+        assertArrayEquals(data, Arrays.copyOf(echoed, data.length));
+        assertEquals("from a fileend", new String(echoed, data.length, echoed.length - data.length, "UTF-8"));
+
+        assertEquals("12345", Request.post(baseUrl + "/echo").contentLength(5).send("12345").body());
+        try {
+            Request.post(baseUrl + "/echo").contentLength(10).send("12345").code();
+            fail("Exception expected");
+        } catch (RequestException e) {
+            assertEquals("insufficient data written", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testMultipartFile() throws IOException {
+        File file = File.createTempFile("upload", ".txt");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("file contents".getBytes("UTF-8"));
+        }
+        String body = Request.post(baseUrl + "/echo")
+                .part("name", "jack")
+                .part("file", "a.txt", "text/plain", file)
+                .part("after", "end")
+                .body();
+        assertTrue(body.contains("filename=\"a.txt\"\r\nContent-Type: text/plain\r\n\r\nfile contents\r\n"));
+        assertTrue(body.indexOf("file contents") < body.indexOf("name=\"after\""));
+        assertTrue(body.contains("\r\n\r\njack\r\n"));
+        assertTrue(Arrays.asList(body.split("\r\n")).contains("end"));
+    }
+
+    @Test
+    public void testReceiveFile() throws IOException {
+        File file = File.createTempFile("download", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[8 * 1024 * 1024]);
+        }
+        Request.get(baseUrl + "/download").receive(file);
+        assertArrayEquals(download, Files.readAllBytes(file.toPath()));
+
+        Request.get(baseUrl + "/download?chunked").receive(file);
+        assertArrayEquals(download, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testReceiveParallel() throws IOException {
+        File file = File.createTempFile("download", ".bin");
+        file.deleteOnExit();
+        Request.get(baseUrl + "/ranges").receiveParallel(file, 4);
+        assertArrayEquals(download, Files.readAllBytes(file.toPath()));
+        assertEquals(3, ranges.get());
+
+        // No Accept-Ranges, served as a single stream
+        Request.get(baseUrl + "/download").receiveParallel(file, 4);
+        assertArrayEquals(download, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testReceiveFailure() throws IOException {
+        File file = File.createTempFile("download", ".bin");
+        file.deleteOnExit();
+        try (ServerSocket raw = rawServer("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n0123456789")) {
+            Request.get("http://127.0.0.1:" + raw.getLocalPort() + "/").readTimeout(200).receive(file);
+            fail("Exception expected");
+        } catch (RequestException e) {
+            // Only the bytes received are kept, not the preallocated size
+            assertEquals("0123456789", new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+        }
+
+        try {
+            Request.get(baseUrl + "/ranges?changed").receiveParallel(file, 4);
+            fail("Exception expected");
+        } catch (RequestException e) {
+            int first = (download.length + 3) / 4;
+            assertArrayEquals(Arrays.copyOf(download, first), Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    @Test
+    public void testReceiveResumable() throws IOException {
+        File file  = File.createTempFile("download", ".bin");
+        File state = new File(file.getPath() + ".resume");
+        file.deleteOnExit();
+        state.deleteOnExit();
+        Files.write(file.toPath(), Arrays.copyOf(download, 1000));
+        Files.write(state.toPath(), "\"v1\"".getBytes("UTF-8"));
+
+        Request request = Request.get(baseUrl + "/ranges").receiveResumable(file);
+        assertEquals(206, request.code());
+        assertEquals(1, ranges.get());
+        assertArrayEquals(download, Files.readAllBytes(file.toPath()));
+        assertTrue(!state.exists());
+
+        // Changed on the server, downloaded again from the start
+        Files.write(file.toPath(), new byte[1000]);
+        Files.write(state.toPath(), "\"v0\"".getBytes("UTF-8"));
+        request = Request.get(baseUrl + "/ranges").receiveResumable(file);
+        assertEquals(200, request.code());
+        assertArrayEquals(download, Files.readAllBytes(file.toPath()));
+        assertTrue(!state.exists());
+    }
+
+    @Test
+    public void testMultibyteBody() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 30000; i++)
+            text.append(i % 7 == 0 ? "\u4f60\u597d" : "ab").append(i % 11 == 0 ? "\ud83d\ude00" : "\u00e9");
+        byte[] data = text.toString().getBytes("UTF-8");
+        server.createContext("/text", exchange -> {
+            boolean chunked = exchange.getRequestURI().getQuery() != null;
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+            exchange.sendResponseHeaders(200, chunked ? 0 : data.length);
+            // Odd sized writes so characters straddle chunk boundaries
+            for (int offset = 0; offset < data.length; offset += 999)
+                exchange.getResponseBody().write(data, offset, Math.min(999, data.length - offset));
+            exchange.close();
+        });
+        assertEquals(text.toString(), Request.get(baseUrl + "/text").body());
+        assertEquals(text.toString(), Request.get(baseUrl + "/text?chunked").body());
+        assertArrayEquals(data, Request.get(baseUrl + "/text").bytes());
+        assertArrayEquals(data, Request.get(baseUrl + "/text?chunked").bytes());
+
+        StringBuilder builder = new StringBuilder();
+        Request.get(baseUrl + "/text").body(builder);
+        assertEquals(text.toString(), builder.toString());
+        StringWriter writer = new StringWriter();
+        Request.get(baseUrl + "/text?chunked").receive(writer);
+        assertEquals(text.toString(), writer.toString());
+        StringBuffer buffer = new StringBuffer();
+        Request.get(baseUrl + "/text?chunked").body(buffer, "UTF-8");
+        assertEquals(text.toString(), buffer.toString());
+    }
+
+    @Test
+    public void testLinesAndRecords() {
+        StringBuilder tail = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+            tail.append("\u00e9x");
+        server.createContext("/ndjson", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/x-ndjson; charset=UTF-8");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                for (int i = 0; i < 20000; i++)
+                    out.write(("{\"id\":" + i + "}" + (i % 2 == 0 ? "\r\n" : "\n")).getBytes("UTF-8"));
+                out.write((tail + "||a||||b").getBytes("UTF-8"));
+            } catch (IOException ignored) {
+                // Client closed early
+            }
+            exchange.close();
+        });
+        try (Stream<String> lines = Request.get(baseUrl + "/ndjson").lines()) {
+            List<String> all = lines.collect(Collectors.toList());
+            assertEquals(20001, all.size());
+            assertEquals("{\"id\":0}", all.get(0));
+            assertEquals("{\"id\":19999}", all.get(19999));
+            assertEquals(tail + "||a||||b", all.get(20000));
+        }
+        try (Stream<String> records = Request.get(baseUrl + "/ndjson").records("||")) {
+            List<String> all = records.skip(1).collect(Collectors.toList());
+            assertEquals(Arrays.asList("a", "", "b"), all);
+        }
+        try (Stream<String> lines = Request.get(baseUrl + "/ndjson").lines()) {
+            assertEquals("{\"id\":2}", lines.skip(2).findFirst().get());
+        }
+        // The connection of the abandoned stream is not reused
+        assertEquals("hello world", Request.get(baseUrl + "/hello").body());
+    }
+
+    @Test
+    public void testUncompress() throws IOException {
+        byte[] text = new byte[300000];
+        for (int i = 0; i < text.length; i++)
+            text[i] = (byte) ('a' + i % 7 + (i % 1000 == 0 ? 1 : 0));
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        // Two members, read back as one body
+        for (int member = 0; member < 2; member++)
+            try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+                out.write(text, member * 150000, 150000);
+            }
+        ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(zlib)) {
+            out.write(text);
+        }
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(raw, new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+            out.write(text);
+        }
+        server.createContext("/compressed", exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            byte[] body  = "gzip".equals(query) ? gzip.toByteArray() : "zlib".equals(query) ? zlib.toByteArray() : raw.toByteArray();
+            exchange.getResponseHeaders().add("X-Accept-Encoding", exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip".equals(query) ? "gzip" : "deflate");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        BufferPool pool = new BufferPool();
+        Request.setBufferPool(pool);
+        try {
+            for (String format : Arrays.asList("gzip", "zlib", "raw", "gzip")) {
+                Request request = Request.get(baseUrl + "/compressed?" + format).uncompress(true);
+                assertArrayEquals(text, request.bytes());
+                assertEquals("gzip, deflate", request.header("X-Accept-Encoding"));
+            }
+            // One inflater, reused for every response after the first
+            assertTrue(pool.hits() >= 3);
+        } finally {
+            Request.setBufferPool(null);
+        }
+        assertEquals("gzip", Request.get(baseUrl + "/compressed?gzip").acceptGzipEncoding().uncompress(true)
+                .header("X-Accept-Encoding"));
+    }
+
+    @Test
+    public void testCompressRequest() throws IOException {
+        server.createContext("/upload", exchange -> {
+            byte[] body     = readAll(exchange.getRequestBody());
+            String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            exchange.getResponseHeaders().add("X-Encoding", String.valueOf(encoding));
+            exchange.getResponseHeaders().add("X-Received", String.valueOf(body.length));
+            if ("gzip".equals(encoding))
+                body = readAll(new GZIPInputStream(new ByteArrayInputStream(body)));
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 20000; i++)
+            json.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i).append("\"},");
+        byte[] text   = json.append("{}]").toString().getBytes("UTF-8");
+        byte[] random = new byte[300000];
+        new Random(3).nextBytes(random);
+        ByteArrayOutputStream mixed = new ByteArrayOutputStream();
+        mixed.write(text);
+        mixed.write(random);
+        mixed.write(text);
+
+        Request small = Request.post(baseUrl + "/upload").compress(true).send("{}");
+        assertEquals("{}", small.body());
+        assertEquals("null", small.header("X-Encoding"));
+
+        Request compressed = Request.post(baseUrl + "/upload").compress(true).send(text);
+        assertArrayEquals(text, compressed.bytes());
+        assertEquals("gzip", compressed.header("X-Encoding"));
+        assertTrue(Integer.parseInt(compressed.header("X-Received")) < text.length / 5);
+
+        Request incompressible = Request.post(baseUrl + "/upload").compress(true).send(random);
+        assertArrayEquals(random, incompressible.bytes());
+        assertEquals("null", incompressible.header("X-Encoding"));
+
+        // Random stretch is stored, the text after it is compressed again
+        Request stored = Request.post(baseUrl + "/upload").compress(1024, 1).send(mixed.toByteArray());
+        assertArrayEquals(mixed.toByteArray(), stored.bytes());
+        assertEquals("gzip", stored.header("X-Encoding"));
+        int received = Integer.parseInt(stored.header("X-Received"));
+        assertTrue(received > random.length && received < random.length + text.length / 2);
+    }
+
+    /**
+     * Serve one connection with the given raw response, or hold it open
+     * without answering when the response is null
+     */
+    private static ServerSocket rawServer(String response) throws IOException {
+        ServerSocket socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(() -> {
+            try (Socket client = socket.accept()) {
+                InputStream input = client.getInputStream();
+                // Skip the request head
+                for (int b, matched = 0; matched < 4 && (b = input.read()) != -1; )
+                    matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : b == '\r' ? 1 : 0;
+                if (response != null)
+                    client.getOutputStream().write(response.getBytes("UTF-8"));
+                while (input.read() != -1) {
+                    // Hold the connection until the client closes it
+                }
+            } catch (IOException ignored) {
+                // Closed
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return socket;
+    }
+
+    @Test
+    public void testNegativeContentLength() throws IOException {
+        try (ServerSocket raw = rawServer("HTTP/1.1 200 OK\r\nContent-Length: -5\r\n\r\nbody")) {
+            Request.get("http://127.0.0.1:" + raw.getLocalPort() + "/").body();
+            fail("Exception expected");
+        } catch (RequestException e) {
+            assertTrue(e.getCause() instanceof ProtocolException);
+        }
+    }
+
+    @Test
+    public void testNoBodyContentLength() throws IOException {
+        // The announced length of a body that never follows is not allocated
+        try (ServerSocket raw = rawServer("HTTP/1.1 200 OK\r\nContent-Length: 2000000000\r\n\r\n")) {
+            assertEquals(0, Request.head("http://127.0.0.1:" + raw.getLocalPort() + "/").bytes().length);
+        }
+        try (ServerSocket raw = rawServer("HTTP/1.1 304 Not Modified\r\nContent-Length: 2000000000\r\n\r\n")) {
+            assertEquals(0, Request.get("http://127.0.0.1:" + raw.getLocalPort() + "/").bytes().length);
+        }
+    }
+
+    @Test
+    public void testCloseWhileWaiting() throws Exception {
+        try (ServerSocket raw = rawServer(null)) {
+            new Thread(() -> {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                    // Ignored
+                }
+                transport.close();
+            }).start();
+            // No read timeout, only closing the transport ends the wait
+            Request.get("http://127.0.0.1:" + raw.getLocalPort() + "/").code();
+            fail("Exception expected");
+        } catch (RequestException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[]                buffer = new byte[8192];
+        int                   read;
+        while ((read = input.read(buffer)) != -1)
+            output.write(buffer, 0, read);
+        return output.toByteArray();
+    }
+
+}
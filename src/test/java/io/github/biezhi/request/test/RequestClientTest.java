@@ -0,0 +1,125 @@
+package io.github.biezhi.request.test;
+
+import com.sun.net.httpserver.HttpServer;
+import io.github.biezhi.request.ConnectionPool;
+import io.github.biezhi.request.PoolStats;
+import io.github.biezhi.request.Request;
+import io.github.biezhi.request.RequestClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestClientTest {
+
+    private HttpServer server;
+    private String     baseUrl;
+
+    @Before
+    public void before() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/hello", exchange -> {
+            byte[] body = "hello".getBytes("UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void after() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testReuseConnection() {
+        try (RequestClient client = new RequestClient(new ConnectionPool().maxPerHost(2), 1)) {
+            for (int i = 0; i < 10; i++)
+                assertEquals("hello", client.get(baseUrl + "/hello").body());
+            PoolStats stats = client.pool().stats();
+            assertEquals(1, stats.created());
+            assertEquals(9, stats.reused());
+            assertEquals(0, stats.leased());
+            assertEquals(1, stats.idle());
+        }
+    }
+
+    @Test
+    public void testIdleEviction() throws InterruptedException {
+        ConnectionPool pool = new ConnectionPool().idleTimeout(100, TimeUnit.MILLISECONDS);
+        try (RequestClient client = new RequestClient(pool, 1)) {
+            assertEquals("hello", client.get(baseUrl + "/hello").body());
+            assertEquals(1, pool.stats().idle());
+            Thread.sleep(2500);
+            assertEquals(0, pool.stats().idle());
+            assertTrue(pool.stats().closed() >= 1);
+        }
+    }
+
+    @Test
+    public void testUnreadBodies() throws InterruptedException {
+        ConnectionPool pool = new ConnectionPool().maxPerHost(2).acquireTimeout(10, TimeUnit.SECONDS);
+        try (RequestClient client = new RequestClient(pool, 1)) {
+            // Disconnecting gives the connection back at once
+            for (int i = 0; i < 5; i++) {
+                Request request = client.get(baseUrl + "/hello");
+                assertEquals(200, request.code());
+                request.disconnect();
+            }
+            assertEquals(0, pool.stats().leased());
+
+            // Requests whose bodies are never read hold their connection
+            // until they are garbage collected
+            for (int i = 0; i < 2; i++)
+                assertEquals(200, client.get(baseUrl + "/hello").code());
+            assertEquals(2, pool.stats().leased());
+            for (int i = 0; i < 50 && pool.stats().leased() > 0; i++) {
+                System.gc();
+                Thread.sleep(100);
+            }
+            assertEquals(0, pool.stats().leased());
+            assertEquals("hello", client.get(baseUrl + "/hello").body());
+        }
+    }
+
+    @Test
+    public void testSeparatePools() {
+        try (RequestClient first = new RequestClient(new ConnectionPool(), 1);
+             RequestClient second = new RequestClient(new ConnectionPool(), 1)) {
+            first.get(baseUrl + "/hello").body();
+            second.get(baseUrl + "/hello").body();
+            assertEquals(1, first.pool().stats().created());
+            assertEquals(1, second.pool().stats().created());
+        }
+    }
+
+    @Test
+    public void testAsync() {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (RequestClient client = new RequestClient(new ConnectionPool(), 1).executor(executor)) {
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++)
+                futures.add(client.get(baseUrl + "/hello").bodyAsync());
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+            for (CompletableFuture<String> future : futures)
+                assertEquals("hello", future.join());
+            assertTrue(client.pool().stats().created() <= 4);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+package io.github.biezhi.request.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.github.biezhi.request.NioTransport;
+import io.github.biezhi.request.Request;
+import io.github.biezhi.request.RequestClient;
+import io.github.biezhi.request.RequestException;
+import io.github.biezhi.request.RetryPolicy;
+import io.github.biezhi.request.RetryTransport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryTransportTest {
+
+    private HttpServer      server;
+    private ExecutorService executor;
+    private String          baseUrl;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final List<String>  bodies   = new CopyOnWriteArrayList<>();
+
+    private volatile int    failures;
+    private volatile String retryAfter;
+
+    @Before
+    public void before() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/flaky", exchange -> {
+            bodies.add(read(exchange.getRequestBody()));
+            if (requests.incrementAndGet() <= failures) {
+                if (retryAfter != null)
+                    exchange.getResponseHeaders().add("Retry-After", retryAfter);
+                send(exchange, 503, "busy");
+            } else {
+                send(exchange, 200, "done");
+            }
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void after() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static String read(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[]                buffer = new byte[1024];
+        int                   read;
+        while ((read = input.read(buffer)) != -1)
+            output.write(buffer, 0, read);
+        return output.toString("UTF-8");
+    }
+
+    private static void send(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    private static RetryPolicy policy() {
+        return new RetryPolicy().maxAttempts(3).backoff(1, 20, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testRetriesStatus() {
+        failures = 2;
+        RetryTransport transport = new RetryTransport(new NioTransport(1), policy());
+        try (RequestClient client = new RequestClient(transport)) {
+            Request request = client.get(baseUrl + "/flaky");
+            assertEquals(200, request.code());
+            assertEquals("done", request.body());
+            assertEquals(3, requests.get());
+            assertEquals(2, transport.retries());
+
+            // Out of attempts the last response is returned
+            requests.set(0);
+            failures = 5;
+            assertEquals(503, client.get(baseUrl + "/flaky").code());
+            assertEquals(3, requests.get());
+        }
+    }
+
+    @Test
+    public void testIdempotency() throws IOException {
+        failures = 1;
+        try (RequestClient client = new RequestClient(new RetryTransport(new NioTransport(1), policy()))) {
+            assertEquals(503, client.post(baseUrl + "/flaky").send("once").code());
+            assertEquals(1, requests.get());
+
+            requests.set(0);
+            bodies.clear();
+            Request keyed = client.post(baseUrl + "/flaky").header("Idempotency-Key", "abc");
+            assertEquals(200, keyed.send("twice".getBytes("UTF-8")).code());
+            assertEquals(2, requests.get());
+            assertEquals("twice", bodies.get(0));
+            assertEquals("twice", bodies.get(1));
+
+            // Files are sent again from the start
+            File file = File.createTempFile("retry", ".txt");
+            try {
+                Files.write(file.toPath(), "from a file".getBytes("UTF-8"));
+                requests.set(0);
+                bodies.clear();
+                assertEquals(200, client.put(baseUrl + "/flaky").send(file).code());
+                assertEquals(2, requests.get());
+                assertEquals("from a file", bodies.get(0));
+                assertEquals("from a file", bodies.get(1));
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testRetryAfter() {
+        failures = 1;
+        retryAfter = "1";
+        RetryPolicy policy = policy().backoff(1, 2000, TimeUnit.MILLISECONDS);
+        try (RequestClient client = new RequestClient(new RetryTransport(new NioTransport(1), policy))) {
+            long start = System.nanoTime();
+            assertEquals(200, client.get(baseUrl + "/flaky").code());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+
+            // Asking for longer than the maximum wait is not retried
+            requests.set(0);
+            retryAfter = "60";
+            assertEquals(503, client.get(baseUrl + "/flaky").code());
+            assertEquals(1, requests.get());
+        }
+    }
+
+    @Test
+    public void testBudget() {
+        failures = 100;
+        RetryTransport transport = new RetryTransport(new NioTransport(1), policy().maxAttempts(5).budget(0.5, 2));
+        try (RequestClient client = new RequestClient(transport)) {
+            assertEquals(503, client.get(baseUrl + "/flaky").code());
+            assertEquals(3, requests.get());
+            assertEquals(2, transport.retries());
+            // Each call earns half a retry
+            assertEquals(503, client.get(baseUrl + "/flaky").code());
+            assertEquals(4, requests.get());
+            assertEquals(503, client.get(baseUrl + "/flaky").code());
+            assertEquals(6, requests.get());
+            assertEquals(3, transport.retries());
+            assertEquals(3, transport.rejected());
+        }
+    }
+
+    @Test
+    public void testRetriesConnectFailure() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        RetryTransport transport = new RetryTransport(new NioTransport(1), policy());
+        try (RequestClient client = new RequestClient(transport)) {
+            client.post("http://127.0.0.1:" + port + "/closed").send("body").code();
+            fail("Exception expected");
+        } catch (RequestException e) {
+            assertTrue(e.getCause() instanceof ConnectException);
+        }
+        assertEquals(2, transport.retries());
+    }
+
+}